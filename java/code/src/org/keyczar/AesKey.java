@@ -21,6 +21,7 @@ import org.json.JSONObject;
 import org.keyczar.enums.CipherMode;
 import org.keyczar.exceptions.KeyczarException;
 import org.keyczar.exceptions.ShortBufferException;
+import org.keyczar.exceptions.ShortCiphertextException;
 import org.keyczar.i18n.Messages;
 import org.keyczar.interfaces.DecryptingStream;
 import org.keyczar.interfaces.EncryptingStream;
@@ -55,7 +56,6 @@ public class AesKey extends KeyczarKey {
   private static final int NUM_OF_KEYS = 2; // AesKeys contain HMAC and AES keys
 
   private SecretKey aesKey;
-  private final String aesKeyString;
   private final HmacKey hmacKey;
   private final CipherMode mode;
 
@@ -66,18 +66,15 @@ public class AesKey extends KeyczarKey {
    * byte array, but must be a valid AES key length (128, 192 or 256 bits).
    */
   public AesKey(byte[] aesKeyBytes, HmacKey hmacKey) throws KeyczarException {
-    super(aesKeyBytes.length * 8);
-    this.aesKeyString = Base64Coder.encodeWebSafe(aesKeyBytes);
-    this.mode = DEFAULT_MODE;
-    this.hmacKey = hmacKey;
-    initJceKey(aesKeyBytes);
+    this(aesKeyBytes.length * 8, aesKeyBytes, hmacKey, DEFAULT_MODE);
   }
 
-  private AesKey(int size, String aesKeyString, HmacKey hmacKey, CipherMode mode) {
+  AesKey(int size, byte[] aesKeyBytes, HmacKey hmacKey, CipherMode mode)
+      throws KeyczarException {
     super(size);
-    this.aesKeyString = aesKeyString;
     this.hmacKey = hmacKey;
     this.mode = mode;
+    initJceKey(aesKeyBytes);
   }
 
   static AesKey generate(AesKeyParameters params) throws KeyczarException {
@@ -107,19 +104,17 @@ public class AesKey extends KeyczarKey {
 
   static AesKey read(String input) throws KeyczarException {
     try {
-      AesKey key = fromJson(new JSONObject(input));
-      key.hmacKey.initFromJson();
-      key.initJceKey(Base64Coder.decodeWebSafe(key.aesKeyString));
-      return key;
+      return fromJson(new JSONObject(input));
     } catch (JSONException e) {
       throw new RuntimeException(e);
     }
   }
 
-  static AesKey fromJson(JSONObject json) throws JSONException {
+  static AesKey fromJson(JSONObject json)
+      throws JSONException, KeyczarException {
     AesKey key = new AesKey(
         json.getInt("size"),
-        json.getString("aesKeyString"),
+        Base64Coder.decodeWebSafe(json.getString("aesKeyString")),
         HmacKey.fromJson(json.getJSONObject("hmacKey")),
         Util.deserializeEnum(CipherMode.class, json.getString("mode")));
     return key;
@@ -130,7 +125,7 @@ public class AesKey extends KeyczarKey {
     try {
       return new JSONObject()
         .put("size", size)
-        .put("aesKeyString", aesKeyString)
+        .put("aesKeyString", Base64Coder.encodeWebSafe(aesKey.getEncoded()))
         .put("hmacKey", hmacKey != null ? hmacKey.toJson() : null)
         .put("mode", mode.name());
     } catch (JSONException e) {
@@ -184,11 +179,22 @@ public class AesKey extends KeyczarKey {
     return aesKey;
   }
 
-  private class AesStream implements EncryptingStream, DecryptingStream {
+  private class AesStream implements EncryptingStream, DecryptingStream,
+      ArrayCipherStream {
     private final Cipher encryptingCipher;
     private final Cipher decryptingCipher;
     private final SigningStream signStream;
-    boolean ivRead = false;
+    private final byte[] ivPreImage = new byte[BLOCK_SIZE];
+    // Receives the IV preimage, which is decrypted from the IV and discarded.
+    // A decrypting cipher may write a block more than it is given.
+    private final byte[] discardBuffer = new byte[2 * BLOCK_SIZE];
+    // The number of bytes of ciphertext following the IV still to be fed in
+    // before the IV preimage has been decrypted and discarded
+    private int preImageRemaining = 0;
+    // Whether a message was started but not finished, leaving state in the
+    // cipher
+    private boolean encrypting = false;
+    private boolean decrypting = false;
 
     public AesStream() throws KeyczarException  {
       /*
@@ -197,12 +203,11 @@ public class AesKey extends KeyczarKey {
        * Then passing IVs for CBC mode ourselves. The Ciphers will be cached in
        * this stream
        */
-      IvParameterSpec zeroIv = new IvParameterSpec(new byte[BLOCK_SIZE]);
       try {
         encryptingCipher = Cipher.getInstance(mode.getMode());
-        encryptingCipher.init(Cipher.ENCRYPT_MODE, aesKey, zeroIv);
         decryptingCipher = Cipher.getInstance(mode.getMode());
-        decryptingCipher.init(Cipher.DECRYPT_MODE, aesKey, zeroIv);
+        initCipher(encryptingCipher, Cipher.ENCRYPT_MODE);
+        initCipher(decryptingCipher, Cipher.DECRYPT_MODE);
         signStream = (SigningStream) hmacKey.getStream();
       } catch (GeneralSecurityException e) {
         throw new KeyczarException(e);
@@ -220,19 +225,36 @@ public class AesKey extends KeyczarKey {
     }
 
     @Override
-    public void initDecrypt(ByteBuffer input) {
+    public void initDecrypt(ByteBuffer input) throws KeyczarException {
+      if (input.remaining() < BLOCK_SIZE) {
+        throw new ShortCiphertextException(input.remaining());
+      }
       // This will simply decrypt the first block, leaving the CBC Cipher
       // ready for the next block of input.
-      byte[] iv = new byte[BLOCK_SIZE];
-      input.get(iv);
-      decryptingCipher.update(iv);
-      ivRead = true;
+      input.get(ivPreImage);
+      initDecrypt(ivPreImage, 0, BLOCK_SIZE);
+    }
+
+    @Override
+    public int initDecrypt(byte[] input, int inputOffset, int inputLength)
+        throws KeyczarException {
+      if (inputLength < BLOCK_SIZE) {
+        throw new ShortCiphertextException(inputLength);
+      }
+      startDecrypt();
+      try {
+        decryptingCipher.update(input, inputOffset, BLOCK_SIZE, discardBuffer,
+            0);
+      } catch (javax.crypto.ShortBufferException e) {
+        throw new ShortBufferException(e);
+      }
+      return BLOCK_SIZE;
     }
 
     @Override
     public int initEncrypt(ByteBuffer output) throws KeyczarException {
+      startEncrypt();
       // Generate a random value and encrypt it. This will be the IV.
-      byte[] ivPreImage = new byte[BLOCK_SIZE];
       Util.rand(ivPreImage);
       try {
         return encryptingCipher.update(ByteBuffer.wrap(ivPreImage), output);
@@ -242,15 +264,22 @@ public class AesKey extends KeyczarKey {
     }
 
     @Override
-    public int updateDecrypt(ByteBuffer input, ByteBuffer output)
+    public int initEncrypt(byte[] output, int outputOffset)
         throws KeyczarException {
-      if (ivRead && input.remaining() >= BLOCK_SIZE) {
-        // The next output block will be the IV preimage, which we'll discard
-        byte[] temp = new byte[BLOCK_SIZE];
-        input.get(temp);
-        decryptingCipher.update(temp);  // discard IV preimage byte array
-        ivRead = false;
+      startEncrypt();
+      Util.rand(ivPreImage);
+      try {
+        return encryptingCipher.update(ivPreImage, 0, BLOCK_SIZE, output,
+            outputOffset);
+      } catch (javax.crypto.ShortBufferException e) {
+        throw new ShortBufferException(e);
       }
+    }
+
+    @Override
+    public int updateDecrypt(ByteBuffer input, ByteBuffer output)
+        throws KeyczarException {
+      discardPreImage(input);
       try {
         return decryptingCipher.update(input, output);
       } catch (javax.crypto.ShortBufferException e) {
@@ -258,6 +287,18 @@ public class AesKey extends KeyczarKey {
       }
     }
 
+    @Override
+    public int updateDecrypt(byte[] input, int inputOffset, int inputLength,
+        byte[] output, int outputOffset) throws KeyczarException {
+      int discarded = discardPreImage(input, inputOffset, inputLength);
+      try {
+        return decryptingCipher.update(input, inputOffset + discarded,
+            inputLength - discarded, output, outputOffset);
+      } catch (javax.crypto.ShortBufferException e) {
+        throw new ShortBufferException(e);
+      }
+    }
+
     @Override
     public int updateEncrypt(ByteBuffer input, ByteBuffer output)
         throws KeyczarException {
@@ -268,28 +309,54 @@ public class AesKey extends KeyczarKey {
       }
     }
 
+    @Override
+    public int updateEncrypt(byte[] input, int inputOffset, int inputLength,
+        byte[] output, int outputOffset) throws KeyczarException {
+      try {
+        return encryptingCipher.update(input, inputOffset, inputLength,
+            output, outputOffset);
+      } catch (javax.crypto.ShortBufferException e) {
+        throw new ShortBufferException(e);
+      }
+    }
+
     @Override
     public int doFinalDecrypt(ByteBuffer input, ByteBuffer output)
         throws KeyczarException {
-      if (ivRead) {
-        if (input.remaining() == 0) {
-          // This can occur if someone encrypts an 0-length array
-          return 0;
-        }
-        // The next output block will be the IV preimage, which we'll discard
-        byte[] temp = new byte[BLOCK_SIZE];
-        input.get(temp);
-        decryptingCipher.update(temp);  // discard IV preimage byte array
-        ivRead = false;
-      }
+      discardPreImage(input);
+      checkPreImageDiscarded();
       try {
+        int written;
         if (input.remaining() == 0) {
           byte[] outputBytes = decryptingCipher.doFinal();
           output.put(outputBytes);
-          return outputBytes.length;
+          written = outputBytes.length;
         } else {
-          return decryptingCipher.doFinal(input, output);
+          written = decryptingCipher.doFinal(input, output);
         }
+        decrypting = false;
+        return written;
+      } catch (GeneralSecurityException e) {
+        throw new KeyczarException(e);
+      }
+    }
+
+    @Override
+    public int doFinalDecrypt(byte[] input, int inputOffset, int inputLength,
+        byte[] output, int outputOffset) throws KeyczarException {
+      int discarded = discardPreImage(input, inputOffset, inputLength);
+      checkPreImageDiscarded();
+      try {
+        // The JCE copies whatever doFinal() is given to strip the padding, so
+        // it is only given the final block, which the cipher holds back
+        int written = decryptingCipher.update(input, inputOffset + discarded,
+            inputLength - discarded, output, outputOffset);
+        written += decryptingCipher.doFinal(input, inputOffset, 0, output,
+            outputOffset + written);
+        decrypting = false;
+        return written;
+      } catch (javax.crypto.ShortBufferException e) {
+        throw new ShortBufferException(e);
       } catch (GeneralSecurityException e) {
         throw new KeyczarException(e);
       }
@@ -299,7 +366,29 @@ public class AesKey extends KeyczarKey {
     public int doFinalEncrypt(ByteBuffer input, ByteBuffer output)
         throws KeyczarException {
       try {
-        return encryptingCipher.doFinal(input, output);
+        int written = encryptingCipher.doFinal(input, output);
+        encrypting = false;
+        return written;
+      } catch (GeneralSecurityException e) {
+        throw new KeyczarException(e);
+      }
+    }
+
+    @Override
+    public int doFinalEncrypt(byte[] input, int inputOffset, int inputLength,
+        byte[] output, int outputOffset) throws KeyczarException {
+      try {
+        // The JCE copies whatever doFinal() is given to append the padding,
+        // so it is only given the final partial block
+        int whole = inputLength / BLOCK_SIZE * BLOCK_SIZE;
+        int written = encryptingCipher.update(input, inputOffset, whole,
+            output, outputOffset);
+        written += encryptingCipher.doFinal(input, inputOffset + whole,
+            inputLength - whole, output, outputOffset + written);
+        encrypting = false;
+        return written;
+      } catch (javax.crypto.ShortBufferException e) {
+        throw new ShortBufferException(e);
       } catch (GeneralSecurityException e) {
         throw new KeyczarException(e);
       }
@@ -309,5 +398,83 @@ public class AesKey extends KeyczarKey {
     public int maxOutputSize(int inputLen) {
       return mode.getOutputSize(BLOCK_SIZE, inputLen);
     }
+
+    private void initCipher(Cipher cipher, int opmode)
+        throws GeneralSecurityException {
+      cipher.init(opmode, aesKey, new IvParameterSpec(new byte[BLOCK_SIZE]));
+    }
+
+    /**
+     * Readies the encrypting cipher for a new message. A message which was
+     * started and never finished, say because it failed, leaves input
+     * buffered in the cipher, so the cipher is reinitialized.
+     */
+    private void startEncrypt() throws KeyczarException {
+      if (encrypting) {
+        try {
+          initCipher(encryptingCipher, Cipher.ENCRYPT_MODE);
+        } catch (GeneralSecurityException e) {
+          throw new KeyczarException(e);
+        }
+      }
+      encrypting = true;
+    }
+
+    private void startDecrypt() throws KeyczarException {
+      if (decrypting) {
+        try {
+          initCipher(decryptingCipher, Cipher.DECRYPT_MODE);
+        } catch (GeneralSecurityException e) {
+          throw new KeyczarException(e);
+        }
+      }
+      decrypting = true;
+      preImageRemaining = BLOCK_SIZE;
+    }
+
+    /**
+     * Feeds the block following the IV through the cipher, which releases
+     * the IV preimage decrypted from the IV into the discard buffer. The
+     * block may arrive over several calls.
+     *
+     * @return The number of bytes of input consumed
+     */
+    private int discardPreImage(byte[] input, int inputOffset,
+        int inputLength) throws KeyczarException {
+      int length = Math.min(inputLength, preImageRemaining);
+      if (length == 0) {
+        return 0;
+      }
+      try {
+        decryptingCipher.update(input, inputOffset, length, discardBuffer, 0);
+      } catch (javax.crypto.ShortBufferException e) {
+        throw new ShortBufferException(e);
+      }
+      preImageRemaining -= length;
+      return length;
+    }
+
+    private void discardPreImage(ByteBuffer input) throws KeyczarException {
+      if (input.hasArray()) {
+        int discarded = discardPreImage(input.array(),
+            input.arrayOffset() + input.position(), input.remaining());
+        input.position(input.position() + discarded);
+      } else {
+        int length = Math.min(input.remaining(), preImageRemaining);
+        input.get(ivPreImage, 0, length);
+        discardPreImage(ivPreImage, 0, length);
+      }
+    }
+
+    /**
+     * Fails a ciphertext which ends before a block following the IV. Even an
+     * empty plaintext has a block of padding.
+     */
+    private void checkPreImageDiscarded() throws KeyczarException {
+      if (preImageRemaining > 0) {
+        throw new ShortCiphertextException(
+            2 * BLOCK_SIZE - preImageRemaining);
+      }
+    }
   }
 }
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keyczar;
+
+import org.keyczar.exceptions.KeyczarException;
+
+/**
+ * Implemented by encrypting and decrypting streams which can work directly on
+ * byte arrays. Unlike the ByteBuffer methods of
+ * {@link org.keyczar.interfaces.EncryptingStream} and
+ * {@link org.keyczar.interfaces.DecryptingStream}, these need no buffers,
+ * so callers holding arrays avoid wrapping them.
+ *
+ * Each method writes at most up to the end of the output array and returns
+ * the number of bytes written. If the output array is too small, a
+ * ShortBufferException is thrown. Only doFinalDecrypt() may have written
+ * some output by then, since the length of the plaintext isn't known until
+ * its final block is decrypted.
+ */
+interface ArrayCipherStream {
+
+  /**
+   * Writes the IV to the output, as
+   * {@link org.keyczar.interfaces.EncryptingStream#initEncrypt}.
+   */
+  int initEncrypt(byte[] output, int outputOffset) throws KeyczarException;
+
+  int updateEncrypt(byte[] input, int inputOffset, int inputLength,
+      byte[] output, int outputOffset) throws KeyczarException;
+
+  int doFinalEncrypt(byte[] input, int inputOffset, int inputLength,
+      byte[] output, int outputOffset) throws KeyczarException;
+
+  /**
+   * Reads the IV from the input, as
+   * {@link org.keyczar.interfaces.DecryptingStream#initDecrypt}.
+   *
+   * @return The number of bytes of input consumed
+   */
+  int initDecrypt(byte[] input, int inputOffset, int inputLength)
+      throws KeyczarException;
+
+  int updateDecrypt(byte[] input, int inputOffset, int inputLength,
+      byte[] output, int outputOffset) throws KeyczarException;
+
+  int doFinalDecrypt(byte[] input, int inputOffset, int inputLength,
+      byte[] output, int outputOffset) throws KeyczarException;
+}
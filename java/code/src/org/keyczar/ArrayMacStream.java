@@ -0,0 +1,45 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keyczar;
+
+import org.keyczar.exceptions.KeyczarException;
+
+/**
+ * Implemented by signing and verifying streams which can work directly on
+ * byte arrays, without wrapping them in buffers. The stream must first be
+ * initialized with {@link org.keyczar.interfaces.SigningStream#initSign} or
+ * {@link org.keyczar.interfaces.VerifyingStream#initVerify}.
+ */
+interface ArrayMacStream {
+
+  void update(byte[] input, int inputOffset, int inputLength)
+      throws KeyczarException;
+
+  /**
+   * Writes the signature to the output.
+   *
+   * @return The number of bytes written
+   * @throws KeyczarException If the output array is too small
+   */
+  int sign(byte[] output, int outputOffset) throws KeyczarException;
+
+  /**
+   * Checks the signature of the given length at the given offset.
+   */
+  boolean verify(byte[] signature, int signatureOffset, int signatureLength)
+      throws KeyczarException;
+}
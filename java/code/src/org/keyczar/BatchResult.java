@@ -0,0 +1,98 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keyczar;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The outputs of a batch operation, such as
+ * {@link Encrypter#encryptBatch(java.util.List)}, stored back to back in a
+ * single buffer. Output i occupies the bytes from offset(i) up to but not
+ * including offset(i + 1).
+ */
+public final class BatchResult {
+  private final byte[] data;
+  private final int[] offsets;
+
+  /**
+   * @param data The outputs, stored back to back
+   * @param offsets The start of each output, followed by the end of the last
+   */
+  BatchResult(byte[] data, int[] offsets) {
+    this.data = data;
+    this.offsets = offsets;
+  }
+
+  /**
+   * Returns the number of outputs in this batch.
+   */
+  public int size() {
+    return offsets.length - 1;
+  }
+
+  /**
+   * Returns the offset of the given output in the buffer returned by
+   * {@link #buffer()}. offset(size()) is the total length of all outputs.
+   */
+  public int offset(int index) {
+    return offsets[index];
+  }
+
+  /**
+   * Returns the length of the given output.
+   */
+  public int length(int index) {
+    return offsets[index + 1] - offsets[index];
+  }
+
+  /**
+   * Returns a read-only view of all of the outputs, positioned at the start
+   * of the first output and limited to the end of the last.
+   */
+  public ByteBuffer buffer() {
+    ByteBuffer buffer = ByteBuffer.wrap(data, 0, offsets[size()]);
+    return buffer.asReadOnlyBuffer();
+  }
+
+  /**
+   * Returns a read-only view of the given output.
+   */
+  public ByteBuffer get(int index) {
+    return ByteBuffer.wrap(data, offsets[index], length(index))
+        .slice().asReadOnlyBuffer();
+  }
+
+  /**
+   * Returns a copy of the given output.
+   */
+  public byte[] toByteArray(int index) {
+    byte[] output = new byte[length(index)];
+    System.arraycopy(data, offsets[index], output, 0, output.length);
+    return output;
+  }
+
+  /**
+   * Returns a copy of every output.
+   */
+  public byte[][] toByteArrays() {
+    byte[][] outputs = new byte[size()][];
+    for (int i = 0; i < outputs.length; i++) {
+      outputs[i] = toByteArray(i);
+    }
+    return outputs;
+  }
+}
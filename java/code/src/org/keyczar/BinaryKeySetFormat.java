@@ -0,0 +1,330 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keyczar;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.keyczar.enums.CipherMode;
+import org.keyczar.enums.RsaPadding;
+import org.keyczar.exceptions.KeyczarException;
+import org.keyczar.exceptions.UnsupportedTypeException;
+import org.keyczar.i18n.Messages;
+import org.keyczar.interfaces.KeyType;
+import org.keyczar.util.Base64Coder;
+import org.keyczar.util.Util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.interfaces.DSAPrivateKey;
+import java.security.interfaces.DSAPublicKey;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.DSAPrivateKeySpec;
+import java.security.spec.DSAPublicKeySpec;
+import java.security.spec.RSAPrivateCrtKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reads and writes key sets in a compact binary format, which holds the
+ * metadata and every version's key in one file. Keys are stored as raw key
+ * material rather than JSON with Base64 strings, so they are built straight
+ * into JCE keys. JSON remains the canonical format, and the one other
+ * Keyczar implementations read.
+ *
+ * All integers are big-endian, and byte strings are prefixed with their
+ * length as an int:
+ *
+ * <pre>
+ * int     magic "KZKS"
+ * byte    format version, currently 1
+ * bytes   metadata, as UTF-8 JSON
+ * int     number of versions
+ * then for each version:
+ *   int   version number
+ *   bytes key record
+ * </pre>
+ *
+ * A key record is a sequence of byte strings, whose meaning depends on the
+ * key type. Integers are stored in two's complement form, as
+ * {@link BigInteger#toByteArray} produces:
+ * <ul>
+ *   <li>AES: cipher mode, the AES key, the HMAC key
+ *   <li>HMAC: the HMAC key
+ *   <li>RSA private: padding, modulus, public exponent, private exponent,
+ *   p, q, p exponent, q exponent, CRT coefficient
+ *   <li>RSA public: padding, modulus, public exponent
+ *   <li>DSA private: y, p, q, g, x
+ *   <li>DSA public: y, p, q, g
+ * </ul>
+ * The cipher mode and RSA padding are their names in UTF-8, or empty if they
+ * aren't set.
+ */
+final class BinaryKeySetFormat {
+  static final int MAGIC = 0x4B5A4B53;
+  static final byte FORMAT_VERSION = 1;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private BinaryKeySetFormat() {
+    // Don't instantiate
+  }
+
+  /**
+   * The contents of a binary key set file. Key records are read-only views
+   * of the file's bytes.
+   */
+  static final class Contents {
+    final String metadata;
+    final Map<Integer, ByteBuffer> records;
+
+    Contents(String metadata, Map<Integer, ByteBuffer> records) {
+      this.metadata = metadata;
+      this.records = records;
+    }
+  }
+
+  /**
+   * Serializes the given key set.
+   *
+   * @throws KeyczarException If the key set is encrypted or of a type the
+   * format doesn't support
+   */
+  static byte[] write(KeyMetadata metadata, Map<KeyVersion, KeyczarKey> keys)
+      throws KeyczarException {
+    if (metadata.isEncrypted()) {
+      throw new KeyczarException(
+          Messages.getString("BinaryKeySetFormat.Encrypted"));
+    }
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream output = new DataOutputStream(bytes);
+      output.writeInt(MAGIC);
+      output.writeByte(FORMAT_VERSION);
+      writeBytes(output, metadata.toString().getBytes(UTF_8));
+      output.writeInt(keys.size());
+      for (Map.Entry<KeyVersion, KeyczarKey> entry : keys.entrySet()) {
+        output.writeInt(entry.getKey().getVersionNumber());
+        writeBytes(output, record(metadata.getType(), entry.getValue()));
+      }
+      output.close();
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      // Not thrown when writing to memory
+      throw new KeyczarException(e);
+    } catch (JSONException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static byte[] record(KeyType type, KeyczarKey key)
+      throws IOException, JSONException, KeyczarException {
+    JSONObject json = key.toJson();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream output = new DataOutputStream(bytes);
+    if (type == DefaultKeyType.AES) {
+      writeBytes(output, json.optString("mode", "").getBytes(UTF_8));
+      writeBase64(output, json, "aesKeyString");
+      writeBase64(output, json.getJSONObject("hmacKey"), "hmacKeyString");
+    } else if (type == DefaultKeyType.HMAC_SHA1) {
+      writeBase64(output, json, "hmacKeyString");
+    } else if (type == DefaultKeyType.RSA_PRIV) {
+      writeRsaPublic(output, json.getJSONObject("publicKey"));
+      for (String field : new String[] { "privateExponent", "primeP",
+          "primeQ", "primeExponentP", "primeExponentQ", "crtCoefficient" }) {
+        writeBase64(output, json, field);
+      }
+    } else if (type == DefaultKeyType.RSA_PUB) {
+      writeRsaPublic(output, json);
+    } else if (type == DefaultKeyType.DSA_PRIV) {
+      writeDsaPublic(output, json.getJSONObject("publicKey"));
+      writeBase64(output, json, "x");
+    } else if (type == DefaultKeyType.DSA_PUB) {
+      writeDsaPublic(output, json);
+    } else {
+      throw new UnsupportedTypeException(type);
+    }
+    output.close();
+    return bytes.toByteArray();
+  }
+
+  private static void writeRsaPublic(DataOutputStream output, JSONObject json)
+      throws IOException, JSONException, KeyczarException {
+    String padding = json.optString("padding", "");
+    writeBytes(output, padding.getBytes(UTF_8));
+    writeBase64(output, json, "modulus");
+    writeBase64(output, json, "publicExponent");
+  }
+
+  private static void writeDsaPublic(DataOutputStream output, JSONObject json)
+      throws IOException, JSONException, KeyczarException {
+    for (String field : new String[] { "y", "p", "q", "g" }) {
+      writeBase64(output, json, field);
+    }
+  }
+
+  private static void writeBase64(DataOutputStream output, JSONObject json,
+      String field) throws IOException, JSONException, KeyczarException {
+    writeBytes(output, Base64Coder.decodeWebSafe(json.getString(field)));
+  }
+
+  private static void writeBytes(DataOutputStream output, byte[] bytes)
+      throws IOException {
+    output.writeInt(bytes.length);
+    output.write(bytes);
+  }
+
+  /**
+   * Parses the header and index of a binary key set.
+   *
+   * @param file The file's contents. Its position is not changed.
+   * @param location Where the file was read from, for error messages
+   * @throws KeyczarException If the file isn't in a supported version of the
+   * format
+   */
+  static Contents read(ByteBuffer file, String location)
+      throws KeyczarException {
+    ByteBuffer input = file.duplicate();
+    try {
+      if (input.getInt() != MAGIC || input.get() != FORMAT_VERSION) {
+        throw new KeyczarException(
+            Messages.getString("BinaryKeySetFormat.BadFormat", location));
+      }
+      ByteBuffer metadata = readBytes(input);
+      byte[] metadataBytes = new byte[metadata.remaining()];
+      metadata.get(metadataBytes);
+      int count = input.getInt();
+      if (count < 0) {
+        throw new KeyczarException(
+            Messages.getString("BinaryKeySetFormat.BadFormat", location));
+      }
+      Map<Integer, ByteBuffer> records =
+          new LinkedHashMap<Integer, ByteBuffer>();
+      for (int i = 0; i < count; i++) {
+        int version = input.getInt();
+        records.put(version, readBytes(input).asReadOnlyBuffer());
+      }
+      return new Contents(new String(metadataBytes, UTF_8), records);
+    } catch (BufferUnderflowException e) {
+      throw new KeyczarException(
+          Messages.getString("BinaryKeySetFormat.BadFormat", location), e);
+    } catch (IllegalArgumentException e) {
+      throw new KeyczarException(
+          Messages.getString("BinaryKeySetFormat.BadFormat", location), e);
+    }
+  }
+
+  /**
+   * Builds the key held in the given record.
+   *
+   * @param type The key set's type
+   * @param record The key record. Its position is not changed.
+   */
+  static KeyczarKey readKey(KeyType type, ByteBuffer record)
+      throws KeyczarException {
+    ByteBuffer input = record.duplicate();
+    try {
+      if (type == DefaultKeyType.AES) {
+        CipherMode mode = readEnum(CipherMode.class, input);
+        byte[] aesKey = readArray(input);
+        return new AesKey(aesKey.length * 8, aesKey,
+            new HmacKey(readArray(input)), mode);
+      } else if (type == DefaultKeyType.HMAC_SHA1) {
+        return new HmacKey(readArray(input));
+      } else if (type == DefaultKeyType.RSA_PRIV) {
+        RsaPadding padding = readEnum(RsaPadding.class, input);
+        RSAPrivateCrtKeySpec spec = new RSAPrivateCrtKeySpec(
+            readInteger(input), readInteger(input), readInteger(input),
+            readInteger(input), readInteger(input), readInteger(input),
+            readInteger(input), readInteger(input));
+        return new RsaPrivateKey((RSAPrivateCrtKey)
+            KeyFactory.getInstance("RSA").generatePrivate(spec), padding);
+      } else if (type == DefaultKeyType.RSA_PUB) {
+        RsaPadding padding = readEnum(RsaPadding.class, input);
+        RSAPublicKeySpec spec =
+            new RSAPublicKeySpec(readInteger(input), readInteger(input));
+        return new RsaPublicKey((RSAPublicKey)
+            KeyFactory.getInstance("RSA").generatePublic(spec), padding);
+      } else if (type == DefaultKeyType.DSA_PRIV) {
+        BigInteger y = readInteger(input);
+        BigInteger p = readInteger(input);
+        BigInteger q = readInteger(input);
+        BigInteger g = readInteger(input);
+        KeyFactory factory = KeyFactory.getInstance("DSA");
+        DsaPublicKey publicKey = new DsaPublicKey((DSAPublicKey)
+            factory.generatePublic(new DSAPublicKeySpec(y, p, q, g)));
+        DSAPrivateKeySpec spec =
+            new DSAPrivateKeySpec(readInteger(input), p, q, g);
+        return new DsaPrivateKey(
+            (DSAPrivateKey) factory.generatePrivate(spec), publicKey);
+      } else if (type == DefaultKeyType.DSA_PUB) {
+        DSAPublicKeySpec spec = new DSAPublicKeySpec(readInteger(input),
+            readInteger(input), readInteger(input), readInteger(input));
+        return new DsaPublicKey((DSAPublicKey)
+            KeyFactory.getInstance("DSA").generatePublic(spec));
+      }
+    } catch (GeneralSecurityException e) {
+      throw new KeyczarException(e);
+    } catch (BufferUnderflowException e) {
+      throw new KeyczarException(
+          Messages.getString("BinaryKeySetFormat.BadRecord"), e);
+    } catch (IllegalArgumentException e) {
+      throw new KeyczarException(
+          Messages.getString("BinaryKeySetFormat.BadRecord"), e);
+    }
+    throw new UnsupportedTypeException(type);
+  }
+
+  private static <T extends Enum<T>> T readEnum(Class<T> enumType,
+      ByteBuffer input) {
+    return Util.deserializeEnum(enumType,
+        UTF_8.decode(readBytes(input)).toString());
+  }
+
+  private static BigInteger readInteger(ByteBuffer input) {
+    return new BigInteger(readArray(input));
+  }
+
+  private static byte[] readArray(ByteBuffer input) {
+    ByteBuffer bytes = readBytes(input);
+    byte[] array = new byte[bytes.remaining()];
+    bytes.get(array);
+    return array;
+  }
+
+  /**
+   * Returns a view of the next length-prefixed byte string, advancing past
+   * it.
+   */
+  private static ByteBuffer readBytes(ByteBuffer input) {
+    int length = input.getInt();
+    if (length < 0 || length > input.remaining()) {
+      throw new BufferUnderflowException();
+    }
+    ByteBuffer bytes = input.slice();
+    bytes.limit(length);
+    input.position(input.position() + length);
+    return bytes;
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keyczar;
+
+import org.keyczar.exceptions.KeyczarException;
+import org.keyczar.i18n.Messages;
+import org.keyczar.interfaces.KeyBuildingReader;
+import org.keyczar.interfaces.KeyType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Reads a key set from a single file in the binary format written by
+ * KeyczarTool's convert command. See {@link BinaryKeySetFormat}.
+ *
+ * The file is read whole each time the metadata is read, and the keys are
+ * read from that copy, so a key set reloaded through this reader sees a
+ * consistent file. Keyczar objects build keys directly from the binary
+ * records, through {@link #readKey(KeyType, int)}. Other callers of
+ * {@link #getKey(int)} get the key as JSON, as with any other reader.
+ */
+public class BinaryKeyczarReader implements KeyBuildingReader {
+  private final String location;
+  private volatile BinaryKeySetFormat.Contents contents;
+
+  /**
+   * @param fileLocation The binary key set file
+   */
+  public BinaryKeyczarReader(String fileLocation) {
+    location = fileLocation;
+  }
+
+  @Override
+  public String getKey(int version) throws KeyczarException {
+    BinaryKeySetFormat.Contents current = current();
+    return readKey(current, KeyMetadata.read(current.metadata).getType(),
+        version).toString();
+  }
+
+  @Override
+  public String getKey() throws KeyczarException {
+    BinaryKeySetFormat.Contents current = current();
+    KeyMetadata metadata = KeyMetadata.read(current.metadata);
+    return readKey(current, metadata.getType(),
+        metadata.getPrimaryVersion().getVersionNumber()).toString();
+  }
+
+  @Override
+  public String getMetadata() throws KeyczarException {
+    BinaryKeySetFormat.Contents read = read();
+    contents = read;
+    return read.metadata;
+  }
+
+  @Override
+  public KeyczarKey readKey(KeyType type, int version)
+      throws KeyczarException {
+    return readKey(current(), type, version);
+  }
+
+  private KeyczarKey readKey(BinaryKeySetFormat.Contents current,
+      KeyType type, int version) throws KeyczarException {
+    ByteBuffer record = current.records.get(version);
+    if (record == null) {
+      throw new KeyczarException(Messages.getString(
+          "BinaryKeyczarReader.MissingVersion", String.valueOf(version),
+          location));
+    }
+    return BinaryKeySetFormat.readKey(type, record);
+  }
+
+  private BinaryKeySetFormat.Contents current() throws KeyczarException {
+    BinaryKeySetFormat.Contents current = contents;
+    if (current == null) {
+      current = read();
+      contents = current;
+    }
+    return current;
+  }
+
+  private BinaryKeySetFormat.Contents read() throws KeyczarException {
+    try {
+      return BinaryKeySetFormat.read(
+          ByteBuffer.wrap(Files.readAllBytes(Paths.get(location))), location);
+    } catch (IOException e) {
+      throw new KeyczarException(
+          Messages.getString("KeyczarFileReader.FileError", location), e);
+    }
+  }
+}
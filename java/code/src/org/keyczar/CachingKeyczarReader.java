@@ -0,0 +1,281 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keyczar;
+
+import org.keyczar.exceptions.KeyczarException;
+import org.keyczar.interfaces.EncryptedReader;
+import org.keyczar.interfaces.KeyBuildingReader;
+import org.keyczar.interfaces.KeyType;
+import org.keyczar.interfaces.KeyczarReader;
+import org.keyczar.util.Clock;
+import org.keyczar.util.SystemClock;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wraps another KeyczarReader, caching the metadata and key strings it
+ * returns. When wrapping a {@link KeyczarEncryptedReader}, the decrypted key
+ * strings are cached, so each key is only decrypted once. The primary key is
+ * found from the cached metadata, rather than by parsing it on every call.
+ *
+ * Entries expire after a time to live, and at most a given number of keys are
+ * cached, evicting the least recently used. Failed reads may also be cached
+ * for a shorter time, so a missing or unreadable key isn't retried on every
+ * call.
+ *
+ * Instances are created with {@link #wrap}, which returns an
+ * {@link EncryptedReader} if the wrapped reader is one. If the wrapped reader
+ * is a {@link KeyBuildingReader}, keys are built by it directly, and are not
+ * cached.
+ */
+public class CachingKeyczarReader implements KeyBuildingReader {
+  public static final long DEFAULT_TTL = 5 * 60 * 1000;
+  public static final int DEFAULT_MAX_KEYS = 1000;
+  // The key under which the metadata is cached, since no version is negative
+  private static final int METADATA = -1;
+
+  private final KeyczarReader reader;
+  private final long ttl;
+  private final int maxKeys;
+  private final long negativeTtl;
+  private Clock clock = new SystemClock();
+  private final LinkedHashMap<Integer, Entry> entries =
+      new LinkedHashMap<Integer, Entry>(16, 0.75f, true);
+  // The primary version from the metadata entry, parsed when first needed
+  private String parsedMetadata;
+  private int primaryVersion;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong negativeHits = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * A cached string, or the message and cause of the exception thrown while
+   * reading it. The exception itself isn't kept, since it belongs to the
+   * caller it was thrown to.
+   */
+  private static final class Entry {
+    final String value;
+    final boolean failed;
+    final String errorMessage;
+    final Throwable errorCause;
+    final long expires;
+
+    Entry(String value, long expires) {
+      this.value = value;
+      this.failed = false;
+      this.errorMessage = null;
+      this.errorCause = null;
+      this.expires = expires;
+    }
+
+    Entry(KeyczarException error, long expires) {
+      this.value = null;
+      this.failed = true;
+      this.errorMessage = error.getMessage();
+      this.errorCause = error.getCause();
+      this.expires = expires;
+    }
+  }
+
+  private static final class Encrypted extends CachingKeyczarReader
+      implements EncryptedReader {
+    Encrypted(KeyczarReader reader, long ttl, int maxKeys, long negativeTtl) {
+      super(reader, ttl, maxKeys, negativeTtl);
+    }
+  }
+
+  CachingKeyczarReader(KeyczarReader reader, long ttl, int maxKeys,
+      long negativeTtl) {
+    if (ttl < 0 || maxKeys < 0 || negativeTtl < 0) {
+      throw new IllegalArgumentException();
+    }
+    this.reader = reader;
+    this.ttl = ttl;
+    this.maxKeys = maxKeys;
+    this.negativeTtl = negativeTtl;
+  }
+
+  /**
+   * Wraps the given reader with a cache using the default time to live and
+   * size, and without caching failures.
+   */
+  public static CachingKeyczarReader wrap(KeyczarReader reader) {
+    return wrap(reader, DEFAULT_TTL, DEFAULT_MAX_KEYS, 0);
+  }
+
+  /**
+   * Wraps the given reader with a cache.
+   *
+   * @param reader The reader to cache
+   * @param ttl The number of milliseconds entries are cached for, or 0 to
+   * cache them until evicted
+   * @param maxKeys The maximum number of key strings to cache
+   * @param negativeTtl The number of milliseconds failed reads are cached
+   * for, or 0 to retry them every time
+   * @return A caching reader, which is an EncryptedReader if the wrapped
+   * reader is
+   */
+  public static CachingKeyczarReader wrap(KeyczarReader reader, long ttl,
+      int maxKeys, long negativeTtl) {
+    if (reader instanceof EncryptedReader) {
+      return new Encrypted(reader, ttl, maxKeys, negativeTtl);
+    }
+    return new CachingKeyczarReader(reader, ttl, maxKeys, negativeTtl);
+  }
+
+  @Override
+  public String getKey(int version) throws KeyczarException {
+    return get(version);
+  }
+
+  @Override
+  public String getKey() throws KeyczarException {
+    String metadata = get(METADATA);
+    int version;
+    synchronized (this) {
+      if (!metadata.equals(parsedMetadata)) {
+        primaryVersion = KeyMetadata.read(metadata).getPrimaryVersion()
+            .getVersionNumber();
+        parsedMetadata = metadata;
+      }
+      version = primaryVersion;
+    }
+    return get(version);
+  }
+
+  @Override
+  public String getMetadata() throws KeyczarException {
+    return get(METADATA);
+  }
+
+  @Override
+  public KeyczarKey readKey(KeyType type, int version)
+      throws KeyczarException {
+    if (reader instanceof KeyBuildingReader) {
+      return ((KeyBuildingReader) reader).readKey(type, version);
+    }
+    return null;
+  }
+
+  /**
+   * Discards every cached entry, so the next reads go to the wrapped reader.
+   */
+  public synchronized void invalidateAll() {
+    entries.clear();
+    parsedMetadata = null;
+  }
+
+  /**
+   * Returns the number of reads answered from the cache, including cached
+   * failures.
+   */
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  /**
+   * Returns the number of reads passed on to the wrapped reader.
+   */
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /**
+   * Returns the number of reads answered by rethrowing a cached failure.
+   */
+  public long getNegativeHitCount() {
+    return negativeHits.get();
+  }
+
+  /**
+   * Returns the number of key strings evicted to keep within the maximum
+   * size. Expired entries aren't counted.
+   */
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  /**
+   * Returns the fraction of reads answered from the cache, or 0 if there
+   * have been none.
+   */
+  public double getHitRate() {
+    long hitCount = hits.get();
+    long total = hitCount + misses.get();
+    return total == 0 ? 0 : (double) hitCount / total;
+  }
+
+  void setClock(Clock clock) {
+    this.clock = clock;
+  }
+
+  private String get(int version) throws KeyczarException {
+    Entry entry;
+    synchronized (this) {
+      entry = entries.get(version);
+      if (entry != null && entry.expires <= clock.now()) {
+        entries.remove(version);
+        entry = null;
+      }
+    }
+    if (entry != null) {
+      hits.incrementAndGet();
+      if (entry.failed) {
+        negativeHits.incrementAndGet();
+        throw new KeyczarException(entry.errorMessage, entry.errorCause);
+      }
+      return entry.value;
+    }
+
+    // Read outside the lock, so a slow read doesn't hold up other versions.
+    // Concurrent misses for one version may both read it.
+    misses.incrementAndGet();
+    try {
+      String value =
+          version == METADATA ? reader.getMetadata() : reader.getKey(version);
+      put(version, new Entry(value, expiry(ttl)));
+      return value;
+    } catch (KeyczarException e) {
+      if (negativeTtl > 0) {
+        put(version, new Entry(e, expiry(negativeTtl)));
+      }
+      throw e;
+    }
+  }
+
+  private long expiry(long timeToLive) {
+    return timeToLive == 0 ? Long.MAX_VALUE : clock.now() + timeToLive;
+  }
+
+  private synchronized void put(int version, Entry entry) {
+    entries.put(version, entry);
+    int keyCount = entries.size() - (entries.containsKey(METADATA) ? 1 : 0);
+    Iterator<Map.Entry<Integer, Entry>> eldest =
+        entries.entrySet().iterator();
+    while (keyCount > maxKeys && eldest.hasNext()) {
+      if (eldest.next().getKey() != METADATA) {
+        eldest.remove();
+        keyCount--;
+        evictions.incrementAndGet();
+      }
+    }
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keyczar;
+
+import org.keyczar.interfaces.Stream;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Caches at most one stream per carrier thread, for applications running on
+ * virtual threads. A virtual thread only uses a stream while it is mounted
+ * on a carrier, so no more streams than carriers are ever in use at once by
+ * short operations, and keeping any more only wastes memory.
+ *
+ * Streams are kept in an array of slots claimed with compare-and-set, so
+ * borrowing and returning a stream never takes a lock, and a virtual thread
+ * is never pinned to its carrier waiting for one. Nor is any state kept per
+ * thread, which would hold a stream for every one of many virtual threads.
+ * Since so few streams are kept, they aren't evicted when idle.
+ *
+ * @param <T>
+ */
+class CarrierBoundedStreamCache<T extends Stream> implements StreamCache<T> {
+  // The property the JDK sizes its virtual thread scheduler by
+  private static final String PARALLELISM_PROPERTY =
+      "jdk.virtualThreadScheduler.parallelism";
+
+  private final AtomicReferenceArray<T> slots;
+
+  /**
+   * @param maxIdle The maximum number of streams to keep, which is capped at
+   * the number of carrier threads
+   */
+  CarrierBoundedStreamCache(int maxIdle) {
+    slots = new AtomicReferenceArray<T>(Math.min(maxIdle, carrierCount()));
+  }
+
+  @Override
+  public T poll() {
+    int length = slots.length();
+    if (length == 0) {
+      return null;
+    }
+    // Start at a random slot, so threads don't all race for the first
+    int start = ThreadLocalRandom.current().nextInt(length);
+    for (int i = 0; i < length; i++) {
+      int slot = (start + i) % length;
+      T stream = slots.get(slot);
+      if (stream != null && slots.compareAndSet(slot, stream, null)) {
+        return stream;
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public void add(T stream) {
+    int length = slots.length();
+    for (int i = 0; i < length; i++) {
+      if (slots.get(i) == null && slots.compareAndSet(i, null, stream)) {
+        return;
+      }
+    }
+    // Every slot is full, so the stream is dropped
+  }
+
+  int size() {
+    int size = 0;
+    for (int i = 0; i < slots.length(); i++) {
+      if (slots.get(i) != null) {
+        size++;
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Returns the number of carrier threads virtual threads are scheduled on,
+   * which is the number of processors unless configured otherwise.
+   */
+  static int carrierCount() {
+    String parallelism = System.getProperty(PARALLELISM_PROPERTY);
+    if (parallelism != null) {
+      try {
+        int count = Integer.parseInt(parallelism.trim());
+        if (count > 0) {
+          return count;
+        }
+      } catch (NumberFormatException e) {
+        // Fall back to the JDK's default
+      }
+    }
+    return Runtime.getRuntime().availableProcessors();
+  }
+}
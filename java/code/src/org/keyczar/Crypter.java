@@ -16,20 +16,33 @@
 
 package org.keyczar;
 
+import org.keyczar.enums.KeyLoadingMode;
 import org.keyczar.enums.KeyPurpose;
 import org.keyczar.exceptions.BadVersionException;
 import org.keyczar.exceptions.InvalidSignatureException;
 import org.keyczar.exceptions.KeyNotFoundException;
 import org.keyczar.exceptions.KeyczarException;
+import org.keyczar.exceptions.ShortBufferException;
 import org.keyczar.exceptions.ShortCiphertextException;
+import org.keyczar.exceptions.UnsupportedTypeException;
 import org.keyczar.i18n.Messages;
 import org.keyczar.interfaces.DecryptingStream;
 import org.keyczar.interfaces.KeyczarReader;
 import org.keyczar.interfaces.VerifyingStream;
 import org.keyczar.util.Base64Coder;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 /**
  * Crypters may both encrypt and decrypt data using sets of symmetric or private
@@ -53,6 +66,38 @@ public class Crypter extends Encrypter {
     super(reader);
   }
 
+  /**
+   * Initialize a new Crypter with a KeyczarReader, loading the key versions
+   * concurrently on the given Executor.
+   *
+   * @param reader A reader to read keys from. It must allow keys to be read
+   * from several threads at once.
+   * @param executor The Executor to load versions on, or null to load them
+   * serially
+   * @throws KeyczarException In the event of an IO error reading keys or if the
+   * key set does not have the appropriate purpose.
+   * @see Keyczar#Keyczar(KeyczarReader, Executor)
+   */
+  public Crypter(KeyczarReader reader, Executor executor)
+      throws KeyczarException {
+    super(reader, executor);
+  }
+
+  /**
+   * Initialize a new Crypter with a KeyczarReader, building the keys of
+   * versions other than the primary only once they are used.
+   *
+   * @param reader A reader to read keys from
+   * @param loadingMode When to build the keys of each version
+   * @throws KeyczarException In the event of an IO error reading keys or if the
+   * key set does not have the appropriate purpose.
+   * @see Keyczar#Keyczar(KeyczarReader, Executor, KeyLoadingMode)
+   */
+  public Crypter(KeyczarReader reader, KeyLoadingMode loadingMode)
+      throws KeyczarException {
+    super(reader, loadingMode);
+  }
+
   /**
    * Initialize a new Crypter with a key set location. This will attempt to
    * read the keys using a KeyczarFileReader. The corresponding key set
@@ -85,6 +130,45 @@ public class Crypter extends Encrypter {
     return outputBytes;
   }
 
+  /**
+   * Decrypts the given ciphertext on the default {@link CryptoExecutor},
+   * rather than on the calling thread.
+   *
+   * @param input The input ciphertext. It must not be modified until the
+   * returned future completes.
+   * @return A future completed with the decrypted plaintext, or with a
+   * KeyczarException if the input is malformed, the ciphertext signature
+   * does not verify, the decryption key is not found, or a JCE error occurs.
+   * @see #decryptAsync(byte[], CryptoExecutor)
+   */
+  public CompletableFuture<byte[]> decryptAsync(byte[] input) {
+    return decryptAsync(input, CryptoExecutor.getDefault());
+  }
+
+  /**
+   * Decrypts the given ciphertext on the given executor, rather than on the
+   * calling thread. This keeps expensive private key decryption off threads
+   * that serve I/O.
+   *
+   * @param input The input ciphertext. It must not be modified until the
+   * returned future completes.
+   * @param executor The executor to decrypt on
+   * @return A future completed with the decrypted plaintext, or with a
+   * KeyczarException if the input is malformed, the ciphertext signature
+   * does not verify, the decryption key is not found, or a JCE error occurs.
+   * If the executor has too many operations waiting, the future fails at
+   * once with a RejectedExecutionException.
+   */
+  public CompletableFuture<byte[]> decryptAsync(final byte[] input,
+      CryptoExecutor executor) {
+    return executor.submit(new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws KeyczarException {
+        return decrypt(input);
+      }
+    });
+  }
+
   /**
    * Decrypt the given ciphertext input ByteBuffer and write the decrypted
    * plaintext to the output ByteBuffer
@@ -97,7 +181,19 @@ public class Crypter extends Encrypter {
    */
   public void decrypt(ByteBuffer input, ByteBuffer output)
       throws KeyczarException {
-    ByteBuffer inputCopy = input.asReadOnlyBuffer();
+    decrypt(input, output, null);
+  }
+
+  /**
+   * Decrypts the input into the output. If batchStreams is not null, streams
+   * are taken from and returned to it rather than the keys' stream caches.
+   */
+  private void decrypt(ByteBuffer input, ByteBuffer output,
+      Map<KeyczarKey, DecryptingStream> batchStreams)
+      throws KeyczarException {
+    // A duplicate rather than a read-only view, so streams can use the
+    // backing array directly if there is one
+    ByteBuffer inputCopy = input.duplicate();
     if (inputCopy.remaining() < HEADER_SIZE) {
       throw new ShortCiphertextException(inputCopy.remaining());
     }
@@ -106,12 +202,13 @@ public class Crypter extends Encrypter {
       throw new BadVersionException(version);
     }
 
-    byte[] hash = new byte[KEY_HASH_SIZE];
-    inputCopy.get(hash);
-    Collection<KeyczarKey> keys  = getKey(hash);
+    List<KeyczarKey> keys = getKey(inputCopy, inputCopy.position());
     if (keys == null) {
+      byte[] hash = new byte[KEY_HASH_SIZE];
+      inputCopy.get(hash);
       throw new KeyNotFoundException(hash);
     }
+    inputCopy.position(inputCopy.position() + KEY_HASH_SIZE);
 
     // The input to decrypt is now positioned at the start of the ciphertext
     inputCopy.mark();
@@ -120,16 +217,19 @@ public class Crypter extends Encrypter {
     
     boolean collision = keys.size() > 1;
     
-    for (KeyczarKey key : keys) {
+    // Indexed rather than iterated, so no Iterator is allocated
+    for (int k = 0; k < keys.size(); k++) {
+      KeyczarKey key = keys.get(k);
       error = null;
-      
-      ByteBuffer tempBuffer = output;
-      if (collision) {
-        tempBuffer = ByteBuffer.allocate(output.remaining());
+
+      DecryptingStream cryptStream = null;
+      if (batchStreams != null) {
+        cryptStream = batchStreams.remove(key);
       }
-      
-      DecryptingStream cryptStream = (DecryptingStream) key.getStream();
-      
+      if (cryptStream == null) {
+        cryptStream = (DecryptingStream) key.getStream();
+      }
+
       try {
         VerifyingStream verifyStream = cryptStream.getVerifyingStream();
         if (inputCopy.remaining() < verifyStream.digestSize()) {
@@ -144,16 +244,32 @@ public class Crypter extends Encrypter {
         inputCopy.reset();
         inputCopy.limit(inputCopy.limit() - verifyStream.digestSize());
 
+        if (collision && verifyStream.digestSize() > 0) {
+          // Only the right key may write to the output, so check the
+          // signature before decrypting anything.
+          ByteBuffer signedInput = input.duplicate();
+          signedInput.limit(inputCopy.limit());
+          verifyStream.initVerify();
+          verifyStream.updateVerify(signedInput);
+          if (!verifyStream.verify(signature)) {
+            throw new InvalidSignatureException();
+          }
+          cryptStream.initDecrypt(inputCopy);
+          cryptStream.doFinalDecrypt(inputCopy, output);
+          output.limit(output.position());
+          return;
+        }
+
         // Initialize the crypt stream. This may read an IV if any.
         cryptStream.initDecrypt(inputCopy);
 
         // Verify the header and IV if any
-        ByteBuffer headerAndIvToVerify = input.asReadOnlyBuffer();
+        ByteBuffer headerAndIvToVerify = input.duplicate();
         headerAndIvToVerify.limit(inputCopy.position());
         verifyStream.initVerify();
         verifyStream.updateVerify(headerAndIvToVerify);
 
-        tempBuffer.mark();
+        output.mark();
         // This will process large input in chunks, rather than all at once. This
         // avoids making two passes through memory.
         while (inputCopy.remaining() > DECRYPT_CHUNK_SIZE) {
@@ -170,21 +286,17 @@ public class Crypter extends Encrypter {
           throw new InvalidSignatureException();
         }
         inputCopy.position(lastBlock);
-        cryptStream.doFinalDecrypt(inputCopy, tempBuffer);
-        tempBuffer.limit(tempBuffer.position());
-        if (collision) {
-          //Success copy to final output buffer
-          tempBuffer.rewind();
-          output.put(tempBuffer);
-          output.limit(output.position());
-        }
-        key.addStreamToCacheForReuse(cryptStream);
+        cryptStream.doFinalDecrypt(inputCopy, output);
+        output.limit(output.position());
         return;
       } catch (KeyczarException e) {
         error = e;
       } catch (RuntimeException e) {
         error = new InvalidSignatureException();
       } finally {
+        // Every use of a stream starts by initializing it, so streams are
+        // safe to reuse even after a failure
+        returnStream(key, cryptStream, batchStreams);
         inputCopy.reset();
         inputCopy.limit(inputLimit);
       }
@@ -194,6 +306,390 @@ public class Crypter extends Encrypter {
     }
   }
 
+  private static void returnStream(KeyczarKey key, DecryptingStream stream,
+      Map<KeyczarKey, DecryptingStream> batchStreams) {
+    if (batchStreams != null) {
+      batchStreams.put(key, stream);
+    } else {
+      key.addStreamToCacheForReuse(stream);
+    }
+  }
+
+  /**
+   * Decrypt part of the given input array into the given output array.
+   * Unlike the other decrypt methods, this makes no copies of the ciphertext
+   * or plaintext, so it is suited to decrypting many messages into reused
+   * buffers.
+   *
+   * The ciphertext signature is checked before anything is decrypted, so
+   * nothing is written to the output unless the signature verifies.
+   *
+   * @param input The array holding the ciphertext. Will not be modified
+   * @param inputOffset The offset of the ciphertext in the input array
+   * @param inputLength The length of the ciphertext
+   * @param output The array to write the plaintext to. The plaintext must not
+   * overlap the ciphertext.
+   * @param outputOffset The offset to write the plaintext at
+   * @return The length of the plaintext written
+   * @throws KeyczarException If the input is malformed, the ciphertext
+   * signature does not verify, the decryption key is not found, a JCE error
+   * occurs, or the output array is too small.
+   */
+  public int decrypt(byte[] input, int inputOffset, int inputLength,
+      byte[] output, int outputOffset) throws KeyczarException {
+    if (inputLength < HEADER_SIZE) {
+      throw new ShortCiphertextException(inputLength);
+    }
+    byte version = input[inputOffset];
+    if (version != FORMAT_VERSION) {
+      throw new BadVersionException(version);
+    }
+    List<KeyczarKey> keys = getKey(input, inputOffset + 1);
+    if (keys == null) {
+      byte[] hash = new byte[KEY_HASH_SIZE];
+      System.arraycopy(input, inputOffset + 1, hash, 0, KEY_HASH_SIZE);
+      throw new KeyNotFoundException(hash);
+    }
+
+    KeyczarException error = null;
+    // Key hashes may collide, so find the key whose signature verifies
+    for (int i = 0; i < keys.size(); i++) {
+      KeyczarKey key = keys.get(i);
+      DecryptingStream cryptStream = (DecryptingStream) key.getStream();
+      VerifyingStream verifyStream = cryptStream.getVerifyingStream();
+      if (!(cryptStream instanceof ArrayCipherStream)
+          || !(verifyStream instanceof ArrayMacStream)) {
+        // Keys in a set are all of one type, so none of them work on arrays.
+        // The JCE may need more output space than the plaintext takes, for
+        // example a whole RSA block, so decrypt into a temporary buffer.
+        key.addStreamToCacheForReuse(cryptStream);
+        ByteBuffer plaintext = ByteBuffer.allocate(inputLength);
+        decrypt(ByteBuffer.wrap(input, inputOffset, inputLength), plaintext,
+            null);
+        plaintext.flip();
+        if (plaintext.remaining() > output.length - outputOffset) {
+          throw new ShortBufferException(output.length - outputOffset,
+              plaintext.remaining());
+        }
+        int written = plaintext.remaining();
+        plaintext.get(output, outputOffset, written);
+        return written;
+      }
+
+      try {
+        int signedLength = inputLength - verifyStream.digestSize();
+        if (signedLength < HEADER_SIZE) {
+          error = new ShortCiphertextException(inputLength);
+          continue;
+        }
+        ArrayMacStream macStream = (ArrayMacStream) verifyStream;
+        verifyStream.initVerify();
+        macStream.update(input, inputOffset, signedLength);
+        if (!macStream.verify(input, inputOffset + signedLength,
+            verifyStream.digestSize())) {
+          error = new InvalidSignatureException();
+          continue;
+        }
+
+        ArrayCipherStream arrayStream = (ArrayCipherStream) cryptStream;
+        int position = inputOffset + HEADER_SIZE;
+        int end = inputOffset + signedLength;
+        position += arrayStream.initDecrypt(input, position, end - position);
+        return arrayStream.doFinalDecrypt(input, position, end - position,
+            output, outputOffset);
+      } finally {
+        key.addStreamToCacheForReuse(cryptStream);
+      }
+    }
+    throw error;
+  }
+
+  /**
+   * Decrypt each of the given ciphertexts, writing all of the plaintexts into
+   * a single contiguous buffer. Each key's stream is looked up once for the
+   * whole batch, so this is much cheaper than decrypting many small inputs
+   * one at a time.
+   *
+   * @param inputs The ciphertexts to decrypt. Will not be modified.
+   * @return The plaintexts, in the same order as the inputs
+   * @throws KeyczarException If any input is malformed, a ciphertext
+   * signature does not verify, a decryption key is not found, or a JCE
+   * error occurs. No partial results are returned.
+   */
+  public BatchResult decryptBatch(List<ByteBuffer> inputs)
+      throws KeyczarException {
+    int[] offsets = new int[inputs.size() + 1];
+    int totalInput = 0;
+    for (ByteBuffer input : inputs) {
+      totalInput += input.remaining();
+    }
+    // Plaintexts are never longer than their ciphertexts
+    ByteBuffer output = ByteBuffer.allocate(totalInput);
+    Map<KeyczarKey, DecryptingStream> batchStreams =
+        new IdentityHashMap<KeyczarKey, DecryptingStream>();
+    try {
+      for (int i = 0; i < inputs.size(); i++) {
+        ByteBuffer input = inputs.get(i);
+        output.limit(offsets[i] + input.remaining());
+        output.position(offsets[i]);
+        decrypt(input, output, batchStreams);
+        offsets[i + 1] = output.position();
+      }
+    } finally {
+      for (Map.Entry<KeyczarKey, DecryptingStream> entry
+          : batchStreams.entrySet()) {
+        entry.getKey().addStreamToCacheForReuse(entry.getValue());
+      }
+    }
+    return new BatchResult(output.array(), offsets);
+  }
+
+  /**
+   * Decrypt each of the given ciphertext byte arrays, writing all of the
+   * plaintexts into a single contiguous buffer.
+   *
+   * @param inputs The ciphertexts to decrypt
+   * @return The plaintexts, in the same order as the inputs
+   * @throws KeyczarException If any input is malformed, a ciphertext
+   * signature does not verify, a decryption key is not found, or a JCE
+   * error occurs.
+   * @see #decryptBatch(List)
+   */
+  public BatchResult decryptBatch(byte[][] inputs) throws KeyczarException {
+    List<ByteBuffer> buffers = new ArrayList<ByteBuffer>(inputs.length);
+    for (byte[] input : inputs) {
+      buffers.add(ByteBuffer.wrap(input));
+    }
+    return decryptBatch(buffers);
+  }
+
+  /**
+   * Returns an InputStream which reads ciphertext from the given stream and
+   * returns the decrypted plaintext. Memory use is constant regardless of the
+   * size of the ciphertext.
+   *
+   * No plaintext is returned until the signature over the entire ciphertext
+   * has been verified, so the first read consumes the whole input stream.
+   * Large ciphertexts are buffered in a temporary file until the returned
+   * stream is closed. Decryption errors, such as a ciphertext signature that
+   * does not verify, are thrown as IOExceptions wrapping a KeyczarException.
+   * Closing the returned stream also closes the given input stream.
+   *
+   * @param input The stream to read ciphertext from
+   * @return A stream returning the decrypted plaintext
+   */
+  public InputStream newDecryptingInputStream(InputStream input) {
+    return new DecryptingInputStream(this, DECRYPT_CHUNK_SIZE, input);
+  }
+
+  /**
+   * Returns an InputStream which reads a segmented ciphertext, produced by
+   * {@link Encrypter#newSegmentedEncryptingOutputStream(java.io.OutputStream)},
+   * from the given stream and returns the decrypted plaintext.
+   *
+   * Each segment is verified and decrypted as soon as it has been read, so
+   * plaintext is returned without waiting for the rest of the input. If the
+   * ciphertext has been truncated, reordered, or otherwise modified, the read
+   * which reaches the bad segment throws an IOException wrapping a
+   * KeyczarException. Callers must treat any plaintext already returned as
+   * incomplete in that case. Closing the returned stream also closes the
+   * given input stream.
+   *
+   * @param input The stream to read ciphertext from
+   * @return A stream returning the decrypted plaintext
+   */
+  public InputStream newSegmentedDecryptingInputStream(InputStream input) {
+    return new SegmentedDecryptingInputStream(this, input);
+  }
+
+  /**
+   * Decrypt the given segmented ciphertext, verifying and decrypting segments
+   * in parallel on a shared ForkJoinPool.
+   *
+   * @param input The input segmented ciphertext
+   * @return The decrypted plaintext
+   * @throws KeyczarException If the input is malformed, a segment signature
+   * does not verify, the decryption key is not found, or a JCE error occurs.
+   * @see #decryptSegmented(ByteBuffer, ByteBuffer, Executor)
+   */
+  public byte[] decryptSegmented(byte[] input) throws KeyczarException {
+    ByteBuffer output = ByteBuffer.allocate(input.length);
+    decryptSegmented(ByteBuffer.wrap(input), output);
+    output.flip();
+    byte[] outputBytes = new byte[output.remaining()];
+    output.get(outputBytes);
+    return outputBytes;
+  }
+
+  /**
+   * Decrypt the given segmented ciphertext, verifying and decrypting segments
+   * in parallel on a shared ForkJoinPool.
+   *
+   * @param input The input segmented ciphertext. Will not be modified.
+   * @param output The output buffer to write the decrypted plaintext
+   * @throws KeyczarException If the input is malformed, a segment signature
+   * does not verify, the decryption key is not found, the output buffer is
+   * too small, or a JCE error occurs.
+   * @see #decryptSegmented(ByteBuffer, ByteBuffer, Executor)
+   */
+  public void decryptSegmented(ByteBuffer input, ByteBuffer output)
+      throws KeyczarException {
+    decryptSegmented(input, output, SegmentedBufferCrypter.defaultExecutor());
+  }
+
+  /**
+   * Decrypt the given segmented ciphertext, produced by
+   * {@link Encrypter#encryptSegmented(ByteBuffer, ByteBuffer, int, Executor)}
+   * or a segmented encrypting stream. Runs of segments are verified and
+   * decrypted concurrently on the given executor and written directly to
+   * their place in the output. If any segment fails to verify, an exception
+   * is thrown and the contents of the output buffer must not be used.
+   *
+   * This method blocks until every segment is decrypted, so the executor must
+   * not be one whose threads are all waiting on this call.
+   *
+   * @param input The input segmented ciphertext. Will not be modified.
+   * @param output The output buffer to write the decrypted plaintext. Its
+   * position is advanced past the plaintext.
+   * @param executor The executor to decrypt segments on, or null to decrypt
+   * them all on the calling thread
+   * @throws KeyczarException If the input is malformed, a segment signature
+   * does not verify, the decryption key is not found, the output buffer is
+   * too small, or a JCE error occurs.
+   */
+  public void decryptSegmented(ByteBuffer input, ByteBuffer output,
+      Executor executor) throws KeyczarException {
+    SegmentedBufferCrypter.decrypt(this, input, output, executor);
+  }
+
+  /**
+   * Decrypts a range of plaintext from a segmented ciphertext, produced by
+   * {@link Encrypter#newSegmentedEncryptingOutputStream(java.io.OutputStream)},
+   * which is read from the given channel. Only the segments covering the
+   * requested range are read, verified, and decrypted, so a small range can
+   * be read from a large ciphertext cheaply.
+   *
+   * The range is clipped to the end of the plaintext. Because only the
+   * covering segments are verified, truncation of the ciphertext is only
+   * detected when the range includes the end of the plaintext.
+   *
+   * @param channel The channel containing the ciphertext. Its position will
+   * be changed.
+   * @param offset The offset of the first byte of plaintext to return
+   * @param length The number of bytes of plaintext to return
+   * @return The decrypted range of plaintext, which is shorter than length if
+   * the range extends past the end of the plaintext
+   * @throws KeyczarException If the ciphertext is malformed, a segment
+   * signature does not verify, the decryption key is not found, an IO error
+   * occurs, or a JCE error occurs.
+   */
+  public byte[] decryptRange(SeekableByteChannel channel, long offset,
+      int length) throws KeyczarException {
+    if (offset < 0 || length < 0) {
+      throw new IllegalArgumentException();
+    }
+    try {
+      byte[] header = new byte[SegmentedCiphertext.HEADER_SIZE];
+      channel.position(0);
+      int headerRead = readFully(channel, ByteBuffer.wrap(header));
+      byte[] hash = SegmentedCiphertext.keyHash(header, headerRead);
+      int segmentSize = SegmentedCiphertext.segmentSize(header);
+      Collection<KeyczarKey> keys = getKey(hash);
+      if (keys == null) {
+        throw new KeyNotFoundException(hash);
+      }
+
+      long ciphertextLength = channel.size() - header.length;
+      ByteBuffer output = null;
+      KeyczarException error = new InvalidSignatureException();
+      for (KeyczarKey key : keys) {
+        DecryptingStream cryptStream = (DecryptingStream) key.getStream();
+        try {
+          if (cryptStream.getVerifyingStream().digestSize() == 0) {
+            error = new UnsupportedTypeException(key.getType());
+            continue;
+          }
+          int segmentLength = SegmentedCiphertext.ciphertextSegmentSize(
+              cryptStream, segmentSize);
+          long lastSegment = Math.max(0,
+              (ciphertextLength + segmentLength - 1) / segmentLength - 1);
+          long firstInRange = offset / segmentSize;
+          long lastInRange = length == 0 ? firstInRange - 1
+              : Math.min(lastSegment, (offset + length - 1) / segmentSize);
+          if (firstInRange > lastInRange) {
+            return new byte[0];
+          }
+          if (lastInRange > Integer.MAX_VALUE) {
+            throw new KeyczarException(Messages.getString(
+                "SegmentedCiphertext.TooManySegments"));
+          }
+
+          ByteBuffer segment = ByteBuffer.allocate(segmentLength);
+          ByteBuffer plaintext =
+              ByteBuffer.allocate(cryptStream.maxOutputSize(segmentSize));
+          // The plaintext may end before the range does, so allocate no more
+          // than the covering segments can hold
+          output = ByteBuffer.allocate((int) Math.min(length,
+              (lastInRange + 1) * segmentSize - offset));
+          try {
+            for (long i = firstInRange; i <= lastInRange; i++) {
+              segment.clear();
+              channel.position(header.length + i * segmentLength);
+              readFully(channel, segment);
+              segment.flip();
+              if (!SegmentedCiphertext.verifySegment(cryptStream, header,
+                  (int) i, i == lastSegment, segment)) {
+                throw new InvalidSignatureException();
+              }
+              plaintext.clear();
+              SegmentedCiphertext.decryptSegment(cryptStream, segment,
+                  plaintext);
+              plaintext.flip();
+              long segmentStart = i * segmentSize;
+              if (offset > segmentStart) {
+                plaintext.position(
+                    (int) Math.min(offset - segmentStart, plaintext.limit()));
+              }
+              plaintext.limit(Math.min(plaintext.limit(),
+                  plaintext.position() + output.remaining()));
+              output.put(plaintext);
+            }
+          } catch (KeyczarException e) {
+            // Keys may collide, so try any others with the same hash
+            error = e;
+            output = null;
+            continue;
+          }
+          break;
+        } finally {
+          key.addStreamToCacheForReuse(cryptStream);
+        }
+      }
+      if (output == null) {
+        throw error;
+      }
+      byte[] outputBytes = new byte[output.position()];
+      output.flip();
+      output.get(outputBytes);
+      return outputBytes;
+    } catch (IOException e) {
+      throw new KeyczarException(e);
+    }
+  }
+
+  private static int readFully(SeekableByteChannel channel, ByteBuffer dest)
+      throws IOException {
+    int total = 0;
+    while (dest.hasRemaining()) {
+      int read = channel.read(dest);
+      if (read < 0) {
+        break;
+      }
+      total += read;
+    }
+    return total;
+  }
+
   /**
    * Decrypt the given web-safe Base64 encoded ciphertext and return the
    * decrypted plaintext as a String.
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keyczar;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs expensive cryptographic operations, such as RSA signing and
+ * decryption, on a dedicated pool of threads, so they don't hold up the
+ * threads serving I/O. Used by the asynchronous methods of {@link Signer}
+ * and {@link Crypter}.
+ *
+ * The number of operations waiting to run is bounded. Once that many are
+ * waiting, further operations are rejected at once: the futures returned for
+ * them fail with a {@link RejectedExecutionException}, which callers can
+ * treat as a sign to shed load.
+ *
+ * The time operations spend waiting and running is recorded, so the pool can
+ * be sized from what it sees.
+ */
+public class CryptoExecutor {
+  private static final AtomicInteger POOL_NUMBER = new AtomicInteger();
+  // The most operations allowed to wait on the default executor, per thread
+  static final int DEFAULT_QUEUED_PER_THREAD = 256;
+
+  private final ThreadPoolExecutor pool;
+  private final AtomicLong submitted = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong completed = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong totalQueueNanos = new AtomicLong();
+  private final AtomicLong totalRunNanos = new AtomicLong();
+
+  private static final class DefaultHolder {
+    static final CryptoExecutor INSTANCE;
+    static {
+      int threads = Runtime.getRuntime().availableProcessors();
+      INSTANCE = new CryptoExecutor(threads,
+          threads * DEFAULT_QUEUED_PER_THREAD);
+    }
+  }
+
+  /**
+   * @param threads The number of threads to run operations on
+   * @param maxQueued The most operations allowed to wait for a thread
+   */
+  public CryptoExecutor(int threads, int maxQueued) {
+    if (threads < 1 || maxQueued < 1) {
+      throw new IllegalArgumentException();
+    }
+    final String prefix =
+        "keyczar-crypto-" + POOL_NUMBER.incrementAndGet() + "-";
+    pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(maxQueued),
+        new ThreadFactory() {
+          private final AtomicInteger threadNumber = new AtomicInteger();
+
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread thread =
+                new Thread(r, prefix + threadNumber.incrementAndGet());
+            // Don't keep the JVM alive for an executor nobody shut down
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+  }
+
+  /**
+   * Returns the executor shared by asynchronous methods not given one. It
+   * has a thread per processor.
+   */
+  public static CryptoExecutor getDefault() {
+    return DefaultHolder.INSTANCE;
+  }
+
+  /**
+   * Runs the given operation on one of this executor's threads.
+   *
+   * @return A future completed with the operation's result, or with the
+   * exception it threw. If too many operations are waiting already, the
+   * future fails at once with a {@link RejectedExecutionException}.
+   */
+  <T> CompletableFuture<T> submit(final Callable<T> operation) {
+    final CompletableFuture<T> future = new CompletableFuture<T>();
+    final long queued = System.nanoTime();
+    submitted.incrementAndGet();
+    try {
+      pool.execute(new Runnable() {
+        @Override
+        public void run() {
+          long started = System.nanoTime();
+          totalQueueNanos.addAndGet(started - queued);
+          T result = null;
+          Throwable error = null;
+          try {
+            result = operation.call();
+          } catch (Throwable e) {
+            error = e;
+          }
+          // Counted before the future completes, so callers waiting on it
+          // see the operation in the statistics
+          totalRunNanos.addAndGet(System.nanoTime() - started);
+          if (error != null) {
+            failed.incrementAndGet();
+          }
+          completed.incrementAndGet();
+          if (error != null) {
+            future.completeExceptionally(error);
+          } else {
+            future.complete(result);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      rejected.incrementAndGet();
+      future.completeExceptionally(e);
+    }
+    return future;
+  }
+
+  /**
+   * Stops accepting operations. Those already accepted still run.
+   */
+  public void shutdown() {
+    pool.shutdown();
+  }
+
+  /**
+   * Returns the number of operations submitted, including rejected ones.
+   */
+  public long getSubmittedCount() {
+    return submitted.get();
+  }
+
+  /**
+   * Returns the number of operations rejected because too many were waiting
+   * or the executor was shut down.
+   */
+  public long getRejectedCount() {
+    return rejected.get();
+  }
+
+  /**
+   * Returns the number of operations which have run, including failed ones.
+   */
+  public long getCompletedCount() {
+    return completed.get();
+  }
+
+  /**
+   * Returns the number of operations which threw an exception.
+   */
+  public long getFailedCount() {
+    return failed.get();
+  }
+
+  /**
+   * Returns the number of operations waiting for a thread.
+   */
+  public int getQueuedCount() {
+    return pool.getQueue().size();
+  }
+
+  /**
+   * Returns the number of threads running an operation.
+   */
+  public int getActiveCount() {
+    return pool.getActiveCount();
+  }
+
+  /**
+   * Returns the total nanoseconds operations have waited for a thread.
+   */
+  public long getTotalQueueNanos() {
+    return totalQueueNanos.get();
+  }
+
+  /**
+   * Returns the total nanoseconds spent running operations.
+   */
+  public long getTotalRunNanos() {
+    return totalRunNanos.get();
+  }
+
+  /**
+   * Returns the mean nanoseconds an operation waited for a thread, or 0 if
+   * none have run.
+   */
+  public double getAverageQueueNanos() {
+    long count = completed.get();
+    return count == 0 ? 0 : (double) totalQueueNanos.get() / count;
+  }
+
+  /**
+   * Returns the mean nanoseconds spent running an operation, or 0 if none
+   * have run.
+   */
+  public double getAverageRunNanos() {
+    long count = completed.get();
+    return count == 0 ? 0 : (double) totalRunNanos.get() / count;
+  }
+}
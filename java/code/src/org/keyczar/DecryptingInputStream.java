@@ -0,0 +1,401 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keyczar;
+
+import org.keyczar.exceptions.BadVersionException;
+import org.keyczar.exceptions.InvalidSignatureException;
+import org.keyczar.exceptions.KeyNotFoundException;
+import org.keyczar.exceptions.KeyczarException;
+import org.keyczar.exceptions.ShortCiphertextException;
+import org.keyczar.i18n.Messages;
+import org.keyczar.interfaces.DecryptingStream;
+import org.keyczar.interfaces.VerifyingStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * An InputStream which reads ciphertext produced by an {@link Encrypter} from
+ * an underlying stream and returns the decrypted plaintext.
+ *
+ * The ciphertext signature covers the entire ciphertext, so no plaintext may
+ * be released until the last byte has been read. This stream therefore makes
+ * two passes: the first reads the whole ciphertext, verifying its signature
+ * and buffering it in memory or, past a threshold, in a temporary file. The
+ * second pass decrypts the buffered ciphertext chunk by chunk as the caller
+ * reads. Only ciphertext is ever written to disk, and memory use does not
+ * depend on the length of the input.
+ */
+final class DecryptingInputStream extends InputStream {
+  /** Ciphertext larger than this is buffered in a temporary file. */
+  static final int MEMORY_BUFFER_SIZE = 64 * 1024;
+
+  private final Crypter crypter;
+  private final InputStream in;
+  private final int chunkSize;
+  private final byte[] oneByte = new byte[1];
+
+  private CiphertextBuffer ciphertext;
+  private List<KeyczarKey> verifiedKeys;
+  private int keyIndex;
+  private long bodyLength;
+
+  // Second pass state
+  private KeyczarKey key;
+  private DecryptingStream cryptStream;
+  private InputStream bodyInput;
+  private long bodyRemaining;
+  private ByteBuffer cipherWindow;
+  private ByteBuffer plaintext;
+  private boolean plaintextReleased = false;
+  private boolean finished = false;
+  private boolean closed = false;
+  // Once reading fails, every later read fails the same way
+  private IOException failure;
+
+  DecryptingInputStream(Crypter crypter, int chunkSize, InputStream in) {
+    this.crypter = crypter;
+    this.chunkSize = chunkSize;
+    this.in = in;
+  }
+
+  @Override
+  public int read() throws IOException {
+    int read = read(oneByte, 0, 1);
+    return read < 0 ? -1 : oneByte[0] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (closed) {
+      throw new IOException(Messages.getString("StreamClosed"));
+    }
+    if (off < 0 || len < 0 || off + len > b.length) {
+      throw new IndexOutOfBoundsException();
+    }
+    if (failure != null) {
+      throw failure;
+    }
+    if (len == 0) {
+      return 0;
+    }
+    try {
+      if (plaintext == null) {
+        verifyCiphertext();
+        startDecrypt();
+      }
+      while (!plaintext.hasRemaining()) {
+        if (finished) {
+          return -1;
+        }
+        decryptNextChunk();
+      }
+    } catch (KeyczarException e) {
+      failure = new IOException(e);
+      throw failure;
+    } catch (IOException e) {
+      failure = e;
+      throw e;
+    }
+    int toCopy = Math.min(len, plaintext.remaining());
+    plaintext.get(b, off, toCopy);
+    plaintextReleased = true;
+    return toCopy;
+  }
+
+  @Override
+  public int available() {
+    return plaintext == null ? 0 : plaintext.remaining();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    releaseCryptStream();
+    try {
+      if (bodyInput != null) {
+        bodyInput.close();
+      }
+    } finally {
+      try {
+        if (ciphertext != null) {
+          ciphertext.delete();
+        }
+      } finally {
+        in.close();
+      }
+    }
+  }
+
+  /**
+   * First pass: reads the entire ciphertext, buffering it and updating the
+   * verifying stream of every key matching the key hash. Any keys whose
+   * signature verifies are kept as decryption candidates.
+   */
+  private void verifyCiphertext() throws IOException, KeyczarException {
+    byte[] header = new byte[Keyczar.HEADER_SIZE];
+    int headerRead = readFully(in, header, 0, header.length);
+    if (headerRead < Keyczar.HEADER_SIZE) {
+      throw new ShortCiphertextException(headerRead);
+    }
+    if (header[0] != Keyczar.FORMAT_VERSION) {
+      throw new BadVersionException(header[0]);
+    }
+    byte[] hash = new byte[Keyczar.KEY_HASH_SIZE];
+    System.arraycopy(header, 1, hash, 0, hash.length);
+    Collection<KeyczarKey> keys = crypter.getKey(hash);
+    if (keys == null) {
+      throw new KeyNotFoundException(hash);
+    }
+
+    List<KeyczarKey> candidates = new ArrayList<KeyczarKey>(keys);
+    int count = candidates.size();
+    DecryptingStream[] streams = new DecryptingStream[count];
+    try {
+      verifyCiphertext(header, candidates, streams);
+    } finally {
+      for (int i = 0; i < count; i++) {
+        if (streams[i] != null) {
+          candidates.get(i).addStreamToCacheForReuse(streams[i]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Verifies the ciphertext against each candidate key. The streams borrowed
+   * are left in streams, so the caller can return them however this ends.
+   */
+  private void verifyCiphertext(byte[] header, List<KeyczarKey> candidates,
+      DecryptingStream[] streams) throws IOException, KeyczarException {
+    int count = candidates.size();
+    VerifyingStream[] verifiers = new VerifyingStream[count];
+    int maxDigestSize = 0;
+    for (int i = 0; i < count; i++) {
+      streams[i] = (DecryptingStream) candidates.get(i).getStream();
+      verifiers[i] = streams[i].getVerifyingStream();
+      verifiers[i].initVerify();
+      verifiers[i].updateVerify(ByteBuffer.wrap(header));
+      maxDigestSize = Math.max(maxDigestSize, verifiers[i].digestSize());
+    }
+
+    // The last maxDigestSize bytes read are held back, since they may be a
+    // signature rather than ciphertext.
+    ciphertext = new CiphertextBuffer();
+    byte[] buffer = new byte[chunkSize + maxDigestSize];
+    int held = 0;
+    int read;
+    while ((read = in.read(buffer, held, buffer.length - held)) >= 0) {
+      ciphertext.write(buffer, held, read);
+      held += read;
+      if (held > maxDigestSize) {
+        int toVerify = held - maxDigestSize;
+        for (VerifyingStream verifier : verifiers) {
+          verifier.updateVerify(ByteBuffer.wrap(buffer, 0, toVerify));
+        }
+        System.arraycopy(buffer, toVerify, buffer, 0, maxDigestSize);
+        held = maxDigestSize;
+      }
+    }
+    long totalLength = ciphertext.length();
+
+    verifiedKeys = new ArrayList<KeyczarKey>();
+    KeyczarException error = new InvalidSignatureException();
+    for (int i = 0; i < count; i++) {
+      int digestSize = verifiers[i].digestSize();
+      if (held < digestSize) {
+        error = new ShortCiphertextException(Keyczar.HEADER_SIZE + held);
+        continue;
+      }
+      try {
+        verifiers[i].updateVerify(
+            ByteBuffer.wrap(buffer, 0, held - digestSize));
+        if (verifiers[i].verify(
+            ByteBuffer.wrap(buffer, held - digestSize, digestSize))) {
+          verifiedKeys.add(candidates.get(i));
+        }
+      } catch (KeyczarException e) {
+        error = e;
+      } catch (RuntimeException e) {
+        error = new InvalidSignatureException();
+      }
+    }
+    if (verifiedKeys.isEmpty()) {
+      throw error;
+    }
+    bodyLength = totalLength;
+  }
+
+  /**
+   * Second pass: prepares to decrypt the buffered ciphertext with the next
+   * verified key.
+   */
+  private void startDecrypt() throws IOException, KeyczarException {
+    key = verifiedKeys.get(keyIndex);
+    cryptStream = (DecryptingStream) key.getStream();
+    bodyInput = ciphertext.newInputStream();
+    bodyRemaining =
+        bodyLength - cryptStream.getVerifyingStream().digestSize();
+    if (cipherWindow == null) {
+      cipherWindow = ByteBuffer.allocate(2 * chunkSize);
+    }
+    cipherWindow.clear();
+    cipherWindow.flip();
+    plaintext = ByteBuffer.allocate(cryptStream.maxOutputSize(chunkSize));
+    plaintext.flip();
+    fillWindow();
+    cryptStream.initDecrypt(cipherWindow);
+  }
+
+  private void decryptNextChunk() throws IOException, KeyczarException {
+    fillWindow();
+    plaintext.clear();
+    try {
+      if (cipherWindow.remaining() + bodyRemaining > chunkSize) {
+        ByteBuffer chunk = cipherWindow.slice();
+        chunk.limit(chunkSize);
+        cryptStream.updateDecrypt(chunk, plaintext);
+        cipherWindow.position(cipherWindow.position() + chunkSize);
+      } else {
+        cryptStream.doFinalDecrypt(cipherWindow, plaintext);
+        finished = true;
+        bodyInput.close();
+        releaseCryptStream();
+      }
+    } catch (KeyczarException e) {
+      plaintext.flip();
+      retryWithNextKey(e);
+      return;
+    } catch (RuntimeException e) {
+      plaintext.flip();
+      retryWithNextKey(new InvalidSignatureException());
+      return;
+    }
+    plaintext.flip();
+  }
+
+  /**
+   * Key hashes may collide. If decryption fails before any plaintext has been
+   * returned, start over with the next key whose signature verified.
+   */
+  private void retryWithNextKey(KeyczarException error)
+      throws IOException, KeyczarException {
+    bodyInput.close();
+    releaseCryptStream();
+    if (plaintextReleased || keyIndex + 1 >= verifiedKeys.size()) {
+      throw error;
+    }
+    keyIndex++;
+    startDecrypt();
+  }
+
+  private void releaseCryptStream() {
+    if (cryptStream != null) {
+      key.addStreamToCacheForReuse(cryptStream);
+      cryptStream = null;
+    }
+  }
+
+  /**
+   * Moves as much buffered ciphertext (excluding the signature) into the
+   * window as will fit.
+   */
+  private void fillWindow() throws IOException {
+    cipherWindow.compact();
+    int toRead = (int) Math.min(cipherWindow.remaining(), bodyRemaining);
+    int read = readFully(bodyInput, cipherWindow.array(),
+        cipherWindow.arrayOffset() + cipherWindow.position(), toRead);
+    cipherWindow.position(cipherWindow.position() + read);
+    bodyRemaining -= read;
+    cipherWindow.flip();
+  }
+
+  private static int readFully(InputStream input, byte[] b, int off, int len)
+      throws IOException {
+    int total = 0;
+    while (total < len) {
+      int read = input.read(b, off + total, len - total);
+      if (read < 0) {
+        break;
+      }
+      total += read;
+    }
+    return total;
+  }
+
+  /**
+   * Holds ciphertext in memory up to MEMORY_BUFFER_SIZE bytes, then moves it
+   * to a temporary file which is deleted when the stream is closed.
+   */
+  private static final class CiphertextBuffer {
+    private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+    private File file;
+    private OutputStream fileOutput;
+    private long length = 0;
+
+    void write(byte[] b, int off, int len) throws IOException {
+      if (file == null && length + len > MEMORY_BUFFER_SIZE) {
+        file = File.createTempFile("keyczar", ".ciphertext");
+        file.deleteOnExit();
+        fileOutput = new FileOutputStream(file);
+        memory.writeTo(fileOutput);
+        memory = null;
+      }
+      if (file == null) {
+        memory.write(b, off, len);
+      } else {
+        fileOutput.write(b, off, len);
+      }
+      length += len;
+    }
+
+    long length() {
+      return length;
+    }
+
+    InputStream newInputStream() throws IOException {
+      if (file == null) {
+        return new ByteArrayInputStream(memory.toByteArray());
+      }
+      fileOutput.flush();
+      return new FileInputStream(file);
+    }
+
+    void delete() throws IOException {
+      if (file != null) {
+        fileOutput.close();
+        if (!file.delete()) {
+          throw new IOException(Messages.getString("Crypter.UnableToDeleteTempFile",
+              file.getPath()));
+        }
+      }
+    }
+  }
+}
@@ -33,6 +33,7 @@ import java.security.GeneralSecurityException;
 import java.security.KeyFactory;
 import java.security.Signature;
 import java.security.SignatureException;
+import java.security.interfaces.DSAParams;
 import java.security.interfaces.DSAPrivateKey;
 import java.security.spec.DSAPrivateKeySpec;
 
@@ -48,9 +49,8 @@ public class DsaPrivateKey extends KeyczarKey implements KeyczarPrivateKey {
   private static final int DSA_DIGEST_SIZE = 48;
 
   private final DsaPublicKey publicKey;
-  private final String x;
 
-  private DSAPrivateKey jcePrivateKey;
+  private final DSAPrivateKey jcePrivateKey;
 
   static DsaPrivateKey generate(KeyParameters params) throws KeyczarException {
     return new DsaPrivateKey(
@@ -60,11 +60,18 @@ public class DsaPrivateKey extends KeyczarKey implements KeyczarPrivateKey {
   static DsaPrivateKey read(String input) throws KeyczarException {
     try {
       JSONObject json = new JSONObject(input);
-      DsaPrivateKey key = new DsaPrivateKey(
-          json.getInt("size"),
-          DsaPublicKey.fromJson(json.getJSONObject("publicKey")),
-          json.getString("x"));
-      return key.initFromJson();
+      DsaPublicKey publicKey =
+          DsaPublicKey.fromJson(json.getJSONObject("publicKey"));
+      DSAParams params = publicKey.getJceKey().getParams();
+      BigInteger xVal =
+          new BigInteger(Base64Coder.decodeWebSafe(json.getString("x")));
+      DSAPrivateKeySpec spec = new DSAPrivateKeySpec(xVal, params.getP(),
+          params.getQ(), params.getG());
+      DSAPrivateKey jcePrivateKey = (DSAPrivateKey)
+          KeyFactory.getInstance(KEY_GEN_ALGORITHM).generatePrivate(spec);
+      return new DsaPrivateKey(json.getInt("size"), publicKey, jcePrivateKey);
+    } catch (GeneralSecurityException e) {
+      throw new KeyczarException(e);
     } catch (JSONException e) {
       throw new RuntimeException(e);
     }
@@ -76,23 +83,30 @@ public class DsaPrivateKey extends KeyczarKey implements KeyczarPrivateKey {
       return new JSONObject()
         .put("size", size)
         .put("publicKey", publicKey != null ? publicKey.toJson() : null)
-        .put("x", x);
+        .put("x", Base64Coder.encodeWebSafe(
+            jcePrivateKey.getX().toByteArray()));
     } catch (JSONException e) {
       throw new RuntimeException(e);
     }
   }
 
   public DsaPrivateKey(DSAPrivateKey privateKey) throws KeyczarException {
-    super(privateKey.getParams().getP().bitLength());
-    publicKey = new DsaPublicKey(privateKey);
-    jcePrivateKey = privateKey;
-    x = Base64Coder.encodeWebSafe(jcePrivateKey.getX().toByteArray());
+    this(privateKey, new DsaPublicKey(privateKey));
   }
 
-  private DsaPrivateKey(int size, DsaPublicKey publicKey, String x) {
+  /**
+   * Wraps a JCE private key whose public key is already known, which saves
+   * computing it.
+   */
+  DsaPrivateKey(DSAPrivateKey privateKey, DsaPublicKey publicKey) {
+    this(privateKey.getParams().getP().bitLength(), publicKey, privateKey);
+  }
+
+  private DsaPrivateKey(int size, DsaPublicKey publicKey,
+      DSAPrivateKey privateKey) {
     super(size);
     this.publicKey = publicKey;
-    this.x = x;
+    jcePrivateKey = privateKey;
   }
 
   @Override
@@ -128,26 +142,6 @@ public class DsaPrivateKey extends KeyczarKey implements KeyczarPrivateKey {
     return DefaultKeyType.DSA_PRIV;
   }
 
-  /**
-   * Initialize JCE key from JSON data.  Must be called after an instance is read from JSON.
-   */
-  private DsaPrivateKey initFromJson() throws KeyczarException {
-    publicKey.initFromJson();
-
-    BigInteger xVal = new BigInteger(Base64Coder.decodeWebSafe(x));
-    BigInteger pVal = new BigInteger(Base64Coder.decodeWebSafe(publicKey.p));
-    BigInteger qVal = new BigInteger(Base64Coder.decodeWebSafe(publicKey.q));
-    BigInteger gVal = new BigInteger(Base64Coder.decodeWebSafe(publicKey.g));
-    try {
-      KeyFactory kf = KeyFactory.getInstance(KEY_GEN_ALGORITHM);
-      final DSAPrivateKeySpec spec = new DSAPrivateKeySpec(xVal, pVal, qVal, gVal);
-      jcePrivateKey = (DSAPrivateKey) kf.generatePrivate(spec);
-      return this;
-    } catch (GeneralSecurityException e) {
-      throw new KeyczarException(e);
-    }
-  }
-
   @Override
   protected DSAPrivateKey getJceKey() {
     return jcePrivateKey;
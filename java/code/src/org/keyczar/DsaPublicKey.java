@@ -29,7 +29,6 @@ import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.KeyFactory;
-import java.security.PublicKey;
 import java.security.Signature;
 import java.security.SignatureException;
 import java.security.interfaces.DSAParams;
@@ -59,28 +58,23 @@ public class DsaPublicKey extends KeyczarPublicKey {
 
   private DSAPublicKey jcePublicKey;
   private final byte[] hash = new byte[Keyczar.KEY_HASH_SIZE];
-  final String y;
-  final String p;
-  final String q;
-  final String g;
 
   static DsaPublicKey read(String input) throws KeyczarException {
     try {
-      DsaPublicKey key = fromJson(new JSONObject(input));
-      key.initFromJson();
-      return key;
+      return fromJson(new JSONObject(input));
     } catch (JSONException e) {
       throw new RuntimeException(e);
     }
   }
 
-  static DsaPublicKey fromJson(JSONObject json) throws JSONException {
+  static DsaPublicKey fromJson(JSONObject json)
+      throws JSONException, KeyczarException {
     return new DsaPublicKey(
         json.getInt("size"),
-        json.getString("y"),
-        json.getString("p"),
-        json.getString("q"),
-        json.getString("g"));
+        decode(json.getString("y")),
+        decode(json.getString("p")),
+        decode(json.getString("q")),
+        decode(json.getString("g")));
   }
 
   @Override
@@ -88,10 +82,10 @@ public class DsaPublicKey extends KeyczarPublicKey {
     try {
       return new JSONObject()
         .put("size", size)
-        .put("y", y)
-        .put("p", p)
-        .put("q", q)
-        .put("g", g);
+        .put("y", encode(jcePublicKey.getY()))
+        .put("p", encode(jcePublicKey.getParams().getP()))
+        .put("q", encode(jcePublicKey.getParams().getQ()))
+        .put("g", encode(jcePublicKey.getParams().getG()));
     } catch (JSONException e) {
       throw new RuntimeException(e);
     }
@@ -101,7 +95,9 @@ public class DsaPublicKey extends KeyczarPublicKey {
    * Constructs a new {@link DsaPublicKey} from the provided JCE {@link DSAPublicKey}.
    */
   DsaPublicKey(DSAPublicKey jcePublicKey) throws KeyczarException {
-    this(jcePublicKey.getY(), jcePublicKey.getParams());
+    super(jcePublicKey.getParams().getP().bitLength());
+    this.jcePublicKey = jcePublicKey;
+    initializeHash();
   }
 
   /**
@@ -112,26 +108,16 @@ public class DsaPublicKey extends KeyczarPublicKey {
   }
 
   // Used by JSON
-  private DsaPublicKey(int size, String y, String p, String q, String g) {
+  private DsaPublicKey(int size, BigInteger yVal, BigInteger pVal,
+      BigInteger qVal, BigInteger gVal) throws KeyczarException {
     super(size);
-    jcePublicKey = null;
-    this.y = y;
-    this.p = p;
-    this.q = q;
-    this.g = g;
+    initializeJceKey(yVal, pVal, qVal, gVal);
+    initializeHash();
   }
 
   private DsaPublicKey(BigInteger yVal, DSAParams params) throws KeyczarException {
-    super(params.getP().bitLength());
-    BigInteger pVal = params.getP();
-    BigInteger qVal = params.getQ();
-    BigInteger gVal = params.getG();
-    y = Base64Coder.encodeWebSafe(yVal.toByteArray());
-    p = Base64Coder.encodeWebSafe(pVal.toByteArray());
-    q = Base64Coder.encodeWebSafe(qVal.toByteArray());
-    g = Base64Coder.encodeWebSafe(gVal.toByteArray());
-    initializeJceKey(yVal, pVal, qVal, gVal);
-    initializeHash();
+    this(params.getP().bitLength(), yVal, params.getP(), params.getQ(),
+        params.getG());
   }
 
   private static BigInteger computeY(DSAPrivateKey jcePrivateKey) {
@@ -165,18 +151,12 @@ public class DsaPublicKey extends KeyczarPublicKey {
     return super.fallbackHash();
   }
 
-  /**
-   * Initialize JCE key from JSON data.  Must be called after an instance is read from JSON.
-   * In default scope so {@link DsaPrivateKey} can call it when a private key string (which
-   * contains a public key string) is deserialized.
-   */
-  void initFromJson() throws KeyczarException {
-    BigInteger yVal = new BigInteger(Base64Coder.decodeWebSafe(y));
-    BigInteger pVal = new BigInteger(Base64Coder.decodeWebSafe(p));
-    BigInteger qVal = new BigInteger(Base64Coder.decodeWebSafe(q));
-    BigInteger gVal = new BigInteger(Base64Coder.decodeWebSafe(g));
-    initializeJceKey(yVal, pVal, qVal, gVal);
-    initializeHash();
+  private static BigInteger decode(String value) throws KeyczarException {
+    return new BigInteger(Base64Coder.decodeWebSafe(value));
+  }
+
+  private static String encode(BigInteger value) {
+    return Base64Coder.encodeWebSafe(value.toByteArray());
   }
 
   private void initializeJceKey(BigInteger yVal, BigInteger pVal, BigInteger qVal,
@@ -200,7 +180,7 @@ public class DsaPublicKey extends KeyczarPublicKey {
   }
 
   @Override
-  protected PublicKey getJceKey() {
+  protected DSAPublicKey getJceKey() {
     return jcePublicKey;
   }
 
@@ -247,9 +227,8 @@ public class DsaPublicKey extends KeyczarPublicKey {
     public boolean verify(ByteBuffer sig) throws KeyczarException {
       try {
         // Copy the signature so that it can be safely modified
-        ByteBuffer signatureToVerify = ByteBuffer.allocate(sig.limit() - sig.position());
-        signatureToVerify.put(sig.array(), sig.position(), sig.limit()
-            - sig.position());
+        ByteBuffer signatureToVerify = ByteBuffer.allocate(sig.remaining());
+        signatureToVerify.put(sig.duplicate());
         if (!strictVerification) {
           // A DSA signature is a DER sequence tag, following by a varint length that indicates
           // length of the rest of the signature. This code truncates the signature to the indicated
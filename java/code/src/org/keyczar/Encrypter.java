@@ -16,17 +16,23 @@
 
 package org.keyczar;
 
+import org.keyczar.enums.KeyLoadingMode;
 import org.keyczar.enums.KeyPurpose;
 import org.keyczar.exceptions.KeyczarException;
 import org.keyczar.exceptions.NoPrimaryKeyException;
+import org.keyczar.exceptions.ShortBufferException;
 import org.keyczar.i18n.Messages;
 import org.keyczar.interfaces.EncryptingStream;
 import org.keyczar.interfaces.KeyczarReader;
 import org.keyczar.interfaces.SigningStream;
 import org.keyczar.util.Base64Coder;
 
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 /**
  * Encrypters are used strictly to encrypt data. Typically, Encrypters will read
@@ -56,6 +62,38 @@ public class Encrypter extends Keyczar {
     super(reader);
   }
 
+  /**
+   * Initialize a new Encrypter with a KeyczarReader, loading the key versions
+   * concurrently on the given Executor.
+   *
+   * @param reader A reader to read keys from. It must allow keys to be read
+   * from several threads at once.
+   * @param executor The Executor to load versions on, or null to load them
+   * serially
+   * @throws KeyczarException In the event of an IO error reading keys or if the
+   * key set does not have the appropriate purpose.
+   * @see Keyczar#Keyczar(KeyczarReader, Executor)
+   */
+  public Encrypter(KeyczarReader reader, Executor executor)
+      throws KeyczarException {
+    super(reader, executor);
+  }
+
+  /**
+   * Initialize a new Encrypter with a KeyczarReader, building the keys of
+   * versions other than the primary only once they are used.
+   *
+   * @param reader A reader to read keys from
+   * @param loadingMode When to build the keys of each version
+   * @throws KeyczarException In the event of an IO error reading keys or if the
+   * key set does not have the appropriate purpose.
+   * @see Keyczar#Keyczar(KeyczarReader, Executor, KeyLoadingMode)
+   */
+  public Encrypter(KeyczarReader reader, KeyLoadingMode loadingMode)
+      throws KeyczarException {
+    super(reader, null, loadingMode);
+  }
+
   /**
    * Initialize a new Encrypter with a key set location. This will attempt to
    * read the keys using a KeyczarFileReader. The corresponding key set
@@ -87,12 +125,13 @@ public class Encrypter extends Keyczar {
     }
     
     EncryptingStream cryptStream = (EncryptingStream) encryptingKey.getStream();
-    SigningStream signStream = cryptStream.getSigningStream();
-
-    int outputSize = HEADER_SIZE + cryptStream.maxOutputSize(inputLength) +
-        signStream.digestSize();
-    encryptingKey.addStreamToCacheForReuse(cryptStream);
-    return outputSize;
+    try {
+      SigningStream signStream = cryptStream.getSigningStream();
+      return HEADER_SIZE + cryptStream.maxOutputSize(inputLength) +
+          signStream.digestSize();
+    } finally {
+      encryptingKey.addStreamToCacheForReuse(cryptStream);
+    }
   }
 
   /**
@@ -127,20 +166,30 @@ public class Encrypter extends Keyczar {
       throw new NoPrimaryKeyException() ;
     }
     EncryptingStream cryptStream = (EncryptingStream) encryptingKey.getStream();
-    
+    try {
+      encrypt(encryptingKey, cryptStream, input, output);
+    } finally {
+      encryptingKey.addStreamToCacheForReuse(cryptStream);
+    }
+  }
+
+  private void encrypt(KeyczarKey encryptingKey, EncryptingStream cryptStream,
+      ByteBuffer input, ByteBuffer output) throws KeyczarException {
     // Initialize the signing stream
     SigningStream signStream = cryptStream.getSigningStream();
     signStream.initSign();
 
     // Write the key header
     output.mark();
-    ByteBuffer outputToSign = output.asReadOnlyBuffer();
+    ByteBuffer outputToSign = output.duplicate();
     encryptingKey.copyHeader(output);
 
     // Write the IV. May be an empty array of zero length
     cryptStream.initEncrypt(output);
 
-    ByteBuffer inputCopy = input.asReadOnlyBuffer();
+    // A duplicate rather than a read-only view, so streams can use the
+    // backing array directly if there is one
+    ByteBuffer inputCopy = input.duplicate();
     while (inputCopy.remaining() > ENCRYPT_CHUNK_SIZE) {
       ByteBuffer inputChunk = inputCopy.slice();
       inputChunk.limit(ENCRYPT_CHUNK_SIZE);
@@ -161,8 +210,300 @@ public class Encrypter extends Keyczar {
     signStream.updateSign(outputToSign);
     // Sign the final block of ciphertext output
     signStream.sign(output);
-    
-    encryptingKey.addStreamToCacheForReuse(cryptStream);
+  }
+
+  /**
+   * Encrypt part of the given input array into the given output array. Unlike
+   * the other encrypt methods, this makes no copies of the plaintext or
+   * ciphertext, so it is suited to encrypting many messages into reused
+   * buffers.
+   *
+   * @param input The array holding the plaintext. Will not be modified
+   * @param inputOffset The offset of the plaintext in the input array
+   * @param inputLength The length of the plaintext
+   * @param output The array to write the ciphertext to. The ciphertext must
+   * not overlap the plaintext.
+   * @param outputOffset The offset to write the ciphertext at
+   * @return The length of the ciphertext written
+   * @throws KeyczarException If there is a JCE exception, the key set does
+   * not contain a primary encrypting key, or the output array is too small
+   * to hold {@link #ciphertextSize(int)} bytes.
+   */
+  public int encrypt(byte[] input, int inputOffset, int inputLength,
+      byte[] output, int outputOffset) throws KeyczarException {
+    KeyczarKey encryptingKey = getPrimaryKey();
+    if (encryptingKey == null) {
+      throw new NoPrimaryKeyException();
+    }
+    EncryptingStream cryptStream = (EncryptingStream) encryptingKey.getStream();
+    try {
+      SigningStream signStream = cryptStream.getSigningStream();
+      int ciphertextSize = HEADER_SIZE
+          + cryptStream.maxOutputSize(inputLength) + signStream.digestSize();
+      if (output.length - outputOffset < ciphertextSize) {
+        throw new ShortBufferException(output.length - outputOffset,
+            ciphertextSize);
+      }
+
+      if (cryptStream instanceof ArrayCipherStream
+          && signStream instanceof ArrayMacStream) {
+        return encrypt(encryptingKey, (ArrayCipherStream) cryptStream,
+            signStream, input, inputOffset, inputLength, output, outputOffset);
+      }
+      ByteBuffer outputBuffer = ByteBuffer.wrap(output, outputOffset,
+          ciphertextSize);
+      encrypt(encryptingKey, cryptStream,
+          ByteBuffer.wrap(input, inputOffset, inputLength), outputBuffer);
+      return outputBuffer.position() - outputOffset;
+    } finally {
+      encryptingKey.addStreamToCacheForReuse(cryptStream);
+    }
+  }
+
+  private int encrypt(KeyczarKey encryptingKey, ArrayCipherStream cryptStream,
+      SigningStream signStream, byte[] input, int inputOffset,
+      int inputLength, byte[] output, int outputOffset)
+      throws KeyczarException {
+    ArrayMacStream macStream = (ArrayMacStream) signStream;
+    signStream.initSign();
+    encryptingKey.copyHeader(output, outputOffset);
+    int position = outputOffset + HEADER_SIZE;
+    position += cryptStream.initEncrypt(output, position);
+
+    // As with ByteBuffers, sign each chunk of ciphertext while it is fresh
+    int signed = outputOffset;
+    int inputEnd = inputOffset + inputLength;
+    while (inputEnd - inputOffset > ENCRYPT_CHUNK_SIZE) {
+      position += cryptStream.updateEncrypt(input, inputOffset,
+          ENCRYPT_CHUNK_SIZE, output, position);
+      inputOffset += ENCRYPT_CHUNK_SIZE;
+      macStream.update(output, signed, position - signed);
+      signed = position;
+    }
+    position += cryptStream.doFinalEncrypt(input, inputOffset,
+        inputEnd - inputOffset, output, position);
+    macStream.update(output, signed, position - signed);
+    position += macStream.sign(output, position);
+    return position - outputOffset;
+  }
+
+  /**
+   * Encrypt each of the given inputs with the primary key, writing all of the
+   * ciphertexts into a single contiguous buffer. The primary key and its
+   * stream are looked up once for the whole batch, and every output is sized
+   * up front, so this is much cheaper than encrypting many small inputs one
+   * at a time.
+   *
+   * @param inputs The inputs to encrypt. Will not be modified.
+   * @return The ciphertexts, in the same order as the inputs
+   * @throws KeyczarException If there is a JCE exception or the key set does
+   * not contain a primary encrypting key.
+   */
+  public BatchResult encryptBatch(List<ByteBuffer> inputs)
+      throws KeyczarException {
+    KeyczarKey encryptingKey = getPrimaryKey();
+    if (encryptingKey == null) {
+      throw new NoPrimaryKeyException();
+    }
+    EncryptingStream cryptStream = (EncryptingStream) encryptingKey.getStream();
+    try {
+      int overhead = HEADER_SIZE + cryptStream.getSigningStream().digestSize();
+
+      int[] offsets = new int[inputs.size() + 1];
+      for (int i = 0; i < inputs.size(); i++) {
+        offsets[i + 1] = offsets[i] + overhead
+            + cryptStream.maxOutputSize(inputs.get(i).remaining());
+      }
+      ByteBuffer output = ByteBuffer.allocate(offsets[inputs.size()]);
+      for (int i = 0; i < inputs.size(); i++) {
+        output.limit(offsets[i + 1]);
+        output.position(offsets[i]);
+        encrypt(encryptingKey, cryptStream, inputs.get(i), output);
+      }
+      return new BatchResult(output.array(), offsets);
+    } finally {
+      encryptingKey.addStreamToCacheForReuse(cryptStream);
+    }
+  }
+
+  /**
+   * Encrypt each of the given input byte arrays with the primary key, writing
+   * all of the ciphertexts into a single contiguous buffer.
+   *
+   * @param inputs The inputs to encrypt
+   * @return The ciphertexts, in the same order as the inputs
+   * @throws KeyczarException If there is a JCE exception or the key set does
+   * not contain a primary encrypting key.
+   * @see #encryptBatch(List)
+   */
+  public BatchResult encryptBatch(byte[][] inputs) throws KeyczarException {
+    List<ByteBuffer> buffers = new ArrayList<ByteBuffer>(inputs.length);
+    for (byte[] input : inputs) {
+      buffers.add(ByteBuffer.wrap(input));
+    }
+    return encryptBatch(buffers);
+  }
+
+  /**
+   * Returns an OutputStream which encrypts everything written to it with the
+   * primary key and writes the ciphertext to the given stream. The plaintext
+   * is encrypted in chunks, so arbitrarily large inputs may be encrypted in
+   * constant memory. The resulting ciphertext is identical in format to that
+   * returned by {@link #encrypt(byte[])}.
+   *
+   * The ciphertext header is written immediately. The ciphertext signature is
+   * written when the returned stream is closed, which also closes the given
+   * output stream.
+   *
+   * @param output The stream to write ciphertext to
+   * @return A stream accepting plaintext to encrypt
+   * @throws KeyczarException If there is a JCE exception, the key set does
+   * not contain a primary encrypting key, or the header cannot be written.
+   */
+  public OutputStream newEncryptingOutputStream(OutputStream output)
+      throws KeyczarException {
+    KeyczarKey encryptingKey = getPrimaryKey();
+    if (encryptingKey == null) {
+      throw new NoPrimaryKeyException();
+    }
+    return new EncryptingOutputStream(encryptingKey, ENCRYPT_CHUNK_SIZE,
+        output);
+  }
+
+  /**
+   * Returns an OutputStream which writes a segmented ciphertext of everything
+   * written to it, using the primary key and a default segment size of 64KB.
+   *
+   * @param output The stream to write ciphertext to
+   * @return A stream accepting plaintext to encrypt
+   * @throws KeyczarException If the key set does not contain a primary
+   * encrypting key, the primary key does not support segmented ciphertexts,
+   * or the header cannot be written.
+   * @see #newSegmentedEncryptingOutputStream(OutputStream, int)
+   */
+  public OutputStream newSegmentedEncryptingOutputStream(OutputStream output)
+      throws KeyczarException {
+    return newSegmentedEncryptingOutputStream(output,
+        SegmentedCiphertext.DEFAULT_SEGMENT_SIZE);
+  }
+
+  /**
+   * Returns an OutputStream which writes a segmented ciphertext of everything
+   * written to it, using the primary key. The plaintext is split into
+   * segments of segmentSize bytes, each of which is encrypted and signed
+   * independently. Unlike the ciphertexts returned by
+   * {@link #encrypt(byte[])}, segmented ciphertexts may be decrypted and
+   * used one segment at a time by a stream returned from
+   * {@link Crypter#newSegmentedDecryptingInputStream(java.io.InputStream)},
+   * which also detects truncated or reordered segments.
+   *
+   * Only symmetric keys support segmented ciphertexts. The final segment is
+   * written when the returned stream is closed, which also closes the given
+   * output stream.
+   *
+   * @param output The stream to write ciphertext to
+   * @param segmentSize The number of bytes of plaintext in each segment
+   * @return A stream accepting plaintext to encrypt
+   * @throws KeyczarException If the key set does not contain a primary
+   * encrypting key, the primary key does not support segmented ciphertexts,
+   * the segment size is invalid, or the header cannot be written.
+   */
+  public OutputStream newSegmentedEncryptingOutputStream(OutputStream output,
+      int segmentSize) throws KeyczarException {
+    KeyczarKey encryptingKey = getPrimaryKey();
+    if (encryptingKey == null) {
+      throw new NoPrimaryKeyException();
+    }
+    return new SegmentedEncryptingOutputStream(encryptingKey, segmentSize,
+        output);
+  }
+
+  /**
+   * Returns the size of the segmented ciphertext that would result from
+   * encrypting an input of the given length with the given segment size.
+   *
+   * @param inputLength The length of the input
+   * @param segmentSize The number of bytes of plaintext in each segment
+   * @return Length of the segmented ciphertext that would be produced
+   * @throws KeyczarException If the key set contains no primary encrypting key
+   * or the segment size is invalid.
+   */
+  public int segmentedCiphertextSize(int inputLength, int segmentSize)
+      throws KeyczarException {
+    KeyczarKey encryptingKey = getPrimaryKey();
+    if (encryptingKey == null) {
+      throw new NoPrimaryKeyException();
+    }
+    return SegmentedBufferCrypter.ciphertextSize(encryptingKey, inputLength,
+        segmentSize);
+  }
+
+  /**
+   * Encrypt the given input byte array as a segmented ciphertext, using the
+   * default segment size of 64KB and encrypting segments in parallel on a
+   * shared ForkJoinPool.
+   *
+   * @param input The input to encrypt
+   * @return The segmented ciphertext
+   * @throws KeyczarException If there is a JCE exception, the key set does
+   * not contain a primary encrypting key, or the primary key does not support
+   * segmented ciphertexts.
+   * @see #encryptSegmented(ByteBuffer, ByteBuffer, int, Executor)
+   */
+  public byte[] encryptSegmented(byte[] input) throws KeyczarException {
+    ByteBuffer output = ByteBuffer.allocate(segmentedCiphertextSize(
+        input.length, SegmentedCiphertext.DEFAULT_SEGMENT_SIZE));
+    encryptSegmented(ByteBuffer.wrap(input), output);
+    return output.array();
+  }
+
+  /**
+   * Encrypt the given input ByteBuffer as a segmented ciphertext, using the
+   * default segment size of 64KB and encrypting segments in parallel on a
+   * shared ForkJoinPool.
+   *
+   * @param input The input buffer to encrypt. Will not be modified
+   * @param output The buffer to write the output ciphertext to
+   * @throws KeyczarException If there is a JCE exception, the key set does
+   * not contain a primary encrypting key, the primary key does not support
+   * segmented ciphertexts, or the output buffer is too small.
+   * @see #encryptSegmented(ByteBuffer, ByteBuffer, int, Executor)
+   */
+  public void encryptSegmented(ByteBuffer input, ByteBuffer output)
+      throws KeyczarException {
+    encryptSegmented(input, output, SegmentedCiphertext.DEFAULT_SEGMENT_SIZE,
+        SegmentedBufferCrypter.defaultExecutor());
+  }
+
+  /**
+   * Encrypt the given input ByteBuffer as a segmented ciphertext. Segments are
+   * encrypted and signed independently, so runs of segments are processed
+   * concurrently on the given executor and written directly to their place in
+   * the output. The ciphertext is identical in format to that written by
+   * {@link #newSegmentedEncryptingOutputStream(OutputStream, int)}.
+   *
+   * This method blocks until every segment is encrypted, so the executor must
+   * not be one whose threads are all waiting on this call.
+   *
+   * @param input The input buffer to encrypt. Will not be modified
+   * @param output The buffer to write the output ciphertext to. Its position
+   * is advanced past the ciphertext.
+   * @param segmentSize The number of bytes of plaintext in each segment
+   * @param executor The executor to encrypt segments on, or null to encrypt
+   * them all on the calling thread
+   * @throws KeyczarException If there is a JCE exception, the key set does
+   * not contain a primary encrypting key, the primary key does not support
+   * segmented ciphertexts, the segment size is invalid, or the output buffer
+   * is too small.
+   */
+  public void encryptSegmented(ByteBuffer input, ByteBuffer output,
+      int segmentSize, Executor executor) throws KeyczarException {
+    KeyczarKey encryptingKey = getPrimaryKey();
+    if (encryptingKey == null) {
+      throw new NoPrimaryKeyException();
+    }
+    SegmentedBufferCrypter.encrypt(encryptingKey, input, output, segmentSize,
+        executor);
   }
 
   /**
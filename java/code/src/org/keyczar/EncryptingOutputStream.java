@@ -0,0 +1,181 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keyczar;
+
+import org.keyczar.exceptions.KeyczarException;
+import org.keyczar.i18n.Messages;
+import org.keyczar.interfaces.EncryptingStream;
+import org.keyczar.interfaces.SigningStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An OutputStream which encrypts everything written to it with a single key
+ * and writes the ciphertext to an underlying stream. The ciphertext is in the
+ * same format produced by {@link Encrypter#encrypt(byte[])}, so it may be
+ * decrypted by either {@link Crypter#decrypt(byte[])} or a
+ * {@link DecryptingInputStream}.
+ *
+ * Plaintext is processed in fixed-size chunks, so the memory used by this
+ * stream does not depend on the length of the input. The ciphertext
+ * signature is only written when the stream is closed.
+ */
+final class EncryptingOutputStream extends OutputStream {
+  private final OutputStream out;
+  private final KeyczarKey key;
+  private final EncryptingStream cryptStream;
+  private final SigningStream signStream;
+  private final ByteBuffer inputBuffer;
+  private final ByteBuffer outputBuffer;
+  private boolean closed = false;
+
+  /**
+   * Creates a stream that encrypts with the given key and immediately writes
+   * the ciphertext header and IV to the underlying stream.
+   *
+   * @param key The key to encrypt with
+   * @param chunkSize The number of bytes of plaintext to encrypt at a time
+   * @param out The stream to write ciphertext to
+   * @throws KeyczarException If there is an error initializing the key stream
+   * or writing the header.
+   */
+  EncryptingOutputStream(KeyczarKey key, int chunkSize, OutputStream out)
+      throws KeyczarException {
+    this.out = out;
+    this.key = key;
+    cryptStream = (EncryptingStream) key.getStream();
+    signStream = cryptStream.getSigningStream();
+    inputBuffer = ByteBuffer.allocate(chunkSize);
+    // Large enough for the header and IV, a chunk of ciphertext, or the final
+    // block of ciphertext plus the signature.
+    outputBuffer = ByteBuffer.allocate(
+        cryptStream.maxOutputSize(chunkSize) + signStream.digestSize());
+
+    try {
+      signStream.initSign();
+      key.copyHeader(outputBuffer);
+      // Write the IV. May be an empty array of zero length
+      cryptStream.initEncrypt(outputBuffer);
+      writeOutput(true);
+    } catch (IOException e) {
+      key.addStreamToCacheForReuse(cryptStream);
+      throw new KeyczarException(e);
+    } catch (KeyczarException e) {
+      key.addStreamToCacheForReuse(cryptStream);
+      throw e;
+    }
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    ensureOpen();
+    if (!inputBuffer.hasRemaining()) {
+      encryptInput();
+    }
+    inputBuffer.put((byte) b);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    ensureOpen();
+    if (off < 0 || len < 0 || off + len > b.length) {
+      throw new IndexOutOfBoundsException();
+    }
+    while (len > 0) {
+      if (!inputBuffer.hasRemaining()) {
+        encryptInput();
+      }
+      int toCopy = Math.min(len, inputBuffer.remaining());
+      inputBuffer.put(b, off, toCopy);
+      off += toCopy;
+      len -= toCopy;
+    }
+  }
+
+  /**
+   * Flushes the underlying stream. Any buffered plaintext which does not yet
+   * fill a chunk is held back until more data is written or the stream is
+   * closed.
+   */
+  @Override
+  public void flush() throws IOException {
+    ensureOpen();
+    out.flush();
+  }
+
+  /**
+   * Encrypts any remaining plaintext, writes the ciphertext signature, and
+   * closes the underlying stream.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      inputBuffer.flip();
+      cryptStream.doFinalEncrypt(inputBuffer, outputBuffer);
+      writeOutput(true);
+      outputBuffer.limit(signStream.digestSize());
+      signStream.sign(outputBuffer);
+      writeOutput(false);
+    } catch (KeyczarException e) {
+      throw new IOException(e);
+    } finally {
+      key.addStreamToCacheForReuse(cryptStream);
+      out.close();
+    }
+  }
+
+  private void encryptInput() throws IOException {
+    inputBuffer.flip();
+    try {
+      cryptStream.updateEncrypt(inputBuffer, outputBuffer);
+    } catch (KeyczarException e) {
+      throw new IOException(e);
+    }
+    inputBuffer.clear();
+    writeOutput(true);
+  }
+
+  /**
+   * Writes the contents of the output buffer to the underlying stream,
+   * optionally updating the ciphertext signature with them first.
+   */
+  private void writeOutput(boolean sign) throws IOException {
+    outputBuffer.flip();
+    if (sign) {
+      try {
+        signStream.updateSign(outputBuffer.duplicate());
+      } catch (KeyczarException e) {
+        throw new IOException(e);
+      }
+    }
+    out.write(outputBuffer.array(), outputBuffer.arrayOffset(),
+        outputBuffer.limit());
+    outputBuffer.clear();
+  }
+
+  private void ensureOpen() throws IOException {
+    if (closed) {
+      throw new IOException(Messages.getString("StreamClosed"));
+    }
+  }
+}
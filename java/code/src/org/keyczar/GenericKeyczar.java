@@ -23,12 +23,14 @@ import org.keyczar.i18n.Messages;
 import org.keyczar.interfaces.KeyType;
 import org.keyczar.interfaces.KeyczarReader;
 import org.keyczar.keyparams.KeyParameters;
+import org.keyczar.util.Util;
 
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.Collections;
+import java.io.UnsupportedEncodingException;
 import java.util.Set;
+import java.util.concurrent.Executor;
 
 /**
  * Wrapper class to access Keyczar utility methods of reading and manipulating
@@ -44,6 +46,23 @@ public class GenericKeyczar extends Keyczar {
     super(reader);
   }
 
+  /**
+   * Initialize a new GenericKeyczar with a KeyczarReader, loading the key versions
+   * concurrently on the given Executor.
+   *
+   * @param reader A reader to read keys from. It must allow keys to be read
+   * from several threads at once.
+   * @param executor The Executor to load versions on, or null to load them
+   * serially
+   * @throws KeyczarException In the event of an IO error reading keys or if the
+   * key set does not have the appropriate purpose.
+   * @see Keyczar#Keyczar(KeyczarReader, Executor)
+   */
+  public GenericKeyczar(KeyczarReader reader, Executor executor)
+      throws KeyczarException {
+    super(reader, executor);
+  }
+
   public GenericKeyczar(String location) throws KeyczarException {
     super(location);
   }
@@ -58,11 +77,11 @@ public class GenericKeyczar extends Keyczar {
   }
 
   public Set<KeyVersion> getVersions() {
-    return Collections.unmodifiableSet(versionMap.keySet());
+    return snapshot().versionMap().keySet();
   }
 
   public KeyczarKey getKey(KeyVersion v) {
-    return versionMap.get(v);
+    return snapshot().versionMap().get(v);
   }
 
   /**
@@ -81,10 +100,11 @@ public class GenericKeyczar extends Keyczar {
             Messages.getString("Keyczar.CantPromotePrimary"));
       case ACTIVE:
         version.setStatus(KeyStatus.PRIMARY); // promote to PRIMARY
+        KeyVersion primaryVersion = snapshot().getPrimaryVersion();
         if (primaryVersion != null) {
           primaryVersion.setStatus(KeyStatus.ACTIVE); // only one PRIMARY key
         }
-        primaryVersion = version;
+        setPrimaryVersion(version);
         break;
       case INACTIVE:
         version.setStatus(KeyStatus.ACTIVE);
@@ -105,7 +125,7 @@ public class GenericKeyczar extends Keyczar {
     switch (version.getStatus()) {
       case PRIMARY:
         version.setStatus(KeyStatus.ACTIVE);
-        primaryVersion = null; // no more PRIMARY keys in the set
+        setPrimaryVersion(null); // no more PRIMARY keys in the set
         break;
       case ACTIVE:
         version.setStatus(KeyStatus.INACTIVE);
@@ -149,13 +169,14 @@ public class GenericKeyczar extends Keyczar {
    */
   public void addVersion(KeyStatus status, KeyczarKey key) {
     KeyVersion version = new KeyVersion(maxVersion() + 1, status, false);
+    addKey(version, key);
     if (status == KeyStatus.PRIMARY) {
+      KeyVersion primaryVersion = snapshot().getPrimaryVersion();
       if (primaryVersion != null) {
         primaryVersion.setStatus(KeyStatus.ACTIVE);
       }
-      primaryVersion = version;
+      setPrimaryVersion(version);
     }
-    addKey(version, key);
   }
 
   private int maxVersion() {
@@ -196,21 +217,22 @@ public class GenericKeyczar extends Keyczar {
   public void revoke(int versionNumber) throws KeyczarException {
     KeyVersion version = getVersion(versionNumber);
     if (version.getStatus() == KeyStatus.INACTIVE) {
-      kmd.removeVersion(versionNumber);
+      removeKey(version);
     } else {
       throw new KeyczarException(Messages.getString("Keyczar.CantRevoke"));
     }
   }
 
   private boolean haveKeyWithId(byte[] keyId) {
-    return getKey(keyId) != null;
+    // Key sets being managed are always loaded eagerly
+    return snapshot().getKey(Util.toInt(keyId)) != null;
   }
 
   /**
    * Returns the number of versions in the keyset.
    */
   private int numVersions() {
-    return versionMap.size();
+    return snapshot().versionMap().size();
   }
 
   /**
@@ -288,6 +310,18 @@ public class GenericKeyczar extends Keyczar {
         + KeyczarFileReader.META_FILE);
   }
 
+  /**
+   * Writes the key set to a single file in the compact binary format read by
+   * {@link BinaryKeyczarReader}.
+   *
+   * @param destination The file to write
+   * @throws KeyczarException If the key set is encrypted, or can't be written
+   */
+  void writeBinary(String destination) throws KeyczarException {
+    writeFile(BinaryKeySetFormat.write(kmd, snapshot().versionMap()),
+        destination);
+  }
+
   /**
    * Encrypts the key files before writing them out to disk
    *
@@ -315,9 +349,18 @@ public class GenericKeyczar extends Keyczar {
    */
   void writeFile(String data, String location)
       throws KeyczarException {
+    try {
+      writeFile(data.getBytes(Keyczar.DEFAULT_ENCODING), location);
+    } catch (UnsupportedEncodingException e) {
+      throw new KeyczarException(e);
+    }
+  }
+
+  private void writeFile(byte[] data, String location)
+      throws KeyczarException {
     File outputFile = new File(location);
     try {
-      FileWriter writer = new FileWriter(outputFile);
+      FileOutputStream output = new FileOutputStream(outputFile);
 
       // only allow the file owner to read/write the file
       final boolean appliesToAll = false;
@@ -328,8 +371,8 @@ public class GenericKeyczar extends Keyczar {
       outputFile.setWritable(true, appliesToOwner);
       outputFile.setExecutable(false, appliesToAll);
 
-      writer.write(data);
-      writer.close();
+      output.write(data);
+      output.close();
     } catch (IOException e) {
       throw new KeyczarException(
           Messages.getString("KeyczarTool.UnableToWrite",
@@ -19,6 +19,7 @@ package org.keyczar;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.keyczar.exceptions.KeyczarException;
+import org.keyczar.exceptions.ShortBufferException;
 import org.keyczar.interfaces.KeyType;
 import org.keyczar.interfaces.SigningStream;
 import org.keyczar.interfaces.Stream;
@@ -45,30 +46,22 @@ public class HmacKey extends KeyczarKey {
   private static final String MAC_ALGORITHM = "HMACSHA1";
   private static final int HMAC_DIGEST_SIZE = 20;
 
-  private final String hmacKeyString;
-
   private SecretKey hmacKey;
   private final byte[] hash = new byte[Keyczar.KEY_HASH_SIZE];
 
   public HmacKey(byte[] keyBytes) throws KeyczarException {
-    super(keyBytes.length * 8);
-    hmacKeyString = Base64Coder.encodeWebSafe(keyBytes);
-    initJceKey(keyBytes);
+    this(keyBytes.length * 8, keyBytes);
   }
 
-  private HmacKey(int size, String hmacKeyString) {
+  private HmacKey(int size, byte[] keyBytes) throws KeyczarException {
     super(size);
-    this.hmacKeyString = hmacKeyString;
+    initJceKey(keyBytes);
   }
 
   static HmacKey generate(KeyParameters params) throws KeyczarException {
     return new HmacKey(Util.rand(params.getKeySize() / 8));
   }
 
-  void initFromJson() throws KeyczarException {
-    initJceKey(Base64Coder.decodeWebSafe(hmacKeyString));
-  }
-
   private void initJceKey(byte[] keyBytes) throws KeyczarException {
     hmacKey = new SecretKeySpec(keyBytes, MAC_ALGORITHM);
     System.arraycopy(Util.hash(keyBytes), 0, hash, 0, hash.length);
@@ -103,18 +96,17 @@ public class HmacKey extends KeyczarKey {
 
   static HmacKey read(String input) throws KeyczarException {
     try {
-      HmacKey key = fromJson(new JSONObject(input));
-      key.initFromJson();
-      return key;
+      return fromJson(new JSONObject(input));
     } catch (JSONException e) {
       throw new RuntimeException(e);
     }
   }
 
-  static HmacKey fromJson(JSONObject json) throws JSONException {
+  static HmacKey fromJson(JSONObject json)
+      throws JSONException, KeyczarException {
     return new HmacKey(
         json.getInt("size"),
-        json.getString("hmacKeyString"));
+        Base64Coder.decodeWebSafe(json.getString("hmacKeyString")));
   }
 
   @Override
@@ -122,7 +114,7 @@ public class HmacKey extends KeyczarKey {
     try {
       return new JSONObject()
         .put("size", size)
-        .put("hmacKeyString", hmacKeyString);
+        .put("hmacKeyString", Base64Coder.encodeWebSafe(hmacKey.getEncoded()));
     } catch (JSONException e) {
       throw new RuntimeException(e);
     }
@@ -133,12 +125,20 @@ public class HmacKey extends KeyczarKey {
     return hmacKey;
   }
 
-  private class HmacStream implements VerifyingStream, SigningStream {
+  /**
+   * Signs and verifies with a JCE Mac, which is initialized with the key once
+   * and reset for each message. The array methods write the tag straight
+   * into the caller's array.
+   */
+  private class HmacStream implements VerifyingStream, SigningStream,
+      ArrayMacStream {
     private final Mac hmac;
+    private final byte[] tag = new byte[HMAC_DIGEST_SIZE];
 
     public HmacStream() throws KeyczarException {
       try {
         hmac = Mac.getInstance(MAC_ALGORITHM);
+        hmac.init(hmacKey);
       } catch (GeneralSecurityException e) {
         throw new KeyczarException(e);
       }
@@ -150,22 +150,29 @@ public class HmacKey extends KeyczarKey {
     }
 
     @Override
-    public void initSign() throws KeyczarException {
-      try {
-        hmac.init(hmacKey);
-      } catch (GeneralSecurityException e) {
-        throw new KeyczarException(e);
-      }
+    public void initSign() {
+      hmac.reset();
     }
 
     @Override
-    public void initVerify() throws KeyczarException {
+    public void initVerify() {
       initSign();
     }
 
     @Override
-    public void sign(ByteBuffer output) {
-      output.put(hmac.doFinal());
+    public void sign(ByteBuffer output) throws KeyczarException {
+      finish(tag, 0);
+      output.put(tag);
+    }
+
+    @Override
+    public int sign(byte[] output, int outputOffset) throws KeyczarException {
+      if (output.length - outputOffset < HMAC_DIGEST_SIZE) {
+        throw new ShortBufferException(output.length - outputOffset,
+            HMAC_DIGEST_SIZE);
+      }
+      finish(output, outputOffset);
+      return HMAC_DIGEST_SIZE;
     }
 
     @Override
@@ -179,11 +186,47 @@ public class HmacKey extends KeyczarKey {
     }
 
     @Override
-    public boolean verify(ByteBuffer signature) {
-      byte[] sigBytes = new byte[signature.remaining()];
-      signature.get(sigBytes);
+    public void update(byte[] input, int inputOffset, int inputLength) {
+      hmac.update(input, inputOffset, inputLength);
+    }
+
+    @Override
+    public boolean verify(ByteBuffer signature) throws KeyczarException {
+      finish(tag, 0);
+      int length = signature.remaining();
+      if (length != HMAC_DIGEST_SIZE) {
+        signature.position(signature.limit());
+        return false;
+      }
+      // Compare every byte, so the time taken doesn't leak the mismatch
+      int result = 0;
+      for (int i = 0; i < HMAC_DIGEST_SIZE; i++) {
+        result |= tag[i] ^ signature.get();
+      }
+      return result == 0;
+    }
 
-      return Util.safeArrayEquals(hmac.doFinal(), sigBytes);
+    @Override
+    public boolean verify(byte[] signature, int signatureOffset,
+        int signatureLength) throws KeyczarException {
+      finish(tag, 0);
+      if (signatureLength != HMAC_DIGEST_SIZE) {
+        return false;
+      }
+      int result = 0;
+      for (int i = 0; i < HMAC_DIGEST_SIZE; i++) {
+        result |= tag[i] ^ signature[signatureOffset + i];
+      }
+      return result == 0;
+    }
+
+    private void finish(byte[] output, int outputOffset)
+        throws KeyczarException {
+      try {
+        hmac.doFinal(output, outputOffset);
+      } catch (javax.crypto.ShortBufferException e) {
+        throw new ShortBufferException(e);
+      }
     }
   }
 }
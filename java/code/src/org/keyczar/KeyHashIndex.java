@@ -0,0 +1,130 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keyczar;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Maps 4 byte key hash identifiers to the keys which have them. Several keys
+ * may share a hash. Hashes are stored as ints in an open addressing table,
+ * so keys can be looked up straight from a ciphertext or signature header
+ * without allocating.
+ *
+ * Lookups may run concurrently with each other, but not with add().
+ */
+final class KeyHashIndex {
+  private static final int INITIAL_CAPACITY = 8;
+
+  private int[] hashes = new int[INITIAL_CAPACITY];
+  private List<KeyczarKey>[] keys = newKeyTable(INITIAL_CAPACITY);
+  private int size = 0;
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private static List<KeyczarKey>[] newKeyTable(int capacity) {
+    return new List[capacity];
+  }
+
+  /**
+   * Adds a key under the given hash, after any keys already added with it.
+   */
+  void add(int hash, KeyczarKey key) {
+    int slot = find(hashes, keys, hash);
+    if (keys[slot] == null) {
+      // Keep the table at most half full, so probe sequences stay short
+      if (2 * (size + 1) > hashes.length) {
+        grow();
+        slot = find(hashes, keys, hash);
+      }
+      hashes[slot] = hash;
+      keys[slot] = new ArrayList<KeyczarKey>(1);
+      size++;
+    }
+    keys[slot].add(key);
+  }
+
+  /**
+   * Returns the keys with the given hash, or null if there are none.
+   */
+  List<KeyczarKey> get(int hash) {
+    return keys[find(hashes, keys, hash)];
+  }
+
+  /**
+   * Returns the keys whose hash is stored big-endian at the given index of
+   * the buffer, or null if there are none. The buffer's position and byte
+   * order are ignored.
+   */
+  List<KeyczarKey> get(ByteBuffer source, int index) {
+    return get(readHash(source, index));
+  }
+
+  /**
+   * Returns the hash stored big-endian at the given index of the buffer,
+   * whatever the buffer's byte order.
+   */
+  static int readHash(ByteBuffer source, int index) {
+    return (source.get(index) & 0xFF) << 24
+        | (source.get(index + 1) & 0xFF) << 16
+        | (source.get(index + 2) & 0xFF) << 8
+        | (source.get(index + 3) & 0xFF);
+  }
+
+  /**
+   * Returns the number of distinct hashes in this index.
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Returns the slot holding the given hash, or the empty slot where it
+   * belongs.
+   */
+  private static int find(int[] hashes, List<KeyczarKey>[] keys, int hash) {
+    int mask = hashes.length - 1;
+    int slot = mix(hash) & mask;
+    while (keys[slot] != null && hashes[slot] != hash) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  /**
+   * Spreads the bits of a hash, since some key types choose their hash
+   * identifiers from a small range.
+   */
+  private static int mix(int hash) {
+    int h = hash * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  private void grow() {
+    int[] newHashes = new int[hashes.length * 2];
+    List<KeyczarKey>[] newKeys = newKeyTable(newHashes.length);
+    for (int i = 0; i < hashes.length; i++) {
+      if (keys[i] != null) {
+        int slot = find(newHashes, newKeys, hashes[i]);
+        newHashes[slot] = hashes[i];
+        newKeys[slot] = keys[i];
+      }
+    }
+    hashes = newHashes;
+    keys = newKeys;
+  }
+}
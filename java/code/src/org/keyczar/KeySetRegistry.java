@@ -0,0 +1,350 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keyczar;
+
+import org.keyczar.exceptions.KeyczarException;
+import org.keyczar.interfaces.KeyczarReader;
+import org.keyczar.interfaces.KeyczarReaderFactory;
+import org.keyczar.util.Clock;
+import org.keyczar.util.SystemClock;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds Crypters, Encrypters, Signers and Verifiers for many named key sets,
+ * such as one per tenant, loading each from a {@link KeyczarReaderFactory}
+ * when first asked for.
+ *
+ * Memory is bounded by a maximum number of key sets, a maximum number of key
+ * versions across all of them, or both. When a load takes the registry past
+ * either, the least recently used key sets are evicted. They are loaded again
+ * if asked for later.
+ *
+ * Concurrent requests for a key set which isn't loaded share a single load,
+ * which runs on the thread that asked first. Failed loads aren't kept, so the
+ * next request tries again.
+ *
+ * Key sets are held separately for each kind they are asked for as. A name
+ * asked for as both a Crypter and an Encrypter, say, is loaded twice, and
+ * each copy counts towards the limits and is evicted on its own.
+ *
+ * <pre>
+ * KeySetRegistry registry = new KeySetRegistry(new KeyczarReaderFactory() {
+ *   public KeyczarReader getReader(String tenant) {
+ *     return new KeyczarFileReader("/keys/" + tenant);
+ *   }
+ * }, 10000, 0);
+ * byte[] ciphertext = registry.getCrypter(tenant).encrypt(plaintext);
+ * </pre>
+ */
+public class KeySetRegistry {
+  private final KeyczarReaderFactory factory;
+  private final int maxKeySets;
+  private final int maxVersions;
+  private Clock clock = new SystemClock();
+  // Entries in access order, so the eldest is the least recently used
+  private final LinkedHashMap<String, Entry> entries =
+      new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  // The versions of all loaded key sets. Guarded by this.
+  private int versionCount = 0;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong loadFailures = new AtomicLong();
+  private final AtomicLong totalLoadTime = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * The kinds of object a key set can be loaded as. A key set loaded as
+   * several kinds is held once for each.
+   */
+  private enum Kind {
+    CRYPTER {
+      @Override
+      Keyczar load(KeyczarReader reader) throws KeyczarException {
+        return new Crypter(reader);
+      }
+    },
+    ENCRYPTER {
+      @Override
+      Keyczar load(KeyczarReader reader) throws KeyczarException {
+        return new Encrypter(reader);
+      }
+    },
+    SIGNER {
+      @Override
+      Keyczar load(KeyczarReader reader) throws KeyczarException {
+        return new Signer(reader);
+      }
+    },
+    VERIFIER {
+      @Override
+      Keyczar load(KeyczarReader reader) throws KeyczarException {
+        return new Verifier(reader);
+      }
+    };
+
+    abstract Keyczar load(KeyczarReader reader) throws KeyczarException;
+  }
+
+  /**
+   * A key set which is loaded or being loaded.
+   */
+  private static final class Entry {
+    final FutureTask<Keyczar> load;
+    // The key set's number of versions, or 0 while it is being loaded
+    int versions = 0;
+
+    Entry(FutureTask<Keyczar> load) {
+      this.load = load;
+    }
+  }
+
+  /**
+   * @param factory Creates readers for key sets, by name
+   * @param maxKeySets The maximum number of key sets to hold, or 0 for no
+   * limit
+   * @param maxVersions The maximum number of key versions to hold across all
+   * key sets, or 0 for no limit
+   */
+  public KeySetRegistry(KeyczarReaderFactory factory, int maxKeySets,
+      int maxVersions) {
+    if (factory == null || maxKeySets < 0 || maxVersions < 0) {
+      throw new IllegalArgumentException();
+    }
+    this.factory = factory;
+    this.maxKeySets = maxKeySets;
+    this.maxVersions = maxVersions;
+  }
+
+  public Crypter getCrypter(String name) throws KeyczarException {
+    return (Crypter) get(name, Kind.CRYPTER);
+  }
+
+  public Encrypter getEncrypter(String name) throws KeyczarException {
+    return (Encrypter) get(name, Kind.ENCRYPTER);
+  }
+
+  public Signer getSigner(String name) throws KeyczarException {
+    return (Signer) get(name, Kind.SIGNER);
+  }
+
+  public Verifier getVerifier(String name) throws KeyczarException {
+    return (Verifier) get(name, Kind.VERIFIER);
+  }
+
+  /**
+   * Discards the key set with the given name, so it is loaded again when
+   * next asked for. Objects already handed out keep working.
+   */
+  public synchronized void invalidate(String name) {
+    for (Kind kind : Kind.values()) {
+      Entry entry = entries.remove(key(kind, name));
+      if (entry != null) {
+        versionCount -= entry.versions;
+      }
+    }
+  }
+
+  /**
+   * Discards every key set.
+   */
+  public synchronized void invalidateAll() {
+    entries.clear();
+    versionCount = 0;
+  }
+
+  /**
+   * Returns the number of key sets held, including those being loaded.
+   */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * Returns the number of key versions held across all loaded key sets.
+   */
+  public synchronized int getVersionCount() {
+    return versionCount;
+  }
+
+  /**
+   * Returns the number of requests answered by a loaded key set, or by
+   * waiting for another thread's successful load of it.
+   */
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  /**
+   * Returns the number of requests which loaded a key set.
+   */
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /**
+   * Returns the number of loads which failed.
+   */
+  public long getLoadFailureCount() {
+    return loadFailures.get();
+  }
+
+  /**
+   * Returns the total number of milliseconds spent loading key sets,
+   * including failed loads.
+   */
+  public long getTotalLoadTime() {
+    return totalLoadTime.get();
+  }
+
+  /**
+   * Returns the mean number of milliseconds taken to load a key set, or 0 if
+   * none have been loaded.
+   */
+  public double getAverageLoadTime() {
+    long loads = misses.get();
+    return loads == 0 ? 0 : (double) totalLoadTime.get() / loads;
+  }
+
+  /**
+   * Returns the number of key sets evicted to keep within the limits.
+   */
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  /**
+   * Returns the fraction of requests answered without a load, or 0 if there
+   * have been none.
+   */
+  public double getHitRate() {
+    long hitCount = hits.get();
+    long total = hitCount + misses.get();
+    return total == 0 ? 0 : (double) hitCount / total;
+  }
+
+  void setClock(Clock clock) {
+    this.clock = clock;
+  }
+
+  private static String key(Kind kind, String name) {
+    // Kind names contain no slash, so keys are distinct for any name
+    return kind.name() + "/" + name;
+  }
+
+  private Keyczar get(final String name, final Kind kind)
+      throws KeyczarException {
+    String key = key(kind, name);
+    Entry entry;
+    boolean loader = false;
+    synchronized (this) {
+      entry = entries.get(key);
+      if (entry == null) {
+        entry = new Entry(new FutureTask<Keyczar>(new Callable<Keyczar>() {
+          @Override
+          public Keyczar call() throws KeyczarException {
+            return kind.load(factory.getReader(name));
+          }
+        }));
+        entries.put(key, entry);
+        loader = true;
+      }
+    }
+    if (!loader) {
+      // Waiting on another thread's load is only a hit if the load succeeds
+      Keyczar keyczar = result(entry.load);
+      hits.incrementAndGet();
+      return keyczar;
+    }
+
+    misses.incrementAndGet();
+    long start = clock.now();
+    entry.load.run();
+    totalLoadTime.addAndGet(clock.now() - start);
+    Keyczar keyczar = null;
+    try {
+      keyczar = result(entry.load);
+      return keyczar;
+    } finally {
+      loaded(key, entry, keyczar);
+    }
+  }
+
+  /**
+   * Records the outcome of a load, evicting key sets if it takes the
+   * registry past its limits.
+   *
+   * @param keyczar The loaded key set, or null if the load failed
+   */
+  private synchronized void loaded(String key, Entry entry, Keyczar keyczar) {
+    boolean current = entries.get(key) == entry;
+    if (keyczar == null) {
+      loadFailures.incrementAndGet();
+      if (current) {
+        entries.remove(key);
+      }
+      return;
+    }
+    if (!current) {
+      // Invalidated while loading
+      return;
+    }
+    entry.versions = keyczar.kmd.getVersions().size();
+    versionCount += entry.versions;
+    Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+    while (overLimit() && eldest.hasNext()) {
+      Entry candidate = eldest.next().getValue();
+      // Keep the key set just loaded, and those still being loaded
+      if (candidate != entry && candidate.load.isDone()) {
+        eldest.remove();
+        versionCount -= candidate.versions;
+        evictions.incrementAndGet();
+      }
+    }
+  }
+
+  private boolean overLimit() {
+    return (maxKeySets > 0 && entries.size() > maxKeySets)
+        || (maxVersions > 0 && versionCount > maxVersions);
+  }
+
+  private static Keyczar result(FutureTask<Keyczar> load)
+      throws KeyczarException {
+    try {
+      return load.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new KeyczarException(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof KeyczarException) {
+        throw (KeyczarException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new KeyczarException(cause);
+    }
+  }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keyczar;
+
+import org.keyczar.util.Util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable view of the keys in a key set: each version's key, the primary
+ * key, and an index of keys by hash identifier. A {@link Keyczar} publishes
+ * its current snapshot through a single volatile reference, and changes to
+ * the key set publish a new snapshot, so readers never lock or see a
+ * partially built key set.
+ *
+ * When a key set is loaded lazily, some versions' keys haven't been built.
+ * Their hash identifiers are known, so lookups can tell when one is needed,
+ * and it is built from its serialized form into a new snapshot.
+ *
+ * The statuses held by the KeyVersions may change as a key set is managed,
+ * but the primary key of a snapshot never does.
+ */
+final class KeySetSnapshot {
+  static final KeySetSnapshot EMPTY =
+      new KeySetSnapshot(new LinkedHashMap<KeyVersion, KeyczarKey>(), null);
+
+  // Every version in order, mapped to null where its key isn't built
+  private final Map<KeyVersion, KeyczarKey> allVersions;
+  private final Map<KeyVersion, KeyczarKey> versionMap;
+  // The serialized form each key was read from, where known, so unchanged
+  // keys needn't be parsed again when the key set is reloaded
+  private final Map<KeyVersion, String> keyStrings;
+  // The hash identifiers of the versions whose keys aren't built
+  private final Map<KeyVersion, int[]> pendingHashes;
+  private final Map<Integer, List<KeyVersion>> pendingIndex =
+      new HashMap<Integer, List<KeyVersion>>();
+  private final KeyVersion primaryVersion;
+  private final KeyczarKey primaryKey;
+  private final KeyHashIndex hashIndex = new KeyHashIndex();
+
+  /**
+   * @param versions The key for each version, in the order they are to be
+   * tried when their hash identifiers collide. Copied.
+   * @param primaryVersion The primary version, or null if there is none
+   */
+  KeySetSnapshot(Map<KeyVersion, KeyczarKey> versions,
+      KeyVersion primaryVersion) {
+    this(versions, new HashMap<KeyVersion, String>(), primaryVersion);
+  }
+
+  /**
+   * @param versions The key for each version, in the order they are to be
+   * tried when their hash identifiers collide. Copied.
+   * @param keyStrings The serialized form of some or all of the keys. Copied.
+   * @param primaryVersion The primary version, or null if there is none
+   */
+  KeySetSnapshot(Map<KeyVersion, KeyczarKey> versions,
+      Map<KeyVersion, String> keyStrings, KeyVersion primaryVersion) {
+    this(versions, keyStrings, new HashMap<KeyVersion, int[]>(),
+        primaryVersion);
+  }
+
+  /**
+   * @param versions The key for each version, in the order they are to be
+   * tried when their hash identifiers collide, or null for versions whose
+   * keys aren't built. Copied.
+   * @param keyStrings The serialized form of some or all of the keys,
+   * including every key which isn't built. Copied.
+   * @param pendingHashes The hash identifiers, including fall back hashes, of
+   * each version whose key isn't built. Copied.
+   * @param primaryVersion The primary version, whose key must be built, or
+   * null if there is none
+   */
+  KeySetSnapshot(Map<KeyVersion, KeyczarKey> versions,
+      Map<KeyVersion, String> keyStrings, Map<KeyVersion, int[]> pendingHashes,
+      KeyVersion primaryVersion) {
+    allVersions = new LinkedHashMap<KeyVersion, KeyczarKey>(versions);
+    Map<KeyVersion, KeyczarKey> built =
+        new LinkedHashMap<KeyVersion, KeyczarKey>();
+    for (Map.Entry<KeyVersion, KeyczarKey> entry : allVersions.entrySet()) {
+      if (entry.getValue() != null) {
+        built.put(entry.getKey(), entry.getValue());
+      }
+    }
+    versionMap = Collections.unmodifiableMap(built);
+    this.keyStrings = new HashMap<KeyVersion, String>(keyStrings);
+    this.pendingHashes = new HashMap<KeyVersion, int[]>(pendingHashes);
+    this.primaryVersion = primaryVersion;
+    primaryKey = primaryVersion == null ? null : versions.get(primaryVersion);
+    for (KeyczarKey key : versionMap.values()) {
+      addHash(key.hash(), key);
+      // Add fall back hash(es)
+      for (byte[] hash : key.fallbackHash()) {
+        addHash(hash, key);
+      }
+    }
+    for (Map.Entry<KeyVersion, int[]> entry : this.pendingHashes.entrySet()) {
+      for (int hash : entry.getValue()) {
+        List<KeyVersion> pending = pendingIndex.get(hash);
+        if (pending == null) {
+          pending = new ArrayList<KeyVersion>(1);
+          pendingIndex.put(hash, pending);
+        }
+        pending.add(entry.getKey());
+      }
+    }
+  }
+
+  private void addHash(byte[] hash, KeyczarKey key) {
+    if (hash.length != Keyczar.KEY_HASH_SIZE) {
+      throw new IllegalArgumentException();
+    }
+    hashIndex.add(Util.toInt(hash), key);
+  }
+
+  /**
+   * Returns a copy of this snapshot with the given version added or replaced.
+   */
+  KeySetSnapshot withVersion(KeyVersion version, KeyczarKey key) {
+    Map<KeyVersion, KeyczarKey> versions =
+        new LinkedHashMap<KeyVersion, KeyczarKey>(allVersions);
+    versions.put(version, key);
+    Map<KeyVersion, String> strings =
+        new HashMap<KeyVersion, String>(keyStrings);
+    strings.remove(version);
+    Map<KeyVersion, int[]> pending =
+        new HashMap<KeyVersion, int[]>(pendingHashes);
+    pending.remove(version);
+    return new KeySetSnapshot(versions, strings, pending, primaryVersion);
+  }
+
+  /**
+   * Returns a copy of this snapshot without the given version. If it was
+   * primary, the copy has no primary version.
+   */
+  KeySetSnapshot withoutVersion(KeyVersion version) {
+    Map<KeyVersion, KeyczarKey> versions =
+        new LinkedHashMap<KeyVersion, KeyczarKey>(allVersions);
+    versions.remove(version);
+    Map<KeyVersion, String> strings =
+        new HashMap<KeyVersion, String>(keyStrings);
+    strings.remove(version);
+    Map<KeyVersion, int[]> pending =
+        new HashMap<KeyVersion, int[]>(pendingHashes);
+    pending.remove(version);
+    return new KeySetSnapshot(versions, strings, pending,
+        version.equals(primaryVersion) ? null : primaryVersion);
+  }
+
+  /**
+   * Returns a copy of this snapshot with the given keys built for versions
+   * which were pending. Their serialized forms are kept.
+   */
+  KeySetSnapshot withBuiltKeys(Map<KeyVersion, KeyczarKey> builtKeys) {
+    Map<KeyVersion, KeyczarKey> versions =
+        new LinkedHashMap<KeyVersion, KeyczarKey>(allVersions);
+    versions.putAll(builtKeys);
+    Map<KeyVersion, int[]> pending =
+        new HashMap<KeyVersion, int[]>(pendingHashes);
+    pending.keySet().removeAll(builtKeys.keySet());
+    return new KeySetSnapshot(versions, keyStrings, pending, primaryVersion);
+  }
+
+  /**
+   * Returns a copy of this snapshot with a different primary version, which
+   * may be null. The version's key must be built.
+   */
+  KeySetSnapshot withPrimaryVersion(KeyVersion version) {
+    return new KeySetSnapshot(allVersions, keyStrings, pendingHashes, version);
+  }
+
+  /**
+   * Returns an unmodifiable map of versions to their keys. Versions whose keys
+   * aren't built are left out.
+   */
+  Map<KeyVersion, KeyczarKey> versionMap() {
+    return versionMap;
+  }
+
+  /**
+   * Returns the serialized form the given version's key was read from, or
+   * null if it isn't known.
+   */
+  String getKeyString(KeyVersion version) {
+    return keyStrings.get(version);
+  }
+
+  /**
+   * Returns the hash identifiers of the given version if its key isn't
+   * built, or null if it is.
+   */
+  int[] getPendingHashes(KeyVersion version) {
+    return pendingHashes.get(version);
+  }
+
+  /**
+   * Returns whether any version's key isn't built.
+   */
+  boolean hasPendingKeys() {
+    return !pendingHashes.isEmpty();
+  }
+
+  /**
+   * Returns the versions with the given hash identifier whose keys aren't
+   * built, or null if there are none.
+   */
+  List<KeyVersion> getPendingVersions(int hash) {
+    return pendingIndex.isEmpty() ? null : pendingIndex.get(hash);
+  }
+
+  KeyVersion getPrimaryVersion() {
+    return primaryVersion;
+  }
+
+  KeyczarKey getPrimaryKey() {
+    return primaryKey;
+  }
+
+  /**
+   * Returns the built keys with the given hash identifier, or null if there
+   * are none.
+   */
+  List<KeyczarKey> getKey(int hash) {
+    return hashIndex.get(hash);
+  }
+
+  /**
+   * Returns the built keys with the hash identifier stored at the given
+   * absolute index of the buffer, or null if there are none.
+   */
+  List<KeyczarKey> getKey(ByteBuffer source, int index) {
+    return hashIndex.get(source, index);
+  }
+}
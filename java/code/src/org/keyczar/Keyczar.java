@@ -16,17 +16,31 @@
 
 package org.keyczar;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.keyczar.enums.KeyLoadingMode;
 import org.keyczar.enums.KeyPurpose;
 import org.keyczar.enums.KeyStatus;
+import org.keyczar.enums.StreamCacheStrategy;
 import org.keyczar.exceptions.KeyczarException;
 import org.keyczar.i18n.Messages;
 import org.keyczar.interfaces.EncryptedReader;
+import org.keyczar.interfaces.KeyBuildingReader;
+import org.keyczar.interfaces.KeyType;
 import org.keyczar.interfaces.KeyczarReader;
 import org.keyczar.util.Util;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Manages a Keyczar key set.
@@ -42,53 +56,136 @@ abstract class Keyczar {
   public static final int KEY_HASH_SIZE = 4;
   public static final int HEADER_SIZE = 1 + KEY_HASH_SIZE;
 
-  final KeyMetadata kmd;
-  KeyVersion primaryVersion;
-  final HashMap<KeyVersion, KeyczarKey> versionMap =
-    new HashMap<KeyVersion, KeyczarKey>();
-  final HashMap<KeyHash, ArrayList<KeyczarKey>> hashMap =
-    new HashMap<KeyHash, ArrayList<KeyczarKey>>(); // keep track of used hash identifiers
+  // Replaced, along with the snapshot, when the key set is reloaded
+  volatile KeyMetadata kmd;
+  // Readers take the current snapshot once per operation and never lock.
+  // Writers synchronize on this object and publish a new snapshot.
+  private volatile KeySetSnapshot snapshot = KeySetSnapshot.EMPTY;
+  private volatile StreamCacheStrategy streamCacheStrategy =
+      StreamCacheStrategy.SHARED;
+  private int maxIdleStreams = StreamQueue.DEFAULT_MAX_IDLE;
+  private long streamIdleTimeout = StreamQueue.DEFAULT_IDLE_TIMEOUT;
+  private final KeyLoadingMode loadingMode;
 
-  private class KeyHash {
-    private byte[] data;
-
-    private KeyHash(byte[] d) {
-      if (d.length != KEY_HASH_SIZE) {
-        throw new IllegalArgumentException();
-      }
-      data = d;
-    }
-
-    @Override
-    public boolean equals(Object o) {
-      return (o instanceof KeyHash && o.hashCode() == this.hashCode());
-    }
+  /**
+   * Instantiates a new Keyczar object by passing it a Keyczar reader object
+   *
+   * @param reader A KeyczarReader to read keys from
+   * @throws KeyczarException
+   */
+  public Keyczar(KeyczarReader reader) throws KeyczarException {
+    this(reader, null);
+  }
 
-    @Override
-    public int hashCode() {
-      return Util.toInt(data);
-    }
+  /**
+   * Instantiates a new Keyczar object, reading and parsing the key of each
+   * version concurrently on the given Executor. Parsing can dominate the time
+   * to open key sets with many versions, particularly of public key types.
+   * The resulting key set is the same as when read serially: versions keep
+   * the order of the metadata, and if several fail to load, the error for the
+   * first of them is thrown.
+   *
+   * @param reader A KeyczarReader to read keys from. It must allow getKey to
+   * be called from several threads at once.
+   * @param executor The Executor to load versions on, or null to load them
+   * serially on the calling thread
+   * @throws KeyczarException
+   */
+  public Keyczar(KeyczarReader reader, Executor executor)
+      throws KeyczarException {
+    this(reader, executor, KeyLoadingMode.EAGER);
   }
 
   /**
-   * Instantiates a new Keyczar object by passing it a Keyczar reader object
+   * Instantiates a new Keyczar object, building keys as the given mode
+   * requires. With {@link KeyLoadingMode#LAZY}, only the primary key is built
+   * now. The other versions are indexed by hash identifier, which for private
+   * keys only needs their public part, and each is built the first time a
+   * ciphertext or signature refers to it. Reloads use the same mode.
    *
    * @param reader A KeyczarReader to read keys from
+   * @param executor The Executor to load versions on, or null to load them
+   * serially on the calling thread
+   * @param loadingMode When to build the keys of each version
    * @throws KeyczarException
    */
-  public Keyczar(KeyczarReader reader) throws KeyczarException {
+  public Keyczar(KeyczarReader reader, Executor executor,
+      KeyLoadingMode loadingMode) throws KeyczarException {
+    if (loadingMode == null) {
+      throw new NullPointerException();
+    }
+    this.loadingMode = loadingMode;
     // Reads keys from the KeyczarReader
-    kmd = KeyMetadata.read(reader.getMetadata());
-    if (!isAcceptablePurpose(kmd.getPurpose())) {
-      throw new KeyczarException(
-          Messages.getString("Keyczar.UnacceptablePurpose", kmd.getPurpose()));
+    kmd = readMetadata(reader);
+    snapshot = readKeys(reader, kmd, KeySetSnapshot.EMPTY, executor);
+  }
+
+  /**
+   * Reads the key set again from the given reader, and atomically replaces
+   * the keys in use. Operations already running finish with the old keys,
+   * and those started afterwards use the new ones, so keys can be rotated
+   * while serving traffic without locking or rebuilding this object. Keys
+   * whose versions are unchanged are reused, along with their cached streams.
+   *
+   * @param reader A KeyczarReader to read the new key set from
+   * @throws KeyczarException If the new key set can't be read, or doesn't
+   * have the same type and an acceptable purpose. The keys in use are then
+   * left unchanged.
+   */
+  public void reload(KeyczarReader reader) throws KeyczarException {
+    reload(reader, null);
+  }
+
+  /**
+   * Reloads the key set as {@link #reload(KeyczarReader)} does, loading the
+   * changed versions concurrently on the given Executor.
+   *
+   * @param reader A KeyczarReader to read the new key set from. It must allow
+   * getKey to be called from several threads at once.
+   * @param executor The Executor to load versions on, or null to load them
+   * serially on the calling thread
+   * @throws KeyczarException If the new key set can't be read, or doesn't
+   * have the same type and an acceptable purpose. The keys in use are then
+   * left unchanged.
+   */
+  public synchronized void reload(KeyczarReader reader, Executor executor)
+      throws KeyczarException {
+    KeyMetadata metadata = readMetadata(reader);
+    if (metadata.getType() != kmd.getType()) {
+      throw new KeyczarException(Messages.getString("Keyczar.ReloadTypeChanged",
+          kmd.getType(), metadata.getType()));
+    }
+    KeySetSnapshot reloaded = readKeys(reader, metadata, snapshot, executor);
+    kmd = metadata;
+    snapshot = reloaded;
+  }
+
+  private KeyMetadata readMetadata(KeyczarReader reader)
+      throws KeyczarException {
+    KeyMetadata metadata = KeyMetadata.read(reader.getMetadata());
+    if (!isAcceptablePurpose(metadata.getPurpose())) {
+      throw new KeyczarException(Messages.getString(
+          "Keyczar.UnacceptablePurpose", metadata.getPurpose()));
     }
 
-    if (kmd.isEncrypted() && !(reader instanceof EncryptedReader)) {
+    if (metadata.isEncrypted() && !(reader instanceof EncryptedReader)) {
       throw new KeyczarException(
           Messages.getString("Keyczar.NeedEncryptedReader"));
     }
-    for (KeyVersion version : kmd.getVersions()) {
+    return metadata;
+  }
+
+  /**
+   * Reads the keys of every version in the metadata. Where a version's key is
+   * unchanged from the previous snapshot, the previous key is kept, and is
+   * only parsed again if its serialized form has changed. Versions are loaded
+   * on the executor if there is one, and are assembled in metadata order
+   * whichever finishes first.
+   */
+  private KeySetSnapshot readKeys(KeyczarReader reader, KeyMetadata metadata,
+      KeySetSnapshot previous, Executor executor) throws KeyczarException {
+    KeyVersion primaryVersion = null;
+    for (KeyVersion version : metadata.getVersions()) {
       if (version.getStatus() == KeyStatus.PRIMARY) {
         if (primaryVersion != null) {
           throw new KeyczarException(
@@ -96,25 +193,180 @@ abstract class Keyczar {
         }
         primaryVersion = version;
       }
-      String keyString = reader.getKey(version.getVersionNumber());
-      KeyczarKey key = kmd.getType().getBuilder().read(keyString);
-      addKeyHashMap(key.hash(), key);
-      //Add fall back hash(es)
-      for (byte[] h : key.fallbackHash()) {
-        addKeyHashMap(h, key);
+    }
+
+    List<VersionLoader> loaders = new ArrayList<VersionLoader>();
+    List<FutureTask<KeyczarKey>> loads =
+        new ArrayList<FutureTask<KeyczarKey>>();
+    for (KeyVersion version : metadata.getVersions()) {
+      boolean lazy = loadingMode == KeyLoadingMode.LAZY
+          && version != primaryVersion;
+      VersionLoader loader = new VersionLoader(reader, metadata.getType(),
+          version, previous, lazy);
+      FutureTask<KeyczarKey> load = new FutureTask<KeyczarKey>(loader);
+      loaders.add(loader);
+      loads.add(load);
+      if (executor == null || metadata.getVersions().size() == 1) {
+        load.run();
+      } else {
+        try {
+          executor.execute(load);
+        } catch (RejectedExecutionException e) {
+          load.run();
+        }
+      }
+    }
+
+    Map<KeyVersion, KeyczarKey> versions =
+        new LinkedHashMap<KeyVersion, KeyczarKey>();
+    Map<KeyVersion, String> keyStrings = new HashMap<KeyVersion, String>();
+    Map<KeyVersion, int[]> pendingHashes = new HashMap<KeyVersion, int[]>();
+    try {
+      for (int i = 0; i < loads.size(); i++) {
+        VersionLoader loader = loaders.get(i);
+        KeyczarKey key = await(loads.get(i));
+        if (key == null) {
+          pendingHashes.put(loader.version, loader.hashes);
+        } else if (key != previous.versionMap().get(loader.version)) {
+          configureStreamCache(key);
+        }
+        versions.put(loader.version, key);
+        keyStrings.put(loader.version, loader.keyString);
+      }
+    } finally {
+      // Don't leave loads running after a failure
+      for (FutureTask<KeyczarKey> load : loads) {
+        load.cancel(false);
+      }
+    }
+    return new KeySetSnapshot(versions, keyStrings, pendingHashes,
+        primaryVersion);
+  }
+
+  private static KeyczarKey await(FutureTask<KeyczarKey> load)
+      throws KeyczarException {
+    try {
+      return load.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new KeyczarException(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof KeyczarException) {
+        throw (KeyczarException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new KeyczarException(cause);
+    }
+  }
+
+  /**
+   * Reads and parses the key of one version, returning the previous
+   * snapshot's key instead if it is unchanged. A lazy loader returns null
+   * rather than building a new key, leaving the key's hash identifiers in
+   * hashes.
+   */
+  private static final class VersionLoader implements Callable<KeyczarKey> {
+    private final KeyczarReader reader;
+    private final KeyType type;
+    private final KeyVersion version;
+    private final KeySetSnapshot previous;
+    private final boolean lazy;
+    // Set by call, and read once its result has been awaited
+    private String keyString;
+    private int[] hashes;
+
+    VersionLoader(KeyczarReader reader, KeyType type, KeyVersion version,
+        KeySetSnapshot previous, boolean lazy) {
+      this.reader = reader;
+      this.type = type;
+      this.version = version;
+      this.previous = previous;
+      this.lazy = lazy;
+    }
+
+    @Override
+    public KeyczarKey call() throws KeyczarException {
+      KeyczarKey previousKey = previous.versionMap().get(version);
+      if (!lazy && reader instanceof KeyBuildingReader) {
+        KeyczarKey key = ((KeyBuildingReader) reader)
+            .readKey(type, version.getVersionNumber());
+        if (key != null) {
+          // There is no key string, so the key is compared instead
+          return reuse(previousKey, key);
+        }
+      }
+      keyString = reader.getKey(version.getVersionNumber());
+      boolean unchanged = keyString.equals(previous.getKeyString(version));
+      if (unchanged && previousKey != null) {
+        return previousKey;
       }
-      versionMap.put(version, key);
+      if (lazy) {
+        hashes = unchanged ? previous.getPendingHashes(version) : null;
+        if (hashes == null) {
+          hashes = readHashes(type, keyString);
+        }
+        return null;
+      }
+      return reuse(previousKey, type.getBuilder().read(keyString));
+    }
+
+    /**
+     * Returns the previous key if the new one is the same, so its cached
+     * streams are kept.
+     */
+    private static KeyczarKey reuse(KeyczarKey previousKey, KeyczarKey key) {
+      if (previousKey != null && previousKey.getClass() == key.getClass()
+          && previousKey.equals(key)) {
+        return previousKey;
+      }
+      return key;
     }
   }
-  
-  private void addKeyHashMap(byte[] hash, KeyczarKey key) {
-    KeyHash kHash = new KeyHash(hash);
-    if (hashMap.get(kHash) == null) {
-      hashMap.put(kHash, new ArrayList<KeyczarKey>());
+
+  /**
+   * Returns the hash identifiers of a serialized key, including its fall
+   * back hashes, building as little of the key as possible. Private keys
+   * are identified by their public keys, so only those are built.
+   */
+  private static int[] readHashes(KeyType type, String keyString)
+      throws KeyczarException {
+    KeyczarKey key;
+    try {
+      if (type == DefaultKeyType.RSA_PRIV) {
+        key = RsaPublicKey.fromJson(
+            new JSONObject(keyString).getJSONObject("publicKey"));
+      } else if (type == DefaultKeyType.DSA_PRIV) {
+        key = DsaPublicKey.fromJson(
+            new JSONObject(keyString).getJSONObject("publicKey"));
+      } else {
+        key = type.getBuilder().read(keyString);
+      }
+    } catch (JSONException e) {
+      throw new KeyczarException(e);
+    }
+    List<Integer> hashes = new ArrayList<Integer>();
+    hashes.add(Util.toInt(key.hash()));
+    for (byte[] hash : key.fallbackHash()) {
+      hashes.add(Util.toInt(hash));
     }
-    hashMap.get(kHash).add(key);
+    int[] result = new int[hashes.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = hashes.get(i);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the keys currently in use. Operations should read this once, so
+   * they work on a consistent key set.
+   */
+  KeySetSnapshot snapshot() {
+    return snapshot;
   }
-  
 
   /**
    * Instantiates a new Keyczar object with a KeyczarFileReader instantiated
@@ -139,21 +391,202 @@ abstract class Keyczar {
    * @param version KeyVersion
    * @param key KeyczarKey
    */
-  void addKey(KeyVersion version, KeyczarKey key) {
-    addKeyHashMap(key.hash(), key);
-    versionMap.put(version, key);
+  synchronized void addKey(KeyVersion version, KeyczarKey key) {
+    configureStreamCache(key);
+    snapshot = snapshot.withVersion(version, key);
     kmd.addVersion(version);
   }
 
+  /**
+   * Removes the given version and its key from the key set.
+   *
+   * @param version KeyVersion
+   */
+  synchronized void removeKey(KeyVersion version) {
+    snapshot = snapshot.withoutVersion(version);
+    kmd.removeVersion(version.getVersionNumber());
+  }
+
+  /**
+   * Makes the given version primary, or leaves the key set without a primary
+   * if it is null. Its key must already be built, as it is in the eagerly
+   * loaded key sets this is used on.
+   */
+  synchronized void setPrimaryVersion(KeyVersion version) {
+    snapshot = snapshot.withPrimaryVersion(version);
+  }
+
+  private void configureStreamCache(KeyczarKey key) {
+    if (streamCacheStrategy != StreamCacheStrategy.SHARED
+        || maxIdleStreams != StreamQueue.DEFAULT_MAX_IDLE
+        || streamIdleTimeout != StreamQueue.DEFAULT_IDLE_TIMEOUT) {
+      key.setStreamCache(streamCacheStrategy, maxIdleStreams,
+          streamIdleTimeout);
+    }
+  }
+
+  /**
+   * Sets how each key in this key set caches the streams holding its
+   * initialized JCE objects. The default is
+   * {@link StreamCacheStrategy#SHARED}, which suits most applications. Under
+   * heavy concurrency, {@link StreamCacheStrategy#STRIPED} or
+   * {@link StreamCacheStrategy#THREAD_LOCAL} avoid contention between
+   * threads. Applications running on virtual threads should use
+   * {@link StreamCacheStrategy#VIRTUAL_THREADS}, along with the segmented
+   * streams of {@link Encrypter} and {@link Crypter}, which only hold a
+   * stream while a segment is encrypted or decrypted, not across I/O.
+   *
+   * Streams cached so far are discarded, so this is best called once, before
+   * the key set is used.
+   *
+   * @param strategy The stream caching strategy to use
+   */
+  public synchronized void setStreamCacheStrategy(
+      StreamCacheStrategy strategy) {
+    if (strategy == null) {
+      throw new NullPointerException();
+    }
+    streamCacheStrategy = strategy;
+    resetStreamCaches();
+  }
+
+  public StreamCacheStrategy getStreamCacheStrategy() {
+    return streamCacheStrategy;
+  }
+
+  /**
+   * Bounds the streams each key in this key set keeps for reuse. Streams
+   * are only created when none are idle, so a burst of concurrent use creates
+   * many; once it ends, at most maxIdleStreams are kept for each key, and
+   * those unused for idleTimeout milliseconds are evicted as the key is used.
+   * By default up to 64 streams are kept for a minute.
+   *
+   * With {@link StreamCacheStrategy#THREAD_LOCAL}, the limit applies to each
+   * thread, and is capped at a few streams. Those streams are released with
+   * their threads, rather than after a timeout. With
+   * {@link StreamCacheStrategy#VIRTUAL_THREADS}, the limit is capped at the
+   * number of carrier threads, and idle streams aren't evicted.
+   *
+   * Streams cached so far are discarded, so this is best called once, before
+   * the key set is used.
+   *
+   * @param maxIdleStreams The maximum number of unused streams to keep for
+   * each key
+   * @param idleTimeout The number of milliseconds after which an unused
+   * stream is evicted, or 0 to never evict streams
+   */
+  public synchronized void setStreamCacheLimits(int maxIdleStreams,
+      long idleTimeout) {
+    if (maxIdleStreams < 0 || idleTimeout < 0) {
+      throw new IllegalArgumentException();
+    }
+    this.maxIdleStreams = maxIdleStreams;
+    this.streamIdleTimeout = idleTimeout;
+    resetStreamCaches();
+  }
+
+  /**
+   * Builds streams for every key in this key set ahead of time, so that the
+   * first operations served run as fast as later ones rather than waiting
+   * for JCE objects to be created and initialized. This is best called once
+   * the key set is loaded, after any calls to
+   * {@link #setStreamCacheStrategy} or {@link #setStreamCacheLimits}.
+   *
+   * At most the stream cache limit is kept for each key. With
+   * {@link StreamCacheStrategy#THREAD_LOCAL}, only the calling thread's cache
+   * is warmed.
+   * With {@link KeyLoadingMode#LAZY}, only the keys built so far are warmed.
+   *
+   * @param streamsPerKey The number of streams to build for each key,
+   * typically the number of threads expected to use the key set at once
+   * @throws KeyczarException If a JCE error occurs
+   */
+  public void warmUp(int streamsPerKey) throws KeyczarException {
+    if (streamsPerKey < 0) {
+      throw new IllegalArgumentException();
+    }
+    for (KeyczarKey key : snapshot.versionMap().values()) {
+      key.warmUp(streamsPerKey);
+    }
+  }
+
+  private void resetStreamCaches() {
+    for (KeyczarKey key : snapshot.versionMap().values()) {
+      key.setStreamCache(streamCacheStrategy, maxIdleStreams,
+          streamIdleTimeout);
+    }
+  }
+
   KeyczarKey getPrimaryKey() {
-    if (primaryVersion == null) {
-      return null;
+    return snapshot.getPrimaryKey();
+  }
+
+  /**
+   * Returns the keys with the given hash identifier, or null if there are
+   * none.
+   */
+  List<KeyczarKey> getKey(byte[] hash) throws KeyczarException {
+    return getKey(Util.toInt(hash));
+  }
+
+  /**
+   * Returns the keys with the hash identifier found at the given offset, or
+   * null if there are none.
+   */
+  List<KeyczarKey> getKey(byte[] source, int offset)
+      throws KeyczarException {
+    return getKey(Util.toInt(source, offset));
+  }
+
+  /**
+   * Returns the keys with the hash identifier found at the given absolute
+   * index of the buffer, or null if there are none. The buffer's position is
+   * not changed.
+   */
+  List<KeyczarKey> getKey(ByteBuffer source, int index)
+      throws KeyczarException {
+    KeySetSnapshot current = snapshot;
+    if (current.hasPendingKeys()) {
+      return getKey(KeyHashIndex.readHash(source, index));
+    }
+    return current.getKey(source, index);
+  }
+
+  /**
+   * Returns the keys with the given hash identifier, first building any
+   * which have yet to be, or null if there are none.
+   */
+  private List<KeyczarKey> getKey(int hash) throws KeyczarException {
+    KeySetSnapshot current = snapshot;
+    if (current.getPendingVersions(hash) != null) {
+      current = buildKeys(hash);
     }
-    return versionMap.get(primaryVersion);
+    return current.getKey(hash);
   }
 
-  Collection<KeyczarKey> getKey(byte[] hash) {
-    return hashMap.get(new KeyHash(hash));
+  private synchronized KeySetSnapshot buildKeys(int hash)
+      throws KeyczarException {
+    List<KeyVersion> versions = snapshot.getPendingVersions(hash);
+    if (versions != null) {
+      buildKeys(versions);
+    }
+    return snapshot;
+  }
+
+  /**
+   * Builds the keys of the given versions, which haven't been built, and
+   * publishes a snapshot including them. Must hold this object's lock.
+   */
+  private void buildKeys(List<KeyVersion> versions) throws KeyczarException {
+    Map<KeyVersion, KeyczarKey> built =
+        new HashMap<KeyVersion, KeyczarKey>();
+    for (KeyVersion version : versions) {
+      KeyczarKey key =
+          kmd.getType().getBuilder().read(snapshot.getKeyString(version));
+      configureStreamCache(key);
+      built.put(version, key);
+    }
+    snapshot = snapshot.withBuiltKeys(built);
   }
 
   /**
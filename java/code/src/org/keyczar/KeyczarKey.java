@@ -17,6 +17,7 @@
 package org.keyczar;
 
 import org.json.JSONObject;
+import org.keyczar.enums.StreamCacheStrategy;
 import org.keyczar.exceptions.KeyczarException;
 import org.keyczar.i18n.Messages;
 import org.keyczar.interfaces.KeyType;
@@ -72,6 +73,11 @@ public abstract class KeyczarKey {
     dest.put(hash());
   }
 
+  void copyHeader(byte[] dest, int offset) {
+    dest[offset] = Keyczar.FORMAT_VERSION;
+    System.arraycopy(hash(), 0, dest, offset + 1, Keyczar.KEY_HASH_SIZE);
+  }
+
   @Override
   public boolean equals(Object o) {
     try {
@@ -87,13 +93,60 @@ public abstract class KeyczarKey {
     return Util.toInt(this.hash());
   }
   
-  protected StreamQueue<Stream> cachedStreams = new StreamQueue<Stream>();
+  protected volatile StreamCache<Stream> cachedStreams =
+      new StreamQueue<Stream>();
 
   protected abstract Stream getStream() throws KeyczarException;
 
   protected void addStreamToCacheForReuse(Stream stream){
     cachedStreams.add(stream);
   }
+
+  /**
+   * Creates streams until this key's cache holds the given number, so that
+   * later operations don't pay for initializing JCE objects. Streams are
+   * borrowed all at once, so any already cached count towards the total.
+   */
+  void warmUp(int streams) throws KeyczarException {
+    Stream[] borrowed = new Stream[streams];
+    try {
+      for (int i = 0; i < streams; i++) {
+        borrowed[i] = getStream();
+      }
+    } finally {
+      for (Stream stream : borrowed) {
+        if (stream != null) {
+          addStreamToCacheForReuse(stream);
+        }
+      }
+    }
+  }
+
+  /**
+   * Replaces this key's stream cache with an empty one using the given
+   * strategy and limits. Streams cached so far are discarded.
+   *
+   * @param strategy How streams are shared between threads
+   * @param maxIdle The maximum number of unused streams to keep
+   * @param idleTimeout The number of milliseconds after which an unused
+   * stream is evicted, or 0 to never evict streams
+   */
+  void setStreamCache(StreamCacheStrategy strategy, int maxIdle,
+      long idleTimeout) {
+    switch (strategy) {
+      case THREAD_LOCAL:
+        cachedStreams = new ThreadLocalStreamCache<Stream>(maxIdle);
+        break;
+      case STRIPED:
+        cachedStreams = new StripedStreamCache<Stream>(maxIdle, idleTimeout);
+        break;
+      case VIRTUAL_THREADS:
+        cachedStreams = new CarrierBoundedStreamCache<Stream>(maxIdle);
+        break;
+      default:
+        cachedStreams = new StreamQueue<Stream>(maxIdle, idleTimeout);
+    }
+  }
   /**
    * Return this key's type
    *
@@ -136,6 +189,10 @@ public abstract class KeyczarKey {
     return toJson().toString();
   }
 
+  /**
+   * Returns the key's JSON form. Keys only hold their JCE form, so this is
+   * derived afresh on each call.
+   */
   abstract JSONObject toJson();
 
   /**
@@ -52,6 +52,7 @@ import java.util.HashMap;
  *   <li>usekey: encrypt or sign a message with the specified key
  *   <li>import: load a key into a key set
  *   <li>export: extract a specified key version from a key set
+ *   <li>convert: write a key set to a single file in the binary format
  * </ul>
  *
  * @author steveweis@gmail.com (Steve Weis)
@@ -155,6 +156,9 @@ public class KeyczarTool {
           case EXPORT_KEY:
             exportKey(locationFlag, crypterFlag, Integer.parseInt(versionFlag),
                 pemFileFlag, passphraseFlag);
+            break;
+          case CONVERT:
+            convert(locationFlag, destinationFlag);
         }
       } catch (Exception e) {
         e.printStackTrace();
@@ -163,6 +167,24 @@ public class KeyczarTool {
     }
   }
 
+  /**
+   * Writes the key set at the given location to a single file in the compact
+   * binary format read by {@link BinaryKeyczarReader}. Requires location and
+   * destination flags. Encrypted key sets can't be converted.
+   *
+   * @throws KeyczarException if the location or destination flag is not set,
+   * or the key set can't be converted
+   */
+  private static void convert(String locationFlag, String destinationFlag)
+      throws KeyczarException {
+    if (destinationFlag == null) {
+      throw new KeyczarException(
+          Messages.getString("KeyczarTool.MustDefineDestination"));
+    }
+    GenericKeyczar genericKeyczar = createGenericKeyczar(locationFlag);
+    genericKeyczar.writeBinary(destinationFlag);
+  }
+
   private static void exportKey(String locationFlag, String crypterFlag, int versionFlag,
       String pemFileFlag, String passphraseFlag) throws KeyczarException {
     if (versionFlag < 0) {
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keyczar;
+
+import org.keyczar.exceptions.KeyczarException;
+import org.keyczar.i18n.Messages;
+import org.keyczar.interfaces.KeyczarReader;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads metadata and key files from the given location using NIO. Each file
+ * is read with a single {@link Files#readAllBytes} call and decoded as UTF-8,
+ * whatever the platform's default charset.
+ *
+ * When the metadata is read, the files of all the versions it lists are read
+ * in parallel on an Executor, and the following {@link #getKey(int)} calls
+ * are answered from those reads. Opening a key set with many versions then
+ * takes about as long as reading one file, which matters most on network file
+ * systems where each read waits on a round trip.
+ *
+ * The prefetched files belong to the most recent metadata read, so a reader
+ * should serve one key set load at a time. Concurrent loads through one
+ * reader still work, but the later metadata read replaces the earlier one's
+ * prefetches, and the earlier load then reads its remaining files one at a
+ * time, or gets ones read for the later load.
+ */
+public class NioKeyczarFileReader implements KeyczarReader {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  // File reads mostly wait on the file system, so there are more threads than
+  // processors
+  private static final int IO_THREADS = 16;
+
+  private final Path location;
+  private final Executor executor;
+  // Reads started when the metadata was last read, each used at most once.
+  // Replaced whole, so a metadata read never removes another's prefetches
+  // while they are being added.
+  private volatile ConcurrentMap<Integer, FutureTask<String>> prefetched =
+      new ConcurrentHashMap<Integer, FutureTask<String>>();
+
+  /**
+   * Holds the shared pool used when callers don't supply an Executor. The
+   * pool is only created on first use, and its threads are daemon threads
+   * which exit when idle.
+   */
+  private static final class DefaultPool {
+    static final ThreadPoolExecutor INSTANCE = new ThreadPoolExecutor(
+        IO_THREADS, IO_THREADS, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "Keyczar file reader");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+
+    static {
+      INSTANCE.allowCoreThreadTimeOut(true);
+    }
+  }
+
+  public NioKeyczarFileReader(String fileLocation) {
+    this(fileLocation, DefaultPool.INSTANCE);
+  }
+
+  /**
+   * @param fileLocation The directory holding the key set
+   * @param executor The Executor to read version files on, or null to read
+   * them one at a time as they are asked for
+   */
+  public NioKeyczarFileReader(String fileLocation, Executor executor) {
+    location = Paths.get(fileLocation);
+    this.executor = executor;
+  }
+
+  @Override
+  public String getKey(int version) throws KeyczarException {
+    FutureTask<String> read = prefetched.remove(version);
+    if (read == null) {
+      return readFile(String.valueOf(version));
+    }
+    try {
+      return read.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new KeyczarException(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof KeyczarException) {
+        throw (KeyczarException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new KeyczarException(cause);
+    }
+  }
+
+  @Override
+  public String getKey() throws KeyczarException {
+    KeyMetadata metadata =
+        KeyMetadata.read(readFile(KeyczarFileReader.META_FILE));
+    return getKey(metadata.getPrimaryVersion().getVersionNumber());
+  }
+
+  @Override
+  public String getMetadata() throws KeyczarException {
+    String metadata = readFile(KeyczarFileReader.META_FILE);
+    ConcurrentMap<Integer, FutureTask<String>> reads =
+        new ConcurrentHashMap<Integer, FutureTask<String>>();
+    prefetched = reads;
+    if (executor != null) {
+      List<KeyVersion> versions;
+      try {
+        versions = KeyMetadata.read(metadata).getVersions();
+      } catch (RuntimeException e) {
+        // Malformed metadata is reported by whoever parses it
+        return metadata;
+      }
+      if (versions.size() > 1) {
+        prefetch(versions, reads);
+      }
+    }
+    return metadata;
+  }
+
+  private void prefetch(List<KeyVersion> versions,
+      ConcurrentMap<Integer, FutureTask<String>> reads) {
+    for (KeyVersion version : versions) {
+      final String name = String.valueOf(version.getVersionNumber());
+      FutureTask<String> read = new FutureTask<String>(new Callable<String>() {
+        @Override
+        public String call() throws KeyczarException {
+          return readFile(name);
+        }
+      });
+      reads.put(version.getVersionNumber(), read);
+      try {
+        executor.execute(read);
+      } catch (RejectedExecutionException e) {
+        read.run();
+      }
+    }
+  }
+
+  private String readFile(String name) throws KeyczarException {
+    Path file = location.resolve(name);
+    try {
+      return new String(Files.readAllBytes(file), UTF_8);
+    } catch (IOException e) {
+      throw new KeyczarException(
+          Messages.getString("KeyczarFileReader.FileError", file), e);
+    }
+  }
+}
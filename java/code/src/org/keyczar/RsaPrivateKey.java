@@ -40,6 +40,7 @@ import java.security.KeyPair;
 import java.security.Signature;
 import java.security.SignatureException;
 import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.interfaces.RSAPublicKey;
 import java.security.spec.RSAPrivateCrtKeySpec;
 
 import javax.crypto.Cipher;
@@ -55,16 +56,10 @@ public class RsaPrivateKey extends KeyczarKey implements KeyczarPrivateKey {
   private static final String KEY_GEN_ALGORITHM = "RSA";
 
   private final RsaPublicKey publicKey;
-  private final String privateExponent;
-  private final String primeP;
-  private final String primeQ;
-  private final String primeExponentP;
-  private final String primeExponentQ;
-  private final String crtCoefficient;
 
   private static final String SIG_ALGORITHM = "SHA1withRSA";
 
-  private RSAPrivateCrtKey jcePrivateKey;
+  private final RSAPrivateCrtKey jcePrivateKey;
 
   static RsaPrivateKey generate(RsaKeyParameters params) throws KeyczarException {
     KeyPair keyPair = Util.generateKeyPair(KEY_GEN_ALGORITHM, params.getKeySize());
@@ -75,45 +70,37 @@ public class RsaPrivateKey extends KeyczarKey implements KeyczarPrivateKey {
   static RsaPrivateKey read(String input) throws KeyczarException {
     try {
       JSONObject json = new JSONObject(input);
-      return new RsaPrivateKey(
-          json.getInt("size"),
-          RsaPublicKey.fromJson(json.getJSONObject("publicKey")),
-          json.getString("privateExponent"),
-          json.getString("primeP"),
-          json.getString("primeQ"),
-          json.getString("primeExponentP"),
-          json.getString("primeExponentQ"),
-          json.getString("crtCoefficient"))
-          .initFromJson();
+      RsaPublicKey publicKey =
+          RsaPublicKey.fromJson(json.getJSONObject("publicKey"));
+      RSAPublicKey jcePublicKey = publicKey.getJceKey();
+      RSAPrivateCrtKeySpec spec = new RSAPrivateCrtKeySpec(
+          jcePublicKey.getModulus(), jcePublicKey.getPublicExponent(),
+          decodeBigInteger(json.getString("privateExponent")),
+          decodeBigInteger(json.getString("primeP")),
+          decodeBigInteger(json.getString("primeQ")),
+          decodeBigInteger(json.getString("primeExponentP")),
+          decodeBigInteger(json.getString("primeExponentQ")),
+          decodeBigInteger(json.getString("crtCoefficient")));
+      RSAPrivateCrtKey jcePrivateKey = (RSAPrivateCrtKey)
+          KeyFactory.getInstance(KEY_GEN_ALGORITHM).generatePrivate(spec);
+      return new RsaPrivateKey(json.getInt("size"), publicKey, jcePrivateKey);
+    } catch (GeneralSecurityException e) {
+      throw new KeyczarException(e);
     } catch (JSONException e) {
       throw new RuntimeException(e);
     }
   }
 
   public RsaPrivateKey(RSAPrivateCrtKey privateKey, RsaPadding padding) throws KeyczarException {
-    super(privateKey.getModulus().bitLength());
-    publicKey = new RsaPublicKey(privateKey, padding);
-    privateExponent = encodeBigInteger(privateKey.getPrivateExponent());
-    primeP = encodeBigInteger(privateKey.getPrimeP());
-    primeQ = encodeBigInteger(privateKey.getPrimeQ());
-    primeExponentP = encodeBigInteger(privateKey.getPrimeExponentP());
-    primeExponentQ = encodeBigInteger(privateKey.getPrimeExponentQ());
-    crtCoefficient = encodeBigInteger(privateKey.getCrtCoefficient());
-    jcePrivateKey = privateKey;
+    this(privateKey.getModulus().bitLength(),
+        new RsaPublicKey(privateKey, padding), privateKey);
   }
 
-  private RsaPrivateKey(int size, RsaPublicKey publicKey, String privateExponent,
-      String primeP, String primeQ, String primeExponentP, String primeExponentQ,
-      String crtCoefficient) {
+  private RsaPrivateKey(int size, RsaPublicKey publicKey,
+      RSAPrivateCrtKey privateKey) {
     super(size);
     this.publicKey = publicKey;
-    this.privateExponent = privateExponent;
-    this.primeP = primeP;
-    this.primeQ = primeQ;
-    this.primeExponentP = primeExponentP;
-    this.primeExponentQ = primeExponentQ;
-    this.crtCoefficient = crtCoefficient;
-    jcePrivateKey = null;
+    jcePrivateKey = privateKey;
   }
 
   @Override
@@ -122,12 +109,16 @@ public class RsaPrivateKey extends KeyczarKey implements KeyczarPrivateKey {
       return new JSONObject()
         .put("size", size)
         .put("publicKey", publicKey != null ? publicKey.toJson() : null)
-        .put("privateExponent", privateExponent)
-        .put("primeP", primeP)
-        .put("primeQ", primeQ)
-        .put("primeExponentP", primeExponentP)
-        .put("primeExponentQ", primeExponentQ)
-        .put("crtCoefficient", crtCoefficient);
+        .put("privateExponent",
+            encodeBigInteger(jcePrivateKey.getPrivateExponent()))
+        .put("primeP", encodeBigInteger(jcePrivateKey.getPrimeP()))
+        .put("primeQ", encodeBigInteger(jcePrivateKey.getPrimeQ()))
+        .put("primeExponentP",
+            encodeBigInteger(jcePrivateKey.getPrimeExponentP()))
+        .put("primeExponentQ",
+            encodeBigInteger(jcePrivateKey.getPrimeExponentQ()))
+        .put("crtCoefficient",
+            encodeBigInteger(jcePrivateKey.getCrtCoefficient()));
     } catch (JSONException e) {
       throw new RuntimeException(e);
     }
@@ -162,25 +153,6 @@ public class RsaPrivateKey extends KeyczarKey implements KeyczarPrivateKey {
     return publicKey;
   }
 
-  /**
-   * Initialize JCE key from JSON data.  Must be called after an instance is read from JSON.
-   */
-  private RsaPrivateKey initFromJson() throws KeyczarException {
-    publicKey.initFromJson();
-    try {
-      final KeyFactory keyFactory = KeyFactory.getInstance(KEY_GEN_ALGORITHM);
-      final RSAPrivateCrtKeySpec spec =
-          new RSAPrivateCrtKeySpec(decodeBigInteger(publicKey.modulus),
-            decodeBigInteger(publicKey.publicExponent), decodeBigInteger(privateExponent),
-            decodeBigInteger(primeP), decodeBigInteger(primeQ), decodeBigInteger(primeExponentP),
-            decodeBigInteger(primeExponentQ), decodeBigInteger(crtCoefficient));
-      jcePrivateKey = (RSAPrivateCrtKey) keyFactory.generatePrivate(spec);
-      return this;
-    } catch (GeneralSecurityException e) {
-      throw new KeyczarException(e);
-    }
-  }
-
   @Override
   protected RSAPrivateCrtKey getJceKey() {
     return jcePrivateKey;
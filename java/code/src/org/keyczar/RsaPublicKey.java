@@ -54,8 +54,6 @@ public class RsaPublicKey extends KeyczarPublicKey {
   private static final String SIG_ALGORITHM = "SHA1withRSA";
 
   private RSAPublicKey jcePublicKey;
-  final String modulus;
-  final String publicExponent;
   final RsaPadding padding;
 
   private final byte[] hash = new byte[Keyczar.KEY_HASH_SIZE];
@@ -71,14 +69,15 @@ public class RsaPublicKey extends KeyczarPublicKey {
   static RsaPublicKey fromJson(JSONObject json) throws KeyczarException, JSONException {
     RsaPublicKey key = new RsaPublicKey(
         json.getInt("size"),
-        json.getString("modulus"),
-        json.getString("publicExponent"),
         Util.deserializeEnum(RsaPadding.class, json.optString("padding")));
 
     if (key.getType() != DefaultKeyType.RSA_PUB) {
       throw new UnsupportedTypeException(key.getType());
     }
-    return key.initFromJson();
+    key.initializeJceKey(Util.decodeBigInteger(json.getString("modulus")),
+        Util.decodeBigInteger(json.getString("publicExponent")));
+    key.initializeHash();
+    return key;
   }
 
   @Override
@@ -86,8 +85,9 @@ public class RsaPublicKey extends KeyczarPublicKey {
     try {
       return new JSONObject()
         .put("size", size)
-        .put("modulus", modulus)
-        .put("publicExponent", publicExponent)
+        .put("modulus", Util.encodeBigInteger(jcePublicKey.getModulus()))
+        .put("publicExponent",
+            Util.encodeBigInteger(jcePublicKey.getPublicExponent()))
         .put("padding", padding != null ? padding.name() : null);
     } catch (JSONException e) {
       throw new RuntimeException(e);
@@ -118,42 +118,27 @@ public class RsaPublicKey extends KeyczarPublicKey {
   }
 
   RsaPublicKey(RSAPrivateCrtKey privateKey, RsaPadding padding) throws KeyczarException {
-    this(privateKey.getModulus(), privateKey.getPublicExponent(), padding);
+    this(privateKey.getModulus(), padding);
     initializeJceKey(privateKey.getModulus(), privateKey.getPublicExponent());
     initializeHash();
   }
 
   RsaPublicKey(RSAPublicKey publicKey, RsaPadding padding) throws KeyczarException {
-    this(publicKey.getModulus(), publicKey.getPublicExponent(), padding);
+    this(publicKey.getModulus(), padding);
     jcePublicKey = publicKey;
     initializeHash();
   }
 
-  private RsaPublicKey(int size, String modulus, String publicExponent, RsaPadding padding) {
+  private RsaPublicKey(int size, RsaPadding padding) {
     super(size);
-    this.modulus = modulus;
-    this.publicExponent = publicExponent;
     this.padding = padding;
   }
 
-  private RsaPublicKey(BigInteger mod, BigInteger exp, RsaPadding padding) {
+  private RsaPublicKey(BigInteger mod, RsaPadding padding) {
     super(mod.bitLength());
-    this.modulus = Util.encodeBigInteger(mod);
-    this.publicExponent = Util.encodeBigInteger(exp);
     this.padding = (padding == RsaPadding.PKCS) ? RsaPadding.PKCS : null;
   }
 
-  /**
-   * Initialize JCE key from JSON data.  Must be called after an instance is read from JSON.
-   * In default scope so {@link RsaPrivateKey} can call it when a private key string (which
-   * contains a public key string) is deserialized.
-   */
-  RsaPublicKey initFromJson() throws KeyczarException {
-    initializeJceKey(Util.decodeBigInteger(modulus), Util.decodeBigInteger(publicExponent));
-    initializeHash();
-    return this;
-  }
-
   private void initializeJceKey(BigInteger publicModulus, BigInteger publicExponent)
       throws KeyczarException {
     try {
@@ -215,7 +200,7 @@ public class RsaPublicKey extends KeyczarPublicKey {
     public int doFinalEncrypt(ByteBuffer input, ByteBuffer output)
         throws KeyczarException {
       try {
-        final int ciphertextSize = cipher.getOutputSize(input.limit());
+        final int ciphertextSize = cipher.getOutputSize(input.remaining());
         final int outputCapacity = output.limit() - output.position();
 
         ByteBuffer tmpOutput = ByteBuffer.allocate(ciphertextSize);
@@ -313,8 +298,14 @@ public class RsaPublicKey extends KeyczarPublicKey {
     @Override
     public boolean verify(ByteBuffer sig) throws KeyczarException {
       try {
-        return signature.verify(sig.array(), sig.position(), sig.limit()
-            - sig.position());
+        if (sig.hasArray()) {
+          return signature.verify(sig.array(),
+              sig.arrayOffset() + sig.position(), sig.remaining());
+        }
+        // Signature only verifies arrays, so copy direct buffers
+        byte[] sigBytes = new byte[sig.remaining()];
+        sig.duplicate().get(sigBytes);
+        return signature.verify(sigBytes);
       } catch (GeneralSecurityException e) {
         throw new KeyczarException(e);
       }
@@ -0,0 +1,332 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keyczar;
+
+import org.keyczar.exceptions.InvalidSignatureException;
+import org.keyczar.exceptions.KeyNotFoundException;
+import org.keyczar.exceptions.KeyczarException;
+import org.keyczar.exceptions.ShortBufferException;
+import org.keyczar.exceptions.UnsupportedTypeException;
+import org.keyczar.interfaces.DecryptingStream;
+import org.keyczar.interfaces.EncryptingStream;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Encrypts and decrypts whole buffers in the {@link SegmentedCiphertext}
+ * format. Segments are independent, so runs of segments are processed
+ * concurrently on an Executor, each run with its own key stream, and written
+ * directly to their final offsets in the output buffer.
+ */
+final class SegmentedBufferCrypter {
+  private static final int PARALLELISM =
+      Runtime.getRuntime().availableProcessors();
+  // Splitting work into a few more tasks than threads evens out the load
+  private static final int TASKS_PER_THREAD = 4;
+
+  private SegmentedBufferCrypter() {
+    // Don't instantiate
+  }
+
+  /**
+   * Holds the shared pool used when callers don't supply an Executor. The
+   * pool is only created on first use and its threads are daemon threads.
+   */
+  private static final class DefaultPool {
+    static final ForkJoinPool INSTANCE = new ForkJoinPool(PARALLELISM);
+  }
+
+  static Executor defaultExecutor() {
+    return DefaultPool.INSTANCE;
+  }
+
+  /**
+   * Returns the number of segments needed to hold inputLength bytes. There is
+   * always at least one segment, which may be empty.
+   */
+  static int segmentCount(long inputLength, int segmentSize) {
+    return (int) Math.max(1, (inputLength + segmentSize - 1) / segmentSize);
+  }
+
+  /**
+   * Returns the length of a segmented ciphertext of inputLength bytes.
+   */
+  static int ciphertextSize(KeyczarKey key, int inputLength, int segmentSize)
+      throws KeyczarException {
+    SegmentedCiphertext.checkSegmentSize(segmentSize);
+    int segments = segmentCount(inputLength, segmentSize);
+    int lastLength = inputLength - (segments - 1) * segmentSize;
+    long size;
+    EncryptingStream stream = (EncryptingStream) key.getStream();
+    try {
+      size = SegmentedCiphertext.HEADER_SIZE
+          + (long) (segments - 1)
+              * SegmentedCiphertext.ciphertextSegmentSize(stream, segmentSize)
+          + SegmentedCiphertext.ciphertextSegmentSize(stream, lastLength);
+    } finally {
+      key.addStreamToCacheForReuse(stream);
+    }
+    if (size > Integer.MAX_VALUE) {
+      throw new ShortBufferException(Integer.MAX_VALUE, (int) Math.min(
+          Integer.MAX_VALUE, size));
+    }
+    return (int) size;
+  }
+
+  /**
+   * Encrypts the input into the output as a segmented ciphertext, advancing
+   * the output's position past the ciphertext.
+   *
+   * @param key The key to encrypt with
+   * @param input The plaintext. Will not be modified.
+   * @param output The buffer to write the ciphertext to
+   * @param segmentSize The number of bytes of plaintext in each segment
+   * @param executor The executor to encrypt segments on, or null to encrypt
+   * them on the calling thread
+   */
+  static void encrypt(final KeyczarKey key, ByteBuffer input,
+      ByteBuffer output, final int segmentSize, Executor executor)
+      throws KeyczarException {
+    final int segmentLength;
+    EncryptingStream stream = (EncryptingStream) key.getStream();
+    try {
+      SegmentedCiphertext.checkKey(key,
+          stream.getSigningStream().digestSize());
+      segmentLength =
+          SegmentedCiphertext.ciphertextSegmentSize(stream, segmentSize);
+    } finally {
+      key.addStreamToCacheForReuse(stream);
+    }
+
+    final int inputLength = input.remaining();
+    int ciphertextSize = ciphertextSize(key, inputLength, segmentSize);
+    if (output.remaining() < ciphertextSize) {
+      throw new ShortBufferException(output.remaining(), ciphertextSize);
+    }
+    final byte[] header = SegmentedCiphertext.newHeader(key, segmentSize);
+    output.duplicate().put(header);
+
+    // Duplicates rather than read-only views, so the JCE can use the
+    // backing arrays directly. Neither buffer's position is changed.
+    final ByteBuffer plaintext = input.duplicate();
+    final ByteBuffer ciphertext = output.duplicate();
+    final int inputStart = input.position();
+    final int outputStart = output.position() + header.length;
+    final int segments = segmentCount(inputLength, segmentSize);
+
+    runInParallel(new SegmentRangeTask() {
+      @Override
+      void run(int first, int end) throws KeyczarException {
+        EncryptingStream cryptStream = (EncryptingStream) key.getStream();
+        try {
+          ByteBuffer in = plaintext.duplicate();
+          ByteBuffer out = ciphertext.duplicate();
+          for (int i = first; i < end; i++) {
+            int plaintextStart = inputStart + i * segmentSize;
+            in.limit(Math.min(inputStart + inputLength,
+                plaintextStart + segmentSize));
+            in.position(plaintextStart);
+            out.limit(ciphertext.limit());
+            out.position(outputStart + i * segmentLength);
+            SegmentedCiphertext.encryptSegment(cryptStream, header, i,
+                i == segments - 1, in, out);
+          }
+        } finally {
+          key.addStreamToCacheForReuse(cryptStream);
+        }
+      }
+    }, segments, executor);
+    output.position(output.position() + ciphertextSize);
+  }
+
+  /**
+   * Verifies and decrypts a segmented ciphertext into the output, advancing
+   * the output's position past the plaintext.
+   *
+   * @param crypter The Crypter holding the decryption keys
+   * @param input The ciphertext. Will not be modified.
+   * @param output The buffer to write the plaintext to
+   * @param executor The executor to decrypt segments on, or null to decrypt
+   * them on the calling thread
+   */
+  static void decrypt(Crypter crypter, ByteBuffer input,
+      final ByteBuffer output, Executor executor) throws KeyczarException {
+    final ByteBuffer ciphertext = input.duplicate();
+    final byte[] header = new byte[SegmentedCiphertext.HEADER_SIZE];
+    int headerLength = Math.min(header.length, ciphertext.remaining());
+    ciphertext.duplicate().get(header, 0, headerLength);
+    byte[] hash = SegmentedCiphertext.keyHash(header, headerLength);
+    final int segmentSize = SegmentedCiphertext.segmentSize(header);
+    Collection<KeyczarKey> keys = crypter.getKey(hash);
+    if (keys == null) {
+      throw new KeyNotFoundException(hash);
+    }
+
+    final int inputStart = ciphertext.position() + header.length;
+    final int inputEnd = ciphertext.limit();
+    int ciphertextLength = inputEnd - inputStart;
+    KeyczarException error = new InvalidSignatureException();
+    KeyczarKey key = null;
+    int segmentLength = 0;
+    for (KeyczarKey candidate : keys) {
+      // Key hashes may collide, so find the key which verifies segment 0
+      DecryptingStream stream = (DecryptingStream) candidate.getStream();
+      try {
+        if (stream.getVerifyingStream().digestSize() == 0) {
+          throw new UnsupportedTypeException(candidate.getType());
+        }
+        int length =
+            SegmentedCiphertext.ciphertextSegmentSize(stream, segmentSize);
+        ByteBuffer firstSegment = ciphertext.duplicate();
+        firstSegment.position(inputStart);
+        firstSegment.limit(inputStart + Math.min(length, ciphertextLength));
+        if (SegmentedCiphertext.verifySegment(stream, header, 0,
+            ciphertextLength <= length, firstSegment)) {
+          key = candidate;
+          segmentLength = length;
+          break;
+        }
+      } catch (KeyczarException e) {
+        error = e;
+      } finally {
+        candidate.addStreamToCacheForReuse(stream);
+      }
+    }
+    if (key == null) {
+      throw error;
+    }
+
+    final int segments = segmentCount(ciphertextLength, segmentLength);
+    final int outputStart = output.position();
+    if (output.remaining() < (long) (segments - 1) * segmentSize) {
+      throw new ShortBufferException(output.remaining(),
+          (segments - 1) * segmentSize);
+    }
+    final KeyczarKey decryptingKey = key;
+    final int fullSegmentLength = segmentLength;
+    final AtomicInteger lastPlaintextLength = new AtomicInteger();
+    runInParallel(new SegmentRangeTask() {
+      @Override
+      void run(int first, int end) throws KeyczarException {
+        DecryptingStream cryptStream =
+            (DecryptingStream) decryptingKey.getStream();
+        try {
+          ByteBuffer in = ciphertext.duplicate();
+          ByteBuffer out = output.duplicate();
+          // The JCE may write padding past the end of the plaintext, so each
+          // segment is decrypted into scratch space before it is copied out.
+          ByteBuffer plaintext =
+              ByteBuffer.allocate(cryptStream.maxOutputSize(segmentSize));
+          for (int i = first; i < end; i++) {
+            boolean last = i == segments - 1;
+            int segmentStart = inputStart + i * fullSegmentLength;
+            in.limit(Math.min(inputEnd, segmentStart + fullSegmentLength));
+            in.position(segmentStart);
+            if (!SegmentedCiphertext.verifySegment(cryptStream, header, i, last,
+                in)) {
+              throw new InvalidSignatureException();
+            }
+            plaintext.clear();
+            SegmentedCiphertext.decryptSegment(cryptStream, in, plaintext);
+            plaintext.flip();
+            out.limit(output.limit());
+            out.position(outputStart + i * segmentSize);
+            if (plaintext.remaining() > output.limit() - out.position()) {
+              throw new ShortBufferException(output.limit() - out.position(),
+                  plaintext.remaining());
+            }
+            out.put(plaintext);
+            if (last) {
+              lastPlaintextLength.set(plaintext.limit());
+            }
+          }
+        } finally {
+          decryptingKey.addStreamToCacheForReuse(cryptStream);
+        }
+      }
+    }, segments, executor);
+    output.position(
+        outputStart + (segments - 1) * segmentSize + lastPlaintextLength.get());
+  }
+
+  /**
+   * Work on a contiguous run of segments, from first up to but not including
+   * end.
+   */
+  private abstract static class SegmentRangeTask {
+    abstract void run(int first, int end) throws KeyczarException;
+  }
+
+  /**
+   * Splits the segments into runs and processes them on the executor, waiting
+   * for all of them to finish. The first failure is rethrown.
+   */
+  private static void runInParallel(final SegmentRangeTask task, int segments,
+      Executor executor) throws KeyczarException {
+    int tasks = Math.min(segments, PARALLELISM * TASKS_PER_THREAD);
+    if (executor == null || tasks <= 1) {
+      task.run(0, segments);
+      return;
+    }
+    final CountDownLatch done = new CountDownLatch(tasks);
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    for (int t = 0; t < tasks; t++) {
+      final int first = (int) ((long) segments * t / tasks);
+      final int end = (int) ((long) segments * (t + 1) / tasks);
+      Runnable runnable = new Runnable() {
+        @Override
+        public void run() {
+          try {
+            if (failure.get() == null) {
+              task.run(first, end);
+            }
+          } catch (Throwable e) {
+            failure.compareAndSet(null, e);
+          } finally {
+            done.countDown();
+          }
+        }
+      };
+      try {
+        executor.execute(runnable);
+      } catch (RejectedExecutionException e) {
+        runnable.run();
+      }
+    }
+    try {
+      done.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new KeyczarException(e);
+    }
+    Throwable e = failure.get();
+    if (e instanceof KeyczarException) {
+      throw (KeyczarException) e;
+    } else if (e instanceof RuntimeException) {
+      throw (RuntimeException) e;
+    } else if (e instanceof Error) {
+      throw (Error) e;
+    }
+  }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keyczar;
+
+import org.keyczar.exceptions.BadVersionException;
+import org.keyczar.exceptions.KeyczarException;
+import org.keyczar.exceptions.ShortCiphertextException;
+import org.keyczar.exceptions.UnsupportedTypeException;
+import org.keyczar.i18n.Messages;
+import org.keyczar.interfaces.DecryptingStream;
+import org.keyczar.interfaces.EncryptingStream;
+import org.keyczar.interfaces.SigningStream;
+import org.keyczar.interfaces.VerifyingStream;
+import org.keyczar.util.Util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Constants and helpers for the segmented ciphertext format. A segmented
+ * ciphertext is a header followed by a sequence of independently encrypted
+ * and signed segments:
+ *
+ * <pre>
+ * header:  version (1) | key hash (4) | segment size (4) | nonce (16)
+ * segment: IV | ciphertext | signature
+ * </pre>
+ *
+ * Every segment except the last holds exactly segment size bytes of
+ * plaintext. The signature of each segment covers the header, the segment
+ * index, a flag marking the final segment, and the segment's IV and
+ * ciphertext. Segments may therefore be verified and released one at a time,
+ * while truncation, reordering, or splicing segments between ciphertexts
+ * causes verification to fail.
+ *
+ * Only keys with a separate ciphertext signature, such as AES keys, may be
+ * used to produce segmented ciphertexts.
+ */
+final class SegmentedCiphertext {
+  static final byte FORMAT_VERSION = 1;
+  static final int NONCE_SIZE = 16;
+  static final int HEADER_SIZE = Keyczar.HEADER_SIZE + 4 + NONCE_SIZE;
+  static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+  static final int MAX_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+  private static final byte LAST_SEGMENT = 1;
+  private static final byte NOT_LAST_SEGMENT = 0;
+
+  private SegmentedCiphertext() {
+    // Don't instantiate
+  }
+
+  /**
+   * Returns a new header for a ciphertext encrypted with the given key and
+   * segment size, including a fresh random nonce.
+   */
+  static byte[] newHeader(KeyczarKey key, int segmentSize)
+      throws KeyczarException {
+    checkSegmentSize(segmentSize);
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    header.put(FORMAT_VERSION);
+    header.put(key.hash());
+    header.putInt(segmentSize);
+    byte[] nonce = new byte[NONCE_SIZE];
+    Util.rand(nonce);
+    header.put(nonce);
+    return header.array();
+  }
+
+  /**
+   * Checks the version of a header and returns the key hash it contains.
+   */
+  static byte[] keyHash(byte[] header, int headerLength)
+      throws KeyczarException {
+    if (headerLength < HEADER_SIZE) {
+      throw new ShortCiphertextException(headerLength);
+    }
+    if (header[0] != FORMAT_VERSION) {
+      throw new BadVersionException(header[0]);
+    }
+    byte[] hash = new byte[Keyczar.KEY_HASH_SIZE];
+    System.arraycopy(header, 1, hash, 0, hash.length);
+    return hash;
+  }
+
+  /**
+   * Returns the plaintext segment size stored in the given header.
+   */
+  static int segmentSize(byte[] header) throws KeyczarException {
+    int segmentSize =
+        ByteBuffer.wrap(header, 1 + Keyczar.KEY_HASH_SIZE, 4).getInt();
+    checkSegmentSize(segmentSize);
+    return segmentSize;
+  }
+
+  static void checkSegmentSize(int segmentSize) throws KeyczarException {
+    if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) {
+      throw new KeyczarException(Messages.getString(
+          "SegmentedCiphertext.InvalidSegmentSize", segmentSize,
+          MAX_SEGMENT_SIZE));
+    }
+  }
+
+  /**
+   * Throws an exception if the given key can't produce segmented ciphertexts.
+   */
+  static void checkKey(KeyczarKey key, int digestSize)
+      throws KeyczarException {
+    if (digestSize == 0) {
+      throw new UnsupportedTypeException(key.getType());
+    }
+  }
+
+  /**
+   * Returns the length of an encrypted segment, including its signature,
+   * holding plaintextLength bytes.
+   */
+  static int ciphertextSegmentSize(EncryptingStream stream,
+      int plaintextLength) throws KeyczarException {
+    return stream.maxOutputSize(plaintextLength)
+        + stream.getSigningStream().digestSize();
+  }
+
+  /**
+   * Returns the length of a full encrypted segment, including its signature.
+   * Every segment but the last has exactly this length.
+   */
+  static int ciphertextSegmentSize(DecryptingStream stream, int segmentSize) {
+    return stream.maxOutputSize(segmentSize)
+        + stream.getVerifyingStream().digestSize();
+  }
+
+  /**
+   * Encrypts and signs a single segment of plaintext, writing the IV,
+   * ciphertext, and signature to the output.
+   *
+   * @param stream The stream to encrypt with
+   * @param header The ciphertext header
+   * @param index The index of this segment
+   * @param last Whether this is the final segment
+   * @param input The segment plaintext, at most segment size bytes
+   * @param output The buffer to write the encrypted segment to
+   * @throws KeyczarException If a JCE error occurs or the output buffer is
+   * too small
+   */
+  static void encryptSegment(EncryptingStream stream, byte[] header,
+      int index, boolean last, ByteBuffer input, ByteBuffer output)
+      throws KeyczarException {
+    SigningStream signStream = stream.getSigningStream();
+    ByteBuffer outputToSign = output.duplicate();
+    stream.initEncrypt(output);
+    stream.doFinalEncrypt(input, output);
+    outputToSign.limit(output.position());
+
+    signStream.initSign();
+    signStream.updateSign(ByteBuffer.wrap(header));
+    signStream.updateSign(segmentInfo(index, last));
+    signStream.updateSign(outputToSign);
+    int limit = output.limit();
+    output.limit(output.position() + signStream.digestSize());
+    signStream.sign(output);
+    output.limit(limit);
+  }
+
+  /**
+   * Verifies the signature on a single encrypted segment.
+   *
+   * @param stream The stream to verify with
+   * @param header The ciphertext header
+   * @param index The expected index of this segment
+   * @param last Whether this segment is expected to be the final segment
+   * @param segment The IV, ciphertext, and signature of the segment. Will not
+   * be modified.
+   * @return Whether the signature is valid
+   * @throws KeyczarException If the segment is too short or a JCE error occurs
+   */
+  static boolean verifySegment(DecryptingStream stream, byte[] header,
+      int index, boolean last, ByteBuffer segment) throws KeyczarException {
+    VerifyingStream verifyStream = stream.getVerifyingStream();
+    int digestSize = verifyStream.digestSize();
+    if (segment.remaining() < digestSize) {
+      throw new ShortCiphertextException(segment.remaining());
+    }
+    ByteBuffer ciphertext = segment.duplicate();
+    ciphertext.limit(segment.limit() - digestSize);
+    ByteBuffer signature = segment.duplicate();
+    signature.position(ciphertext.limit());
+
+    verifyStream.initVerify();
+    verifyStream.updateVerify(ByteBuffer.wrap(header));
+    verifyStream.updateVerify(segmentInfo(index, last));
+    verifyStream.updateVerify(ciphertext);
+    return verifyStream.verify(signature);
+  }
+
+  /**
+   * Decrypts a single segment whose signature has already been verified.
+   *
+   * @param stream The stream to decrypt with
+   * @param segment The IV, ciphertext, and signature of the segment. Will not
+   * be modified.
+   * @param output The buffer to write the plaintext to
+   * @throws KeyczarException If a JCE error occurs or the output buffer is
+   * too small
+   */
+  static void decryptSegment(DecryptingStream stream, ByteBuffer segment,
+      ByteBuffer output) throws KeyczarException {
+    ByteBuffer ciphertext = segment.duplicate();
+    ciphertext.limit(segment.limit()
+        - stream.getVerifyingStream().digestSize());
+    stream.initDecrypt(ciphertext);
+    stream.doFinalDecrypt(ciphertext, output);
+  }
+
+  private static ByteBuffer segmentInfo(int index, boolean last) {
+    ByteBuffer info = ByteBuffer.allocate(5);
+    info.putInt(index);
+    info.put(last ? LAST_SEGMENT : NOT_LAST_SEGMENT);
+    info.flip();
+    return info;
+  }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keyczar;
+
+import org.keyczar.exceptions.InvalidSignatureException;
+import org.keyczar.exceptions.KeyNotFoundException;
+import org.keyczar.exceptions.KeyczarException;
+import org.keyczar.exceptions.UnsupportedTypeException;
+import org.keyczar.i18n.Messages;
+import org.keyczar.interfaces.DecryptingStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+/**
+ * An InputStream which reads a {@link SegmentedCiphertext} from an underlying
+ * stream. Each segment is verified and decrypted as soon as it has been read,
+ * so plaintext is released one segment at a time. Memory use is proportional
+ * to the segment size rather than to the length of the ciphertext.
+ *
+ * A segment is only known to be the final segment once the underlying stream
+ * reports the end of input, so the stream reads one byte past each full
+ * segment before releasing it.
+ *
+ * A stream from the key's cache is only borrowed while a segment is verified
+ * and decrypted, not while segments are read, so streams aren't held across
+ * blocking I/O.
+ */
+final class SegmentedDecryptingInputStream extends InputStream {
+  private final Crypter crypter;
+  private final InputStream in;
+  private final byte[] oneByte = new byte[1];
+
+  private byte[] header;
+  private KeyczarKey key;
+  private byte[] segment;
+  private int segmentRead;
+  private ByteBuffer plaintext;
+  private int segmentIndex = 0;
+  private int nextByte = -1;
+  private boolean finished = false;
+  private boolean closed = false;
+  private IOException failure;
+
+  SegmentedDecryptingInputStream(Crypter crypter, InputStream in) {
+    this.crypter = crypter;
+    this.in = in;
+  }
+
+  @Override
+  public int read() throws IOException {
+    int read = read(oneByte, 0, 1);
+    return read < 0 ? -1 : oneByte[0] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (closed) {
+      throw new IOException(Messages.getString("StreamClosed"));
+    }
+    if (off < 0 || len < 0 || off + len > b.length) {
+      throw new IndexOutOfBoundsException();
+    }
+    if (len == 0) {
+      return 0;
+    }
+    if (failure != null) {
+      // Never report a clean end of input after a bad segment
+      throw failure;
+    }
+    try {
+      if (header == null) {
+        readHeaderAndFirstSegment();
+      }
+      while (!plaintext.hasRemaining()) {
+        if (finished) {
+          return -1;
+        }
+        readNextSegment();
+      }
+    } catch (KeyczarException e) {
+      failure = new IOException(e);
+      throw failure;
+    } catch (IOException e) {
+      failure = e;
+      throw failure;
+    }
+    int toCopy = Math.min(len, plaintext.remaining());
+    plaintext.get(b, off, toCopy);
+    return toCopy;
+  }
+
+  @Override
+  public int available() {
+    return plaintext == null ? 0 : plaintext.remaining();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    in.close();
+  }
+
+  /**
+   * Reads the header and finds the key which verifies the first segment. Key
+   * hashes may collide, so every key matching the hash is tried in turn.
+   */
+  private void readHeaderAndFirstSegment()
+      throws IOException, KeyczarException {
+    byte[] headerBytes = new byte[SegmentedCiphertext.HEADER_SIZE];
+    int headerRead = readFully(headerBytes, 0, headerBytes.length);
+    byte[] hash = SegmentedCiphertext.keyHash(headerBytes, headerRead);
+    int segmentSize = SegmentedCiphertext.segmentSize(headerBytes);
+    Collection<KeyczarKey> keys = crypter.getKey(hash);
+    if (keys == null) {
+      throw new KeyNotFoundException(hash);
+    }
+    header = headerBytes;
+
+    // Size the buffers for the first key which supports the format, then
+    // read the first segment without holding any key's stream
+    KeyczarException error = new InvalidSignatureException();
+    int segmentLength = -1;
+    for (KeyczarKey candidate : keys) {
+      DecryptingStream stream = (DecryptingStream) candidate.getStream();
+      try {
+        if (stream.getVerifyingStream().digestSize() == 0) {
+          // Segments must be authenticated by a key with a signature
+          error = new UnsupportedTypeException(candidate.getType());
+        } else {
+          // All keys which support this format produce equally sized
+          // segments
+          segmentLength =
+              SegmentedCiphertext.ciphertextSegmentSize(stream, segmentSize);
+          plaintext = ByteBuffer.allocate(stream.maxOutputSize(segmentSize));
+          break;
+        }
+      } finally {
+        candidate.addStreamToCacheForReuse(stream);
+      }
+    }
+    if (segmentLength < 0) {
+      throw error;
+    }
+    segment = new byte[segmentLength];
+    readSegment(segmentLength);
+
+    for (KeyczarKey candidate : keys) {
+      DecryptingStream stream = (DecryptingStream) candidate.getStream();
+      try {
+        if (stream.getVerifyingStream().digestSize() > 0
+            && SegmentedCiphertext.ciphertextSegmentSize(stream, segmentSize)
+                == segmentLength
+            && SegmentedCiphertext.verifySegment(stream, header, 0,
+                finished, currentSegment())) {
+          key = candidate;
+          decryptCurrentSegment(stream);
+          return;
+        }
+      } catch (KeyczarException e) {
+        error = e;
+      } finally {
+        candidate.addStreamToCacheForReuse(stream);
+      }
+    }
+    throw error;
+  }
+
+  private void readNextSegment() throws IOException, KeyczarException {
+    segmentIndex++;
+    if (segmentIndex < 0) {
+      throw new KeyczarException(Messages.getString(
+          "SegmentedCiphertext.TooManySegments"));
+    }
+    readSegment(segment.length);
+    DecryptingStream stream = (DecryptingStream) key.getStream();
+    try {
+      if (!SegmentedCiphertext.verifySegment(stream, header, segmentIndex,
+          finished, currentSegment())) {
+        throw new InvalidSignatureException();
+      }
+      decryptCurrentSegment(stream);
+    } finally {
+      key.addStreamToCacheForReuse(stream);
+    }
+  }
+
+  /**
+   * Reads up to a full segment of ciphertext, then reads one more byte to
+   * decide whether this is the final segment.
+   */
+  private void readSegment(int segmentLength) throws IOException {
+    int offset = 0;
+    if (nextByte >= 0) {
+      segment[offset++] = (byte) nextByte;
+      nextByte = -1;
+    }
+    segmentRead = offset + readFully(segment, offset, segmentLength - offset);
+    if (segmentRead == segmentLength) {
+      nextByte = in.read();
+    }
+    finished = nextByte < 0;
+  }
+
+  private ByteBuffer currentSegment() {
+    return ByteBuffer.wrap(segment, 0, segmentRead);
+  }
+
+  private void decryptCurrentSegment(DecryptingStream stream)
+      throws KeyczarException {
+    plaintext.clear();
+    SegmentedCiphertext.decryptSegment(stream, currentSegment(), plaintext);
+    plaintext.flip();
+  }
+
+  private int readFully(byte[] b, int off, int len) throws IOException {
+    int total = 0;
+    while (total < len) {
+      int read = in.read(b, off + total, len - total);
+      if (read < 0) {
+        break;
+      }
+      total += read;
+    }
+    return total;
+  }
+}
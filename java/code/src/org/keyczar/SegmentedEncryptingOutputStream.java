@@ -0,0 +1,159 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keyczar;
+
+import org.keyczar.exceptions.KeyczarException;
+import org.keyczar.i18n.Messages;
+import org.keyczar.interfaces.EncryptingStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An OutputStream which writes a {@link SegmentedCiphertext} to an underlying
+ * stream. Each segment is encrypted and written as soon as it is full and
+ * more plaintext arrives; the final segment is written when the stream is
+ * closed.
+ *
+ * A stream from the key's cache is only borrowed while a segment is
+ * encrypted, not while segments are written, so streams aren't held across
+ * blocking I/O.
+ */
+final class SegmentedEncryptingOutputStream extends OutputStream {
+  private final OutputStream out;
+  private final KeyczarKey key;
+  private final byte[] header;
+  private final ByteBuffer plaintext;
+  private final ByteBuffer ciphertext;
+  private int segmentIndex = 0;
+  private boolean closed = false;
+
+  /**
+   * Creates a stream that encrypts with the given key and immediately writes
+   * the ciphertext header to the underlying stream.
+   *
+   * @param key The key to encrypt with
+   * @param segmentSize The number of bytes of plaintext in each segment
+   * @param out The stream to write ciphertext to
+   * @throws KeyczarException If the key doesn't support segmented ciphertexts,
+   * the segment size is invalid, or the header can't be written.
+   */
+  SegmentedEncryptingOutputStream(KeyczarKey key, int segmentSize,
+      OutputStream out) throws KeyczarException {
+    this.out = out;
+    this.key = key;
+    EncryptingStream cryptStream = (EncryptingStream) key.getStream();
+    try {
+      SegmentedCiphertext.checkKey(key,
+          cryptStream.getSigningStream().digestSize());
+      header = SegmentedCiphertext.newHeader(key, segmentSize);
+      plaintext = ByteBuffer.allocate(segmentSize);
+      ciphertext = ByteBuffer.allocate(
+          SegmentedCiphertext.ciphertextSegmentSize(cryptStream, segmentSize));
+    } finally {
+      key.addStreamToCacheForReuse(cryptStream);
+    }
+    try {
+      out.write(header);
+    } catch (IOException e) {
+      throw new KeyczarException(e);
+    }
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    ensureOpen();
+    if (!plaintext.hasRemaining()) {
+      writeSegment(false);
+    }
+    plaintext.put((byte) b);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    ensureOpen();
+    if (off < 0 || len < 0 || off + len > b.length) {
+      throw new IndexOutOfBoundsException();
+    }
+    while (len > 0) {
+      if (!plaintext.hasRemaining()) {
+        writeSegment(false);
+      }
+      int toCopy = Math.min(len, plaintext.remaining());
+      plaintext.put(b, off, toCopy);
+      off += toCopy;
+      len -= toCopy;
+    }
+  }
+
+  /**
+   * Flushes the underlying stream. A segment is only written once it is full
+   * and more plaintext is written, or when this stream is closed.
+   */
+  @Override
+  public void flush() throws IOException {
+    ensureOpen();
+    out.flush();
+  }
+
+  /**
+   * Writes the final segment and closes the underlying stream.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      writeSegment(true);
+    } finally {
+      out.close();
+    }
+  }
+
+  private void writeSegment(boolean last) throws IOException {
+    if (segmentIndex < 0) {
+      // Segment indices are not allowed to wrap around
+      throw new IOException(Messages.getString(
+          "SegmentedCiphertext.TooManySegments"));
+    }
+    plaintext.flip();
+    ciphertext.clear();
+    try {
+      EncryptingStream cryptStream = (EncryptingStream) key.getStream();
+      try {
+        SegmentedCiphertext.encryptSegment(cryptStream, header, segmentIndex,
+            last, plaintext, ciphertext);
+      } finally {
+        key.addStreamToCacheForReuse(cryptStream);
+      }
+    } catch (KeyczarException e) {
+      throw new IOException(e);
+    }
+    out.write(ciphertext.array(), 0, ciphertext.position());
+    plaintext.clear();
+    segmentIndex++;
+  }
+
+  private void ensureOpen() throws IOException {
+    if (closed) {
+      throw new IOException(Messages.getString("StreamClosed"));
+    }
+  }
+}
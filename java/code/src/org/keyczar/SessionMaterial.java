@@ -66,7 +66,8 @@ public class SessionMaterial {
     }
   }
 
-  public static SessionMaterial read(String sessionString) {
+  public static SessionMaterial read(String sessionString)
+      throws KeyczarException {
     try {
       JSONObject json = new JSONObject(sessionString);
       return new SessionMaterial(
@@ -16,6 +16,7 @@
 
 package org.keyczar;
 
+import org.keyczar.enums.KeyLoadingMode;
 import org.keyczar.enums.KeyPurpose;
 import org.keyczar.exceptions.KeyczarException;
 import org.keyczar.exceptions.NoPrimaryKeyException;
@@ -25,9 +26,15 @@ import org.keyczar.interfaces.SigningStream;
 import org.keyczar.util.Base64Coder;
 import org.keyczar.util.Util;
 
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 /**
  * Signers may both sign and verify data using sets of symmetric or private
@@ -54,6 +61,38 @@ public class Signer extends Verifier {
     super(reader);
   }
 
+  /**
+   * Initialize a new Signer with a KeyczarReader, loading the key versions
+   * concurrently on the given Executor.
+   *
+   * @param reader A reader to read keys from. It must allow keys to be read
+   * from several threads at once.
+   * @param executor The Executor to load versions on, or null to load them
+   * serially
+   * @throws KeyczarException In the event of an IO error reading keys or if the
+   * key set does not have the appropriate purpose.
+   * @see Keyczar#Keyczar(KeyczarReader, Executor)
+   */
+  public Signer(KeyczarReader reader, Executor executor)
+      throws KeyczarException {
+    super(reader, executor);
+  }
+
+  /**
+   * Initialize a new Signer with a KeyczarReader, building the keys of
+   * versions other than the primary only once they are used.
+   *
+   * @param reader A reader to read keys from
+   * @param loadingMode When to build the keys of each version
+   * @throws KeyczarException In the event of an IO error reading keys or if the
+   * key set does not have the appropriate purpose.
+   * @see Keyczar#Keyczar(KeyczarReader, Executor, KeyLoadingMode)
+   */
+  public Signer(KeyczarReader reader, KeyLoadingMode loadingMode)
+      throws KeyczarException {
+    super(reader, loadingMode);
+  }
+
   /**
    * Initialize a new Signer with a key set location. This will attempt to
    * read the keys using a KeyczarFileReader. The corresponding key set
@@ -80,9 +119,11 @@ public class Signer extends Verifier {
       throw new NoPrimaryKeyException();
     }
     SigningStream stream = (SigningStream) signingKey.getStream();
-    int result = HEADER_SIZE + stream.digestSize();
-    signingKey.addStreamToCacheForReuse(stream);
-    return result;
+    try {
+      return HEADER_SIZE + stream.digestSize();
+    } finally {
+      signingKey.addStreamToCacheForReuse(stream);
+    }
   }
 
   /**
@@ -114,7 +155,101 @@ public class Signer extends Verifier {
     sign(input, null, 0, output);
   }
 
-  /**g
+  /**
+   * Signs the given input on the default {@link CryptoExecutor}, rather than
+   * on the calling thread.
+   *
+   * @param input The input to sign. Its position isn't changed, and it must
+   * not be modified until the returned future completes.
+   * @return A future completed with the signature, or with a
+   * KeyczarException if this Signer does not have a primary or a JCE
+   * exception occurs.
+   * @see #signAsync(ByteBuffer, CryptoExecutor)
+   */
+  public CompletableFuture<byte[]> signAsync(ByteBuffer input) {
+    return signAsync(input, CryptoExecutor.getDefault());
+  }
+
+  /**
+   * Signs the given input on the given executor, rather than on the calling
+   * thread. This keeps expensive private key signing off threads that serve
+   * I/O.
+   *
+   * @param input The input to sign. Its position isn't changed, and it must
+   * not be modified until the returned future completes.
+   * @param executor The executor to sign on
+   * @return A future completed with the signature, or with a
+   * KeyczarException if this Signer does not have a primary or a JCE
+   * exception occurs. If the executor has too many operations waiting, the
+   * future fails at once with a RejectedExecutionException.
+   */
+  public CompletableFuture<byte[]> signAsync(ByteBuffer input,
+      CryptoExecutor executor) {
+    final ByteBuffer inputCopy = input.duplicate();
+    return executor.submit(new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws KeyczarException {
+        ByteBuffer output = ByteBuffer.allocate(digestSize());
+        sign(inputCopy, output);
+        output.reset();
+        byte[] outputBytes = new byte[output.remaining()];
+        output.get(outputBytes);
+        return outputBytes;
+      }
+    });
+  }
+
+  /**
+   * Signs all the data read from the given stream, which is read to its end
+   * but not closed. The data is read in fixed size chunks, so it needn't fit
+   * in memory. The signature is the same as if the data were signed in
+   * memory.
+   *
+   * @param input The input to sign.
+   * @return A byte array representation of a signature.
+   * @throws KeyczarException If this Signer does not have a primary, the
+   * stream can't be read or a JCE exception occurs.
+   */
+  public byte[] sign(InputStream input) throws KeyczarException {
+    return sign(Channels.newChannel(input));
+  }
+
+  /**
+   * Signs all the data read from the given channel, which is read to its end
+   * but not closed. The data is read in fixed size chunks, so it needn't fit
+   * in memory. The channel must be in blocking mode. The signature is the
+   * same as if the data were signed in memory.
+   *
+   * @param input The input to sign.
+   * @return A byte array representation of a signature.
+   * @throws KeyczarException If this Signer does not have a primary, the
+   * channel can't be read or a JCE exception occurs.
+   */
+  public byte[] sign(ReadableByteChannel input) throws KeyczarException {
+    KeyczarKey signingKey = getPrimaryKey();
+    if (signingKey == null) {
+      throw new NoPrimaryKeyException();
+    }
+    SigningStream stream = (SigningStream) signingKey.getStream();
+    try {
+      ByteBuffer output =
+          ByteBuffer.allocate(HEADER_SIZE + stream.digestSize());
+      signingKey.copyHeader(output);
+      stream.initSign();
+      ByteBuffer chunk = ByteBuffer.allocate(STREAM_CHUNK_SIZE);
+      while (readChunk(input, chunk)) {
+        stream.updateSign(chunk);
+      }
+      // Sign the version byte
+      stream.updateSign(ByteBuffer.wrap(FORMAT_BYTES));
+      stream.sign(output);
+      return Arrays.copyOf(output.array(), output.position());
+    } finally {
+      signingKey.addStreamToCacheForReuse(stream);
+    }
+  }
+
+  /**
    * This allows other classes in the package to pass in hidden data and/or
    * expiration data to be signed.
    *
@@ -132,48 +267,49 @@ public class Signer extends Verifier {
       throw new NoPrimaryKeyException();
     }
     SigningStream stream = (SigningStream) signingKey.getStream();
+    try {
+      // Sized with this stream, rather than borrowing another for digestSize()
+      int spaceNeeded = HEADER_SIZE + stream.digestSize();
+      if (expirationTime > 0) {
+        spaceNeeded += TIMESTAMP_SIZE;
+      }
+      if (output.remaining() < spaceNeeded) {
+        throw new ShortBufferException(output.remaining(), spaceNeeded);
+      }
 
-    int spaceNeeded = digestSize();
-    if (expirationTime > 0) {
-      spaceNeeded += TIMESTAMP_SIZE;
-    }
-    if (output.capacity() < spaceNeeded) {
-      throw new ShortBufferException(output.capacity(), spaceNeeded);
-    }
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      signingKey.copyHeader(header);
+      header.rewind();
+      stream.initSign();
 
-    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
-    signingKey.copyHeader(header);
-    header.rewind();
-    stream.initSign();
-
-    // Sign the header and write it to the output buffer
-    output.mark();
-    output.put(header);
-
-    if (expirationTime > 0) {
-      // Write an expiration time following the header and sign it.
-      ByteBuffer expiration = ByteBuffer.wrap(Util.fromLong(expirationTime));
-      output.put(expiration);
-      expiration.rewind();
-      stream.updateSign(expiration);
-    }
+      // Sign the header and write it to the output buffer
+      output.mark();
+      output.put(header);
 
-    if (hidden != null && hidden.remaining() > 0) {
-      // Sign any hidden data
-      stream.updateSign(hidden);
-    }
+      if (expirationTime > 0) {
+        // Write an expiration time following the header and sign it.
+        ByteBuffer expiration = ByteBuffer.wrap(Util.fromLong(expirationTime));
+        output.put(expiration);
+        expiration.rewind();
+        stream.updateSign(expiration);
+      }
 
-    // Sign the input data
-    stream.updateSign(input);
-    // Sign the version byte
-    stream.updateSign(ByteBuffer.wrap(FORMAT_BYTES));
+      if (hidden != null && hidden.remaining() > 0) {
+        // Sign any hidden data
+        stream.updateSign(hidden);
+      }
 
-    // Write the signature to the output
-    stream.sign(output);
-    output.limit(output.position());
-    
-    signingKey.addStreamToCacheForReuse(stream);
+      // Sign the input data
+      stream.updateSign(input);
+      // Sign the version byte
+      stream.updateSign(ByteBuffer.wrap(FORMAT_BYTES));
 
+      // Write the signature to the output
+      stream.sign(output);
+      output.limit(output.position());
+    } finally {
+      signingKey.addStreamToCacheForReuse(stream);
+    }
   }
 
   /**
@@ -207,33 +343,33 @@ public class Signer extends Verifier {
     }
 
     SigningStream stream = (SigningStream) signingKey.getStream();
+    try {
+      stream.initSign();
+      // Attached signature signs:
+      // [blob | hidden.length | hidden | format] or [blob | 0 | format]
+      byte[] hiddenPlusLength = Util.fromInt(0);
+      if (hidden.length > 0) {
+        hiddenPlusLength = Util.lenPrefix(hidden);
+      }
 
-    stream.initSign();
-    // Attached signature signs:
-    // [blob | hidden.length | hidden | format] or [blob | 0 | format]
-    byte[] hiddenPlusLength = Util.fromInt(0);
-    if (hidden.length > 0) {
-      hiddenPlusLength = Util.lenPrefix(hidden);
-    }
-
-    stream.updateSign(ByteBuffer.wrap(blob));
-    stream.updateSign(ByteBuffer.wrap(hiddenPlusLength));
-    stream.updateSign(ByteBuffer.wrap(FORMAT_BYTES));
+      stream.updateSign(ByteBuffer.wrap(blob));
+      stream.updateSign(ByteBuffer.wrap(hiddenPlusLength));
+      stream.updateSign(ByteBuffer.wrap(FORMAT_BYTES));
 
-    // now get signature output
-    ByteBuffer output = ByteBuffer.allocate(stream.digestSize());
-    output.mark();
+      // now get signature output
+      ByteBuffer output = ByteBuffer.allocate(stream.digestSize());
+      output.mark();
 
-    stream.sign(output);
-    output.limit(output.position());
+      stream.sign(output);
+      output.limit(output.position());
 
-    // Attached signature format is:
-    // [Format number | 4 bytes of key hash | blob size | blob | raw signature]
-    byte[] signature =
-        Util.cat(FORMAT_BYTES, signingKey.hash(), Util.lenPrefix(blob),
-            Arrays.copyOfRange(output.array(), 0, output.position()));
-    signingKey.addStreamToCacheForReuse(stream);
-    return signature;
+      // Attached signature format is:
+      // [Format number | 4 bytes of key hash | blob size | blob | raw signature]
+      return Util.cat(FORMAT_BYTES, signingKey.hash(), Util.lenPrefix(blob),
+          Arrays.copyOfRange(output.array(), 0, output.position()));
+    } finally {
+      signingKey.addStreamToCacheForReuse(stream);
+    }
   }
 
   @Override
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keyczar;
+
+import org.keyczar.interfaces.Stream;
+
+/**
+ * A thread-safe cache of Streams for reuse, so that their JCE objects are
+ * only initialized once.
+ *
+ * @param <T>
+ */
+interface StreamCache<T extends Stream> {
+
+  /**
+   * Removes and returns a cached stream, or returns null if there is none.
+   */
+  T poll();
+
+  /**
+   * Caches a stream which is no longer in use. The cache may discard it.
+   */
+  void add(T stream);
+}
@@ -17,16 +17,120 @@
 package org.keyczar;
 
 import org.keyczar.interfaces.Stream;
+import org.keyczar.util.Clock;
+import org.keyczar.util.SystemClock;
 
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * A thread-safe queue for Streams and their derived classes.
+ * A thread-safe, bounded pool of Streams and their derived classes. The pool
+ * is a lock-free deque, so threads borrowing and returning streams never
+ * block each other.
+ *
+ * At most maxIdle streams are kept; any more returned are dropped, so a burst
+ * of concurrent use doesn't pin its streams forever. Streams which have been
+ * idle for longer than the idle timeout are evicted as the pool is used.
  *
  * @author steveweis@gmail.com (Steve Weis)
  *
  * @param <T>
  */
-class StreamQueue<T extends Stream> extends ConcurrentLinkedQueue<T> {
-	private static final long serialVersionUID = 4914617278167817144L;
+class StreamQueue<T extends Stream> implements StreamCache<T> {
+  static final int DEFAULT_MAX_IDLE = 64;
+  static final long DEFAULT_IDLE_TIMEOUT = 60 * 1000;
+
+  private final int maxIdle;
+  private final long idleTimeout;
+  private final Clock clock;
+  // Streams are used in LIFO order, so the most recently returned is first
+  // and the longest idle is last
+  private final ConcurrentLinkedDeque<IdleStream<T>> streams =
+      new ConcurrentLinkedDeque<IdleStream<T>>();
+  // Kept apart from the deque, whose size() walks every node. May briefly
+  // count a stream which is being added or removed.
+  private final AtomicInteger size = new AtomicInteger();
+
+  /**
+   * A cached stream and the time it was returned.
+   */
+  private static final class IdleStream<T> {
+    final T stream;
+    final long returnTime;
+
+    IdleStream(T stream, long returnTime) {
+      this.stream = stream;
+      this.returnTime = returnTime;
+    }
+  }
+
+  StreamQueue() {
+    this(DEFAULT_MAX_IDLE, DEFAULT_IDLE_TIMEOUT);
+  }
+
+  /**
+   * @param maxIdle The maximum number of streams to keep
+   * @param idleTimeout The number of milliseconds after which an unused
+   * stream is evicted, or 0 to never evict streams
+   */
+  StreamQueue(int maxIdle, long idleTimeout) {
+    this(maxIdle, idleTimeout, new SystemClock());
+  }
+
+  StreamQueue(int maxIdle, long idleTimeout, Clock clock) {
+    if (maxIdle < 0 || idleTimeout < 0) {
+      throw new IllegalArgumentException();
+    }
+    this.maxIdle = maxIdle;
+    this.idleTimeout = idleTimeout;
+    this.clock = clock;
+  }
+
+  /**
+   * Removes and returns the most recently added stream, or null if there is
+   * none. Reusing the most recent stream keeps its state warm in the cache.
+   */
+  @Override
+  public T poll() {
+    evictIdle();
+    IdleStream<T> idle = streams.pollFirst();
+    if (idle == null) {
+      return null;
+    }
+    size.decrementAndGet();
+    return idle.stream;
+  }
+
+  @Override
+  public void add(T stream) {
+    evictIdle();
+    if (size.incrementAndGet() > maxIdle) {
+      size.decrementAndGet();
+      return;
+    }
+    streams.offerFirst(new IdleStream<T>(stream,
+        idleTimeout > 0 ? clock.now() : 0));
+  }
+
+  int size() {
+    return size.get();
+  }
+
+  /**
+   * Drops the streams at the end of the deque which have been idle for
+   * longer than the idle timeout.
+   */
+  private void evictIdle() {
+    if (idleTimeout == 0) {
+      return;
+    }
+    long oldest = clock.now() - idleTimeout;
+    IdleStream<T> idle;
+    while ((idle = streams.peekLast()) != null && idle.returnTime < oldest) {
+      // Another thread may have taken it meanwhile
+      if (streams.removeLastOccurrence(idle)) {
+        size.decrementAndGet();
+      }
+    }
+  }
 }
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keyczar;
+
+import org.keyczar.interfaces.Stream;
+
+/**
+ * Spreads cached streams over one pool per processor. Each thread uses the
+ * pool chosen by its id, so threads rarely contend, and only takes streams
+ * from other pools when its own is empty.
+ *
+ * @param <T>
+ */
+class StripedStreamCache<T extends Stream> implements StreamCache<T> {
+  private final StreamQueue<T>[] stripes;
+  private final int mask;
+
+  /**
+   * @param maxIdle The maximum number of streams to keep across all pools
+   * @param idleTimeout The number of milliseconds after which an unused
+   * stream is evicted, or 0 to never evict streams
+   */
+  StripedStreamCache(int maxIdle, long idleTimeout) {
+    int count = 1;
+    while (count < Runtime.getRuntime().availableProcessors()) {
+      count <<= 1;
+    }
+    stripes = newStripes(count);
+    int maxIdlePerStripe = (maxIdle + count - 1) / count;
+    for (int i = 0; i < count; i++) {
+      stripes[i] = new StreamQueue<T>(maxIdlePerStripe, idleTimeout);
+    }
+    mask = count - 1;
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private static <T extends Stream> StreamQueue<T>[] newStripes(int count) {
+    return new StreamQueue[count];
+  }
+
+  @Override
+  public T poll() {
+    int stripe = stripe();
+    for (int i = 0; i < stripes.length; i++) {
+      T stream = stripes[(stripe + i) & mask].poll();
+      if (stream != null) {
+        return stream;
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public void add(T stream) {
+    stripes[stripe()].add(stream);
+  }
+
+  private int stripe() {
+    // Thread ids are sequential, so mix them to spread threads evenly
+    long id = Thread.currentThread().getId();
+    return (int) ((id * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keyczar;
+
+import org.keyczar.interfaces.Stream;
+
+/**
+ * Caches a few streams for each thread, so threads never contend with each
+ * other for streams. A thread's streams are released when the thread dies or
+ * this cache is discarded, rather than after an idle timeout.
+ *
+ * @param <T>
+ */
+class ThreadLocalStreamCache<T extends Stream> implements StreamCache<T> {
+  // A thread only uses more than one stream at once for long-lived
+  // operations, such as streaming encryption
+  private static final int STREAMS_PER_THREAD = 4;
+
+  private final ThreadLocal<Object[]> streams;
+
+  /**
+   * @param maxIdle The maximum number of streams to keep for each thread,
+   * which is capped at a small number
+   */
+  ThreadLocalStreamCache(int maxIdle) {
+    final int capacity = Math.min(maxIdle, STREAMS_PER_THREAD);
+    streams = new ThreadLocal<Object[]>() {
+      @Override
+      protected Object[] initialValue() {
+        return new Object[capacity];
+      }
+    };
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public T poll() {
+    Object[] threadStreams = streams.get();
+    for (int i = threadStreams.length - 1; i >= 0; i--) {
+      if (threadStreams[i] != null) {
+        T stream = (T) threadStreams[i];
+        threadStreams[i] = null;
+        return stream;
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public void add(T stream) {
+    Object[] threadStreams = streams.get();
+    for (int i = 0; i < threadStreams.length; i++) {
+      if (threadStreams[i] == null) {
+        threadStreams[i] = stream;
+        return;
+      }
+    }
+  }
+}
@@ -27,6 +27,7 @@ import org.keyczar.util.Base64Coder;
 
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
 
 /**
  * UnversionedSigners may both sign and verify data using sets of symmetric or
@@ -58,6 +59,23 @@ public class UnversionedSigner extends UnversionedVerifier {
     super(reader);
   }
 
+  /**
+   * Initialize a new UnversionedSigner with a KeyczarReader, loading the key versions
+   * concurrently on the given Executor.
+   *
+   * @param reader A reader to read keys from. It must allow keys to be read
+   * from several threads at once.
+   * @param executor The Executor to load versions on, or null to load them
+   * serially
+   * @throws KeyczarException In the event of an IO error reading keys or if the
+   * key set does not have the appropriate purpose.
+   * @see Keyczar#Keyczar(KeyczarReader, Executor)
+   */
+  public UnversionedSigner(KeyczarReader reader, Executor executor)
+      throws KeyczarException {
+    super(reader, executor);
+  }
+
   /**
    * Initialize a new UnversionedSigner with a key set location. This will
    * attempt to read the keys using a KeyczarFileReader. The corresponding key
@@ -85,9 +103,11 @@ public class UnversionedSigner extends UnversionedVerifier {
       throw new NoPrimaryKeyException();
     }
     SigningStream stream = (SigningStream) signingKey.getStream();
-    int result = stream.digestSize();
-    signingKey.addStreamToCacheForReuse(stream);
-    return result;
+    try {
+      return stream.digestSize();
+    } finally {
+      signingKey.addStreamToCacheForReuse(stream);
+    }
   }
 
   /**
@@ -121,22 +141,23 @@ public class UnversionedSigner extends UnversionedVerifier {
       throw new NoPrimaryKeyException();
     }
     SigningStream stream = (SigningStream) signingKey.getStream();
+    try {
+      int spaceNeeded = stream.digestSize();
+      if (output.capacity() < spaceNeeded) {
+        throw new ShortBufferException(output.capacity(), spaceNeeded);
+      }
 
-    int spaceNeeded = digestSize();
-    if (output.capacity() < spaceNeeded) {
-      throw new ShortBufferException(output.capacity(), spaceNeeded);
+      stream.initSign();
+      // Sign the header and write it to the output buffer
+      output.mark();
+      // Sign the input data
+      stream.updateSign(input);
+      // Write the signature to the output
+      stream.sign(output);
+      output.limit(output.position());
+    } finally {
+      signingKey.addStreamToCacheForReuse(stream);
     }
-
-    stream.initSign();
-    // Sign the header and write it to the output buffer
-    output.mark();
-    // Sign the input data
-    stream.updateSign(input);
-    // Write the signature to the output
-    stream.sign(output);
-    output.limit(output.position());
-    signingKey.addStreamToCacheForReuse(stream);
-
   }
 
   /**
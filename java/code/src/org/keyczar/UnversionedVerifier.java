@@ -25,6 +25,7 @@ import org.keyczar.util.Base64Coder;
 
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
 
 /**
 * Unversioned Verifiers are used strictly to verify standard signatures
@@ -57,6 +58,23 @@ public class UnversionedVerifier extends Keyczar {
     super(reader);
   }
 
+  /**
+   * Initialize a new UnversionedVerifier with a KeyczarReader, loading the key versions
+   * concurrently on the given Executor.
+   *
+   * @param reader A reader to read keys from. It must allow keys to be read
+   * from several threads at once.
+   * @param executor The Executor to load versions on, or null to load them
+   * serially
+   * @throws KeyczarException In the event of an IO error reading keys or if the
+   * key set does not have the appropriate purpose.
+   * @see Keyczar#Keyczar(KeyczarReader, Executor)
+   */
+  public UnversionedVerifier(KeyczarReader reader, Executor executor)
+      throws KeyczarException {
+    super(reader, executor);
+  }
+
   /**
    * Initialize a new UnversionedVerifier with a key set location. This will
    * attempt to read the keys using a KeyczarFileReader. The corresponding key
@@ -95,7 +113,7 @@ public class UnversionedVerifier extends Keyczar {
    * @return Whether this is a valid signature
    */
   public boolean verify(ByteBuffer data, ByteBuffer signature) {
-    for (KeyczarKey key : versionMap.values()) {
+    for (KeyczarKey key : snapshot().versionMap().values()) {
       if (verify(data, signature, key)) {
         return true;
       }
@@ -106,11 +124,13 @@ public class UnversionedVerifier extends Keyczar {
   private boolean verify(ByteBuffer data, ByteBuffer signature, KeyczarKey key) {
     try {
       VerifyingStream stream = (VerifyingStream) key.getStream();
-      stream.initVerify();
-      stream.updateVerify(data.duplicate());
-      boolean result = stream.verify(signature.duplicate());
-      key.addStreamToCacheForReuse(stream);
-      return result;
+      try {
+        stream.initVerify();
+        stream.updateVerify(data.duplicate());
+        return stream.verify(signature.duplicate());
+      } finally {
+        key.addStreamToCacheForReuse(stream);
+      }
     } catch (KeyczarException e) {
       return false;
     } catch (RuntimeException e) {
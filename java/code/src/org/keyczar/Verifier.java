@@ -16,7 +16,9 @@
 
 package org.keyczar;
 
+import org.keyczar.enums.KeyLoadingMode;
 import org.keyczar.enums.KeyPurpose;
+import org.keyczar.exceptions.Base64DecodingException;
 import org.keyczar.exceptions.BadVersionException;
 import org.keyczar.exceptions.KeyNotFoundException;
 import org.keyczar.exceptions.KeyczarException;
@@ -26,8 +28,19 @@ import org.keyczar.interfaces.VerifyingStream;
 import org.keyczar.util.Base64Coder;
 import org.keyczar.util.Util;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
 * Verifiers are used strictly to verify signatures. Typically, Verifiers will
@@ -41,6 +54,10 @@ import java.nio.ByteBuffer;
 *
 */
 public class Verifier extends Keyczar {
+  // The size of the chunks in which streamed data is signed or verified
+  static final int STREAM_CHUNK_SIZE = 64 * 1024;
+  // The fewest signatures a parallel batch verification splits off
+  static final int MIN_PARALLEL_RANGE = 16;
 
   /**
    * Initialize a new Verifier with a KeyczarReader. The corresponding key set
@@ -55,6 +72,38 @@ public class Verifier extends Keyczar {
     super(reader);
   }
 
+  /**
+   * Initialize a new Verifier with a KeyczarReader, loading the key versions
+   * concurrently on the given Executor.
+   *
+   * @param reader A reader to read keys from. It must allow keys to be read
+   * from several threads at once.
+   * @param executor The Executor to load versions on, or null to load them
+   * serially
+   * @throws KeyczarException In the event of an IO error reading keys or if the
+   * key set does not have the appropriate purpose.
+   * @see Keyczar#Keyczar(KeyczarReader, Executor)
+   */
+  public Verifier(KeyczarReader reader, Executor executor)
+      throws KeyczarException {
+    super(reader, executor);
+  }
+
+  /**
+   * Initialize a new Verifier with a KeyczarReader, building the keys of
+   * versions other than the primary only once they are used.
+   *
+   * @param reader A reader to read keys from
+   * @param loadingMode When to build the keys of each version
+   * @throws KeyczarException In the event of an IO error reading keys or if the
+   * key set does not have the appropriate purpose.
+   * @see Keyczar#Keyczar(KeyczarReader, Executor, KeyLoadingMode)
+   */
+  public Verifier(KeyczarReader reader, KeyLoadingMode loadingMode)
+      throws KeyczarException {
+    super(reader, null, loadingMode);
+  }
+
   /**
    * Initialize a new Verifier with a key set location. This will attempt to
    * read the keys using a KeyczarFileReader. The corresponding key set
@@ -113,19 +162,15 @@ public class Verifier extends Keyczar {
       throw new ShortSignatureException(signature.remaining());
     }
 
-    byte[] hash = checkFormatAndGetHash(signature);
-    Iterable<KeyczarKey> keys = getVerifyingKey(hash);
+    List<KeyczarKey> keys = checkFormatAndGetKeys(signature);
 
-    if (keys == null) {
-      throw new KeyNotFoundException(hash);
-    }
-    
     data.mark();
     if (hidden != null) {
       hidden.mark();
     }
     signature.mark();
-    for (KeyczarKey key : keys) {
+    for (int i = 0; i < keys.size(); i++) {
+      KeyczarKey key = keys.get(i);
       try {
         if (rawVerify(key, data, hidden, signature)) {
           return true;
@@ -163,25 +208,428 @@ public class Verifier extends Keyczar {
     }
   }
 
+  /**
+   * Verifies many signatures at once, as when validating a stream of signed
+   * tokens. The signatures are grouped by the hash of the key that made
+   * them, so each key is looked up once and each of its streams is borrowed
+   * once per batch rather than once per signature.
+   *
+   * Malformed signatures, and those made by unknown keys, are reported as
+   * invalid rather than by throwing an exception.
+   *
+   * @param data The data each signature is on
+   * @param signatures The signatures to verify, each web-safe Base64 encoded
+   * @return A BitSet with the bit for each valid signature set
+   * @throws KeyczarException If a JCE error occurs
+   */
+  public BitSet verifyBatch(List<String> data, List<String> signatures)
+      throws KeyczarException {
+    if (data.size() != signatures.size()) {
+      throw new IllegalArgumentException();
+    }
+    byte[][] dataBytes = new byte[data.size()][];
+    byte[][] signatureBytes = new byte[data.size()][];
+    try {
+      for (int i = 0; i < dataBytes.length; i++) {
+        dataBytes[i] = data.get(i).getBytes(DEFAULT_ENCODING);
+        try {
+          signatureBytes[i] = Base64Coder.decodeWebSafe(signatures.get(i));
+        } catch (Base64DecodingException e) {
+          // Left null, so reported as invalid
+        }
+      }
+    } catch (UnsupportedEncodingException e) {
+      throw new KeyczarException(e);
+    }
+    return verifyBatch(dataBytes, signatureBytes);
+  }
+
+  /**
+   * Verifies many signatures at once, as when validating a stream of signed
+   * tokens. The signatures are grouped by the hash of the key that made
+   * them, so each key is looked up once and each of its streams is borrowed
+   * once per batch rather than once per signature.
+   *
+   * Malformed or null signatures, and those made by unknown keys, are
+   * reported as invalid rather than by throwing an exception.
+   *
+   * @param data The data each signature is on
+   * @param signatures The signatures to verify
+   * @return A BitSet with the bit for each valid signature set
+   * @throws KeyczarException If a JCE error occurs
+   */
+  public BitSet verifyBatch(byte[][] data, byte[][] signatures)
+      throws KeyczarException {
+    if (data.length != signatures.length) {
+      throw new IllegalArgumentException();
+    }
+    return verifyRange(data, signatures, 0, signatures.length, null);
+  }
+
+  /**
+   * Verifies many signatures at once, splitting them across the workers of
+   * the given pool. This suits public key signatures, such as the entries of
+   * a signed manifest, where each verification takes enough time to be worth
+   * spreading across cores. Each worker borrows its own streams, so they
+   * don't contend for them.
+   *
+   * Malformed or null signatures, and those made by unknown keys, are
+   * reported as invalid rather than by throwing an exception.
+   *
+   * @param data The data each signature is on
+   * @param signatures The signatures to verify
+   * @param pool The pool to verify on
+   * @return A BitSet with the bit for each valid signature set
+   * @throws KeyczarException If a JCE error occurs
+   */
+  public BitSet verifyBatch(byte[][] data, byte[][] signatures,
+      ForkJoinPool pool) throws KeyczarException {
+    if (data.length != signatures.length) {
+      throw new IllegalArgumentException();
+    }
+    return invoke(pool, new VerifyTask(data, signatures, 0, signatures.length,
+        threshold(pool, signatures.length), null));
+  }
+
+  /**
+   * Verifies that every one of many signatures is valid, splitting them
+   * across the workers of the given pool. The workers stop as soon as any
+   * signature fails, so a bad batch is rejected without verifying the rest.
+   *
+   * @param data The data each signature is on
+   * @param signatures The signatures to verify
+   * @param pool The pool to verify on
+   * @return Whether every signature is valid
+   * @throws KeyczarException If a JCE error occurs
+   */
+  public boolean verifyAll(byte[][] data, byte[][] signatures,
+      ForkJoinPool pool) throws KeyczarException {
+    if (data.length != signatures.length) {
+      throw new IllegalArgumentException();
+    }
+    AtomicBoolean failed = new AtomicBoolean();
+    invoke(pool, new VerifyTask(data, signatures, 0, signatures.length,
+        threshold(pool, signatures.length), failed));
+    return !failed.get();
+  }
+
+  /**
+   * Verifies the signatures at the given range of indexes. They are sorted
+   * by the hash of the key that made them, so each key is looked up once and
+   * each of its streams is borrowed once for the range.
+   *
+   * @param failed Set when a signature is found to be invalid, stopping any
+   * further verification. Null to verify every signature.
+   */
+  private BitSet verifyRange(byte[][] data, byte[][] signatures, int from,
+      int to, AtomicBoolean failed) throws KeyczarException {
+    BitSet valid = new BitSet(to);
+    // Sort the well formed signatures by key hash, keeping their indexes in
+    // the low bits
+    long[] order = new long[to - from];
+    int count = 0;
+    for (int i = from; i < to; i++) {
+      byte[] signature = signatures[i];
+      if (signature != null && signature.length >= HEADER_SIZE
+          && signature[0] == FORMAT_VERSION) {
+        order[count++] = ((long) Util.toInt(signature, 1) << 32) | i;
+      } else if (failed != null) {
+        failed.set(true);
+        return valid;
+      }
+    }
+    Arrays.sort(order, 0, count);
+
+    int start = 0;
+    while (start < count) {
+      if (failed != null && failed.get()) {
+        return valid;
+      }
+      int end = start + 1;
+      while (end < count && (order[end] >>> 32) == (order[start] >>> 32)) {
+        end++;
+      }
+      List<KeyczarKey> keys =
+          getKey(signatures[(int) order[start]], 1);
+      if (keys != null) {
+        for (int k = 0; k < keys.size(); k++) {
+          verifyGroup(keys.get(k), data, signatures, order, start, end, valid,
+              failed, k == keys.size() - 1);
+        }
+      } else if (failed != null) {
+        failed.set(true);
+      }
+      start = end;
+    }
+    return valid;
+  }
+
+  /**
+   * Checks the signatures at the given range of the order against one key,
+   * skipping those another key with the same hash has already verified.
+   *
+   * @param lastKey Whether this is the last key with the hash, so a
+   * signature it doesn't verify is invalid
+   */
+  private void verifyGroup(KeyczarKey key, byte[][] data,
+      byte[][] signatures, long[] order, int start, int end, BitSet valid,
+      AtomicBoolean failed, boolean lastKey) throws KeyczarException {
+    VerifyingStream stream = (VerifyingStream) key.getStream();
+    try {
+      ArrayMacStream macStream = stream instanceof ArrayMacStream
+          ? (ArrayMacStream) stream : null;
+      for (int j = start; j < end; j++) {
+        if (failed != null && failed.get()) {
+          return;
+        }
+        int i = (int) order[j];
+        if (valid.get(i)) {
+          continue;
+        }
+        byte[] signature = signatures[i];
+        int signatureLength = signature.length - HEADER_SIZE;
+        boolean verified = false;
+        try {
+          stream.initVerify();
+          if (macStream != null) {
+            macStream.update(data[i], 0, data[i].length);
+            macStream.update(FORMAT_BYTES, 0, FORMAT_BYTES.length);
+            verified =
+                macStream.verify(signature, HEADER_SIZE, signatureLength);
+          } else {
+            stream.updateVerify(ByteBuffer.wrap(data[i]));
+            stream.updateVerify(ByteBuffer.wrap(FORMAT_BYTES));
+            verified = stream.verify(
+                ByteBuffer.wrap(signature, HEADER_SIZE, signatureLength));
+          }
+        } catch (KeyczarException e) {
+          // Reported as invalid, as verify() does
+        } catch (RuntimeException e) {
+          // Unfortunately Java crypto apis can throw runtime exceptions
+        }
+        if (verified) {
+          valid.set(i);
+        } else if (failed != null && lastKey) {
+          failed.set(true);
+          return;
+        }
+      }
+    } finally {
+      key.addStreamToCacheForReuse(stream);
+    }
+  }
+
+  /**
+   * Returns the number of signatures below which a batch isn't split
+   * further, giving each worker a few ranges to balance the load.
+   */
+  private static int threshold(ForkJoinPool pool, int count) {
+    return Math.max(MIN_PARALLEL_RANGE, count / (pool.getParallelism() * 4));
+  }
+
+  private static BitSet invoke(ForkJoinPool pool, VerifyTask task)
+      throws KeyczarException {
+    try {
+      return pool.invoke(task);
+    } catch (RuntimeException e) {
+      // The pool may rethrow a copy of the task's exception, wrapping it
+      for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+        if (cause instanceof KeyczarException) {
+          throw (KeyczarException) cause;
+        }
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Verifies a range of signatures, splitting it in two until it is below
+   * the threshold.
+   */
+  private final class VerifyTask extends RecursiveTask<BitSet> {
+    private static final long serialVersionUID = 1L;
+    private final byte[][] data;
+    private final byte[][] signatures;
+    private final int from;
+    private final int to;
+    private final int threshold;
+    private final AtomicBoolean failed;
+
+    VerifyTask(byte[][] data, byte[][] signatures, int from, int to,
+        int threshold, AtomicBoolean failed) {
+      this.data = data;
+      this.signatures = signatures;
+      this.from = from;
+      this.to = to;
+      this.threshold = threshold;
+      this.failed = failed;
+    }
+
+    @Override
+    protected BitSet compute() {
+      if (failed != null && failed.get()) {
+        return new BitSet();
+      }
+      if (to - from <= threshold) {
+        try {
+          return verifyRange(data, signatures, from, to, failed);
+        } catch (KeyczarException e) {
+          throw new RuntimeException(e);
+        }
+      }
+      int middle = (from + to) >>> 1;
+      VerifyTask left =
+          new VerifyTask(data, signatures, from, middle, threshold, failed);
+      left.fork();
+      BitSet valid = new VerifyTask(
+          data, signatures, middle, to, threshold, failed).compute();
+      valid.or(left.join());
+      return valid;
+    }
+  }
+
+  /**
+   * Verifies a signature on all the data read from the given stream, which
+   * is read to its end but not closed. The data is read in fixed size
+   * chunks, so it needn't fit in memory.
+   *
+   * @param data The data to verify the signature on
+   * @param signature The signature to verify
+   * @return Whether this is a valid signature
+   * @throws KeyczarException If the signature is malformed, the stream
+   * can't be read or a JCE error occurs.
+   */
+  public boolean verify(InputStream data, byte[] signature)
+      throws KeyczarException {
+    return verify(Channels.newChannel(data), signature);
+  }
+
+  /**
+   * Verifies a signature on all the data read from the given channel, which
+   * is read to its end but not closed. The data is read in fixed size
+   * chunks, so it needn't fit in memory. The channel must be in blocking
+   * mode.
+   *
+   * @param data The data to verify the signature on
+   * @param signature The signature to verify
+   * @return Whether this is a valid signature
+   * @throws KeyczarException If the signature is malformed, the channel
+   * can't be read or a JCE error occurs.
+   */
+  public boolean verify(ReadableByteChannel data, byte[] signature)
+      throws KeyczarException {
+    ByteBuffer signatureBuffer = ByteBuffer.wrap(signature);
+    if (signatureBuffer.remaining() < HEADER_SIZE) {
+      throw new ShortSignatureException(signatureBuffer.remaining());
+    }
+    List<KeyczarKey> keys = checkFormatAndGetKeys(signatureBuffer);
+
+    // The data can only be read once, so every key with the signature's hash
+    // is checked in the same pass. Streams which fail are dropped, as keys
+    // are when verifying in memory.
+    VerifyingStream[] streams = new VerifyingStream[keys.size()];
+    boolean[] failed = new boolean[keys.size()];
+    try {
+      for (int i = 0; i < streams.length; i++) {
+        streams[i] = (VerifyingStream) keys.get(i).getStream();
+        try {
+          streams[i].initVerify();
+        } catch (KeyczarException e) {
+          failed[i] = true;
+        } catch (RuntimeException e) {
+          failed[i] = true;
+        }
+      }
+      ByteBuffer chunk = ByteBuffer.allocate(STREAM_CHUNK_SIZE);
+      boolean more = true;
+      while (more) {
+        more = readChunk(data, chunk);
+        if (!more) {
+          // The signed data is terminated with the current Keyczar format
+          chunk.clear();
+          chunk.put(FORMAT_BYTES);
+          chunk.flip();
+        }
+        for (int i = 0; i < streams.length; i++) {
+          if (!failed[i]) {
+            chunk.position(0);
+            try {
+              streams[i].updateVerify(chunk);
+            } catch (KeyczarException e) {
+              failed[i] = true;
+            } catch (RuntimeException e) {
+              failed[i] = true;
+            }
+          }
+        }
+      }
+      signatureBuffer.mark();
+      for (int i = 0; i < streams.length; i++) {
+        if (!failed[i]) {
+          try {
+            if (streams[i].verify(signatureBuffer)) {
+              return true;
+            }
+          } catch (KeyczarException e) {
+            // Continue checking keys in case of collision
+          } catch (RuntimeException e) {
+            // Unfortunately Java crypto apis can throw runtime exceptions
+          }
+          signatureBuffer.reset();
+        }
+      }
+      return false;
+    } finally {
+      for (int i = 0; i < streams.length; i++) {
+        if (streams[i] != null) {
+          keys.get(i).addStreamToCacheForReuse(streams[i]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads the next chunk of the input into the buffer, filling it unless the
+   * input ends, and flips the buffer ready to be consumed.
+   *
+   * @return false if the input had already ended, so nothing was read
+   */
+  static boolean readChunk(ReadableByteChannel input, ByteBuffer chunk)
+      throws KeyczarException {
+    chunk.clear();
+    try {
+      while (chunk.hasRemaining()) {
+        if (input.read(chunk) < 0) {
+          break;
+        }
+      }
+    } catch (IOException e) {
+      throw new KeyczarException(e);
+    }
+    chunk.flip();
+    return chunk.hasRemaining();
+  }
+
   /*
    * perform a verification, assume all key and hash checks have been performed.
    */
   boolean rawVerify(KeyczarKey key, final ByteBuffer data, final ByteBuffer hidden,
       final ByteBuffer signature) throws KeyczarException {
       VerifyingStream stream = (VerifyingStream) key.getStream();
+      try {
+        stream.initVerify();
+        stream.updateVerify(data);
+        if (hidden != null) {
+          stream.updateVerify(hidden);
+        }
 
-      stream.initVerify();
-      stream.updateVerify(data);
-      if (hidden != null) {
-        stream.updateVerify(hidden);
-      }
-
-      // The signed data is terminated with the current Keyczar format 
-      stream.updateVerify(ByteBuffer.wrap(FORMAT_BYTES));
+        // The signed data is terminated with the current Keyczar format 
+        stream.updateVerify(ByteBuffer.wrap(FORMAT_BYTES));
 
-      boolean result = stream.verify(signature);
-      key.addStreamToCacheForReuse(stream);
-      return result;
+        return stream.verify(signature);
+      } finally {
+        key.addStreamToCacheForReuse(stream);
+      }
   }
 
   /**
@@ -200,7 +648,7 @@ public class Verifier extends Keyczar {
       final byte[] hidden) throws KeyczarException {
     ByteBuffer sigBuffer = ByteBuffer.wrap(signedBlob);
     // assume I need to decode here as well.
-    byte[] hash = checkFormatAndGetHash(sigBuffer);
+    List<KeyczarKey> keys = checkFormatAndGetKeys(sigBuffer);
 
     // we have stripped the format and hash, now just get the blob and
     // raw signature
@@ -218,7 +666,6 @@ public class Verifier extends Keyczar {
       hiddenPlusLength = Util.lenPrefix(hidden);
     }
     
-    Iterable<KeyczarKey> keys = getVerifyingKey(hash);
     for (KeyczarKey key : keys) {
       try {
         if (rawVerify(key, ByteBuffer.wrap(blob), ByteBuffer.wrap(hiddenPlusLength), 
@@ -271,9 +718,8 @@ public class Verifier extends Keyczar {
       throws KeyczarException {
     ByteBuffer sigBuffer = ByteBuffer.wrap(signedBlob);
 
-    byte[] hash = checkFormatAndGetHash(sigBuffer);
-    // just get the bits even though we won't use it.
-    getVerifyingKey(hash);
+    // Checks the key exists, even though it isn't used
+    checkFormatAndGetKeys(sigBuffer);
 
     // we have stripped the format and hash, now just get the blob and
     // raw signature
@@ -284,27 +730,26 @@ public class Verifier extends Keyczar {
     return blob;
   }
 
-  private byte[] checkFormatAndGetHash(ByteBuffer signature)
-      throws BadVersionException {
+  /**
+   * Reads the format version and key hash from the signature, returning the
+   * keys with that hash. The hash is probed straight from the buffer, without
+   * allocating.
+   */
+  private List<KeyczarKey> checkFormatAndGetKeys(ByteBuffer signature)
+      throws KeyczarException {
     byte version = signature.get();
     if (version != FORMAT_VERSION) {
       throw new BadVersionException(version);
     }
 
-    byte[] hash = new byte[KEY_HASH_SIZE];
-    signature.get(hash);
-
-    return hash;
-  }
-
-  private Iterable<KeyczarKey> getVerifyingKey(byte[] hash) throws KeyNotFoundException {
-    Iterable<KeyczarKey> key = getKey(hash);
-
-    if (key == null) {
+    List<KeyczarKey> keys = getKey(signature, signature.position());
+    if (keys == null) {
+      byte[] hash = new byte[KEY_HASH_SIZE];
+      signature.get(hash);
       throw new KeyNotFoundException(hash);
     }
-
-    return key;
+    signature.position(signature.position() + KEY_HASH_SIZE);
+    return keys;
   }
 
   @Override
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keyczar;
+
+import org.keyczar.exceptions.KeyczarException;
+import org.keyczar.interfaces.KeyczarReader;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads metadata and key files from the given location, and watches it for
+ * changes. Key sets registered with {@link #watch} are reloaded whenever the
+ * meta file or a version file changes, so rotated keys are picked up without
+ * restarting:
+ *
+ * <pre>
+ * WatchingKeyczarReader reader = new WatchingKeyczarReader("/keys/crypt");
+ * Crypter crypter = new Crypter(reader);
+ * reader.watch(crypter);
+ * </pre>
+ *
+ * Changes are noticed through a {@link WatchService} where the file system
+ * supports one. The directory is also polled, which catches changes the
+ * WatchService misses and is the only mechanism where it is unavailable.
+ * Only versions whose files have changed are parsed again, and each key set
+ * is swapped atomically with {@link Keyczar#reload}, so traffic continues
+ * throughout.
+ *
+ * If a reload fails, for example because the meta file was updated before
+ * a new version file was written, or a file was read while half written, the
+ * keys in use are kept and the reload is retried at the next change or poll.
+ */
+public class WatchingKeyczarReader extends KeyczarFileReader
+    implements Closeable {
+  public static final long DEFAULT_POLL_INTERVAL = 10 * 1000;
+  // Rotations usually write several files, so events are gathered for a
+  // short while before reloading
+  private static final long SETTLE_DELAY = 100;
+
+  private final File directory;
+  private final long pollInterval;
+  private final List<Keyczar> keySets = new ArrayList<Keyczar>();
+  private final List<KeyczarReader> keySetReaders =
+      new ArrayList<KeyczarReader>();
+  private long loadedStamp;
+  private volatile KeyczarException lastError;
+  private Thread watcher;
+  private volatile boolean closed;
+
+  public WatchingKeyczarReader(String fileLocation) {
+    this(fileLocation, DEFAULT_POLL_INTERVAL);
+  }
+
+  /**
+   * @param fileLocation The directory holding the key set
+   * @param pollInterval The number of milliseconds between checks of the
+   * directory, whether or not a WatchService reports changes
+   */
+  public WatchingKeyczarReader(String fileLocation, long pollInterval) {
+    super(fileLocation);
+    if (pollInterval <= 0) {
+      throw new IllegalArgumentException();
+    }
+    directory = new File(fileLocation);
+    this.pollInterval = pollInterval;
+    loadedStamp = stamp();
+  }
+
+  /**
+   * Reloads the given key set whenever this reader's files change. The key
+   * set should have been read with this reader.
+   */
+  public void watch(Keyczar keySet) {
+    watch(keySet, this);
+  }
+
+  /**
+   * Reloads the given key set through the given reader whenever this
+   * reader's files change. This allows key sets read through a wrapping
+   * reader, such as a {@link KeyczarEncryptedReader}, to be watched.
+   */
+  public synchronized void watch(Keyczar keySet, KeyczarReader reader) {
+    if (closed) {
+      throw new IllegalStateException();
+    }
+    keySets.add(keySet);
+    keySetReaders.add(reader);
+    if (watcher == null) {
+      watcher = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          watchDirectory();
+        }
+      }, "Keyczar key watcher: " + directory);
+      watcher.setDaemon(true);
+      watcher.start();
+    }
+  }
+
+  /**
+   * Stops reloading the given key set, and releases this reader's reference
+   * to it. The key set keeps the keys last loaded.
+   *
+   * @return Whether the key set was being watched
+   */
+  public synchronized boolean unwatch(Keyczar keySet) {
+    boolean watched = false;
+    for (int i = keySets.size() - 1; i >= 0; i--) {
+      if (keySets.get(i) == keySet) {
+        keySets.remove(i);
+        keySetReaders.remove(i);
+        watched = true;
+      }
+    }
+    return watched;
+  }
+
+  /**
+   * Checks the directory now, reloading the watched key sets if any file has
+   * changed since they were last loaded.
+   *
+   * @return Whether the key sets were reloaded
+   * @throws KeyczarException If a key set couldn't be reloaded. Key sets
+   * which could be are reloaded anyway.
+   */
+  public synchronized boolean refresh() throws KeyczarException {
+    long stamp = stamp();
+    if (stamp == loadedStamp) {
+      return false;
+    }
+    KeyczarException error = null;
+    for (int i = 0; i < keySets.size(); i++) {
+      try {
+        keySets.get(i).reload(keySetReaders.get(i));
+      } catch (KeyczarException e) {
+        error = e;
+      } catch (RuntimeException e) {
+        // Malformed JSON, such as a file caught half written, is reported
+        // this way by the key readers
+        error = new KeyczarException(e);
+      }
+    }
+    lastError = error;
+    if (error != null) {
+      throw error;
+    }
+    loadedStamp = stamp;
+    return true;
+  }
+
+  /**
+   * Returns the error from the most recent reload, or null if it succeeded.
+   */
+  public KeyczarException getLastError() {
+    return lastError;
+  }
+
+  /**
+   * Stops watching the directory. Key sets keep the keys last loaded.
+   */
+  @Override
+  public void close() {
+    Thread thread;
+    synchronized (this) {
+      closed = true;
+      thread = watcher;
+    }
+    if (thread != null) {
+      thread.interrupt();
+    }
+  }
+
+  private void watchDirectory() {
+    WatchService watchService = null;
+    try {
+      Path path = Paths.get(directory.getPath());
+      watchService = FileSystems.getDefault().newWatchService();
+      path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+          StandardWatchEventKinds.ENTRY_MODIFY,
+          StandardWatchEventKinds.ENTRY_DELETE);
+    } catch (IOException e) {
+      watchService = closeQuietly(watchService);
+    } catch (UnsupportedOperationException e) {
+      watchService = closeQuietly(watchService);
+    }
+    try {
+      while (!closed) {
+        if (watchService == null) {
+          Thread.sleep(pollInterval);
+        } else {
+          WatchKey key = watchService.poll(pollInterval, TimeUnit.MILLISECONDS);
+          if (key != null) {
+            Thread.sleep(SETTLE_DELAY);
+            key.pollEvents();
+            if (!key.reset()) {
+              // The directory is gone, so fall back to polling for it
+              watchService = closeQuietly(watchService);
+            }
+          }
+        }
+        try {
+          refresh();
+        } catch (KeyczarException e) {
+          // Kept in lastError, and retried at the next change or poll
+        } catch (RuntimeException e) {
+          // Retried likewise, rather than ending the watch
+          lastError = new KeyczarException(e);
+        }
+      }
+    } catch (InterruptedException e) {
+      // Closed
+    } finally {
+      closeQuietly(watchService);
+    }
+  }
+
+  private static WatchService closeQuietly(WatchService watchService) {
+    if (watchService != null) {
+      try {
+        watchService.close();
+      } catch (IOException e) {
+        // Nothing more can be done
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns a fingerprint of the names, sizes and modification times of the
+   * files in the directory.
+   */
+  private long stamp() {
+    String[] names = directory.list();
+    if (names == null) {
+      return 0;
+    }
+    Arrays.sort(names);
+    long stamp = 17;
+    for (String name : names) {
+      File file = new File(directory, name);
+      stamp = 31 * stamp + name.hashCode();
+      stamp = 31 * stamp + file.lastModified();
+      stamp = 31 * stamp + file.length();
+    }
+    return stamp;
+  }
+}
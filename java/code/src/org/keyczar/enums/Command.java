@@ -33,7 +33,8 @@ public enum Command {
   REVOKE("revoke"),
   USEKEY("usekey"),
   IMPORT_KEY("importkey"),
-  EXPORT_KEY("exportkey");
+  EXPORT_KEY("exportkey"),
+  CONVERT("convert");
 
   private final String name;
 
@@ -68,6 +69,8 @@ public enum Command {
       return IMPORT_KEY;
     } else if (command.equalsIgnoreCase(EXPORT_KEY.toString())) {
       return EXPORT_KEY;
+    } else if (command.equalsIgnoreCase(CONVERT.toString())) {
+      return CONVERT;
     }
     throw new IllegalArgumentException(
         Messages.getString("Command.UnknownCommand", command));
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keyczar.enums;
+
+/**
+ * When the keys of a key set's versions are built:
+ * <ul>
+ *   <li>Eager: Every version's key is built as the key set is read.
+ *   <li>Lazy: Only the primary key is built as the key set is read. Other
+ *   versions are indexed by their hash identifiers, and each key is built
+ *   the first time a ciphertext or signature refers to it. Opens key sets
+ *   with many versions faster, and old versions which are never used take no
+ *   memory for JCE objects.
+ * </ul>
+ */
+public enum KeyLoadingMode {
+  EAGER,
+  LAZY
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keyczar.enums;
+
+/**
+ * How the streams holding initialized JCE objects for each key are cached
+ * between operations:
+ * <ul>
+ *   <li>Shared: One pool per key, shared by all threads. Uses the least memory
+ *   but all threads contend for the pool.
+ *   <li>Thread local: Each thread caches its own streams for each key. Never
+ *   contends, but holds streams for every thread which has used the key.
+ *   <li>Striped: One pool per processor for each key, chosen by thread. Keeps
+ *   contention low while holding roughly one stream per processor.
+ *   <li>Virtual threads: One lock-free pool per key, holding at most one
+ *   stream per carrier thread. Suits applications running on many virtual
+ *   threads, which must not be pinned to their carriers waiting for a lock,
+ *   and are too many to cache streams for each.
+ * </ul>
+ */
+public enum StreamCacheStrategy {
+  SHARED,
+  THREAD_LOCAL,
+  STRIPED,
+  VIRTUAL_THREADS
+}
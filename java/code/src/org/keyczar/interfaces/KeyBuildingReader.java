@@ -0,0 +1,40 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keyczar.interfaces;
+
+import org.keyczar.KeyczarKey;
+import org.keyczar.exceptions.KeyczarException;
+
+/**
+ * Key Building Readers can build keys themselves, more cheaply than by
+ * serializing them to JSON for the key set to parse. Key sets read through
+ * such a reader build each key they load eagerly with
+ * {@link #readKey(KeyType, int)}. Keys left to be built lazily are still read
+ * with {@link KeyczarReader#getKey(int)}.
+ */
+public interface KeyBuildingReader extends KeyczarReader {
+  /**
+   * Builds the key of the given version.
+   *
+   * @param type The key set's type, from its metadata
+   * @param version The version number of the key
+   * @return The key, or null if this reader can't build it, in which case it
+   * is read from {@link KeyczarReader#getKey(int)} instead
+   * @throws KeyczarException If the key can't be read
+   */
+  KeyczarKey readKey(KeyType type, int version) throws KeyczarException;
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keyczar.interfaces;
+
+import org.keyczar.exceptions.KeyczarException;
+
+/**
+ * Creates KeyczarReaders for named key sets, such as one key set per tenant.
+ */
+public interface KeyczarReaderFactory {
+  /**
+   * Returns a reader for the key set with the given name.
+   *
+   * @param name The key set's name
+   * @return A reader for the key set
+   * @throws KeyczarException If there is no such key set, or it can't be read
+   */
+  KeyczarReader getReader(String name) throws KeyczarException;
+}
@@ -309,6 +309,20 @@ public class Util {
     return readInt(src, 0);
   }
 
+  /**
+   * Converts 4 bytes at the given offset of an array to an int. Reads the
+   * bytes in big-endian order.
+   *
+   * This method does not check the source array length.
+   *
+   * @param src The source array to read bytes from
+   * @param offset The offset to start reading bytes from
+   * @return The integer value represented by the source array from the offset
+   */
+  public static int toInt(byte[] src, int offset) {
+    return readInt(src, offset);
+  }
+
   /**
    * Converts a given byte array to a long. Reads the bytes in big-endian order.
    *
@@ -48,6 +48,15 @@ public class AllTests extends TestSuite {
     suite.addTestSuite(SessionTest.class);
     suite.addTestSuite(CollisionTest.class);
     suite.addTestSuite(BadHashTest.class);
+    suite.addTestSuite(StreamQueueTest.class);
+    suite.addTestSuite(KeyHashIndexTest.class);
+    suite.addTestSuite(WatchingKeyczarReaderTest.class);
+    suite.addTestSuite(CachingKeyczarReaderTest.class);
+    suite.addTestSuite(NioKeyczarFileReaderTest.class);
+    suite.addTestSuite(BinaryKeyczarReaderTest.class);
+    suite.addTestSuite(KeySerializationTest.class);
+    suite.addTestSuite(KeySetRegistryTest.class);
+    suite.addTestSuite(CryptoExecutorTest.class);
     return suite;
   }
 }
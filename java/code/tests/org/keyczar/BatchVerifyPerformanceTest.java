@@ -0,0 +1,137 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keyczar;
+
+import org.keyczar.exceptions.KeyczarException;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Compares verifying HMAC signed tokens one call at a time with verifying
+ * them in batches. The tokens are signed by both versions of the test key
+ * set, so batches hold more than one key. Then compares verifying public key
+ * signatures serially with verifying them across pools of growing size.
+ */
+public class BatchVerifyPerformanceTest {
+  private static final String TEST_DATA = "./testdata";
+  static final int NUM_TOKENS = 200000;
+  static final int BATCH_SIZE = 1000;
+  static final int NUM_ROUNDS = 5;
+  static final int NUM_ENTRIES = 20000;
+
+  private static void displayPerformance(String name, long start, long end,
+      int trials) {
+    long duration = Math.max(end - start, 1);
+    System.out.print(name);
+    System.out.print("\t");
+    System.out.print(trials);
+    System.out.print("\t");
+    System.out.print(duration);
+    System.out.print("\t\t");
+    System.out.print(trials * 1000L / duration);
+    System.out.println();
+  }
+
+  private static void testParallel(String keySet) throws KeyczarException {
+    Signer signer = new Signer(TEST_DATA + "/" + keySet);
+    Verifier verifier = new Verifier(TEST_DATA + "/" + keySet + ".public");
+    byte[][] entries = new byte[NUM_ENTRIES][];
+    byte[][] signatures = new byte[NUM_ENTRIES][];
+    for (int i = 0; i < NUM_ENTRIES; i++) {
+      entries[i] = ("file-" + i + ".jar sha256=" + i).getBytes();
+      signatures[i] = signer.sign(entries[i]);
+    }
+
+    int processors = Runtime.getRuntime().availableProcessors();
+    for (int round = 0; round < NUM_ROUNDS; round++) {
+      long start = System.currentTimeMillis();
+      if (verifier.verifyBatch(entries, signatures).cardinality()
+          != NUM_ENTRIES) {
+        throw new AssertionError("Not all verified");
+      }
+      long end = System.currentTimeMillis();
+      displayPerformance(keySet + " serial", start, end, NUM_ENTRIES);
+
+      for (int threads = 1; threads <= processors; threads *= 2) {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        start = System.currentTimeMillis();
+        if (!verifier.verifyAll(entries, signatures, pool)) {
+          throw new AssertionError("Not all verified");
+        }
+        end = System.currentTimeMillis();
+        pool.shutdown();
+        displayPerformance(keySet + " x" + threads, start, end, NUM_ENTRIES);
+      }
+    }
+  }
+
+  public static void main(String[] args) throws KeyczarException {
+    Signer primarySigner = new Signer(TEST_DATA + "/hmac");
+    GenericKeyczar keys = new GenericKeyczar(
+        new KeyczarFileReader(TEST_DATA + "/hmac"));
+    // Sign every other token with the active key, which isn't the primary
+    Signer activeSigner = new Signer(new ImportedKeyReader(
+        (HmacKey) keys.getKey(keys.getVersion(1))));
+    Verifier verifier = new Verifier(TEST_DATA + "/hmac");
+
+    List<String> tokens = new ArrayList<String>(NUM_TOKENS);
+    List<String> signatures = new ArrayList<String>(NUM_TOKENS);
+    for (int i = 0; i < NUM_TOKENS; i++) {
+      String token = "user=" + i + "&expires=1893456000&scope=read";
+      tokens.add(token);
+      signatures.add(
+          (i % 2 == 0 ? primarySigner : activeSigner).sign(token));
+    }
+
+    System.out.println("Method\tTokens\tDuration (ms)\tTokens/s");
+    for (int round = 0; round < NUM_ROUNDS; round++) {
+      long start = System.currentTimeMillis();
+      int verified = 0;
+      for (int i = 0; i < NUM_TOKENS; i++) {
+        if (verifier.verify(tokens.get(i), signatures.get(i))) {
+          verified++;
+        }
+      }
+      long end = System.currentTimeMillis();
+      if (verified != NUM_TOKENS) {
+        throw new AssertionError("Only " + verified + " verified");
+      }
+      displayPerformance("verify", start, end, NUM_TOKENS);
+
+      start = System.currentTimeMillis();
+      verified = 0;
+      for (int i = 0; i < NUM_TOKENS; i += BATCH_SIZE) {
+        BitSet valid = verifier.verifyBatch(
+            tokens.subList(i, i + BATCH_SIZE),
+            signatures.subList(i, i + BATCH_SIZE));
+        verified += valid.cardinality();
+      }
+      end = System.currentTimeMillis();
+      if (verified != NUM_TOKENS) {
+        throw new AssertionError("Only " + verified + " verified");
+      }
+      displayPerformance("batch", start, end, NUM_TOKENS);
+    }
+
+    System.out.println("Method\tEntries\tDuration (ms)\tEntries/s");
+    testParallel("rsa-sign");
+    testParallel("dsa");
+  }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keyczar;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.keyczar.enums.CipherMode;
+import org.keyczar.enums.KeyLoadingMode;
+import org.keyczar.enums.KeyPurpose;
+import org.keyczar.enums.KeyStatus;
+import org.keyczar.exceptions.KeyczarException;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Collections;
+
+/**
+ * Tests converting key sets to the binary format with KeyczarTool, and
+ * reading them back with BinaryKeyczarReader.
+ */
+public class BinaryKeyczarReaderTest extends TestCase {
+  private static final String TEST_DATA = "./testdata";
+  private static final String INPUT = "This is some test data";
+
+  private File file;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    file = File.createTempFile("keyczar", ".bin");
+    KeyczarTool.setReader(null);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    file.delete();
+    super.tearDown();
+  }
+
+  private BinaryKeyczarReader convert(String keySet) throws Exception {
+    file.delete();
+    KeyczarTool.main(new String[] { "convert",
+        "--location=" + TEST_DATA + "/" + keySet,
+        "--destination=" + file.getPath() });
+    assertTrue(file.exists());
+    return new BinaryKeyczarReader(file.getPath());
+  }
+
+  private static String readLine(String path) throws Exception {
+    RandomAccessFile input = new RandomAccessFile(path, "r");
+    try {
+      return input.readLine();
+    } finally {
+      input.close();
+    }
+  }
+
+  @Test
+  public final void testReadsSameKeys() throws Exception {
+    for (String keySet : new String[] { "aes", "hmac", "rsa", "rsa-sign",
+        "dsa", "rsa.public", "dsa.public" }) {
+      KeyczarFileReader expected =
+          new KeyczarFileReader(TEST_DATA + "/" + keySet);
+      BinaryKeyczarReader reader = convert(keySet);
+      assertEquals(KeyMetadata.read(expected.getMetadata()).toString(),
+          reader.getMetadata());
+      GenericKeyczar expectedKeys = new GenericKeyczar(expected);
+      GenericKeyczar keys = new GenericKeyczar(reader);
+      for (KeyVersion version : expectedKeys.getVersions()) {
+        KeyczarKey key = keys.getKey(version);
+        assertEquals(expectedKeys.getKey(version).getClass(), key.getClass());
+        assertTrue(keySet, expectedKeys.getKey(version).equals(key));
+        // The JSON form parses to the same key
+        assertEquals(key.toString(), expectedKeys.getKey(version).getType()
+            .getBuilder().read(reader.getKey(version.getVersionNumber()))
+            .toString());
+      }
+    }
+  }
+
+  @Test
+  public final void testDecryptsAndVerifies() throws Exception {
+    Crypter crypter = new Crypter(convert("aes"));
+    assertEquals(INPUT, crypter.decrypt(readLine(TEST_DATA + "/aes/1.out")));
+    assertEquals(INPUT, crypter.decrypt(crypter.encrypt(INPUT)));
+
+    crypter = new Crypter(convert("rsa"));
+    assertEquals(INPUT, crypter.decrypt(readLine(TEST_DATA + "/rsa/1.out")));
+
+    for (String keySet : new String[] { "hmac", "rsa-sign", "dsa" }) {
+      Signer signer = new Signer(convert(keySet));
+      assertTrue(signer.verify(INPUT,
+          readLine(TEST_DATA + "/" + keySet + "/1.out")));
+      assertTrue(signer.verify(INPUT, signer.sign(INPUT)));
+    }
+  }
+
+  @Test
+  public final void testKeepsCipherMode() throws Exception {
+    KeyMetadata metadata =
+        new KeyMetadata("Test", KeyPurpose.DECRYPT_AND_ENCRYPT,
+            DefaultKeyType.AES);
+    KeyVersion version = new KeyVersion(1, KeyStatus.PRIMARY, false);
+    metadata.addVersion(version);
+    AesKey key = new AesKey(128, new byte[16], new HmacKey(new byte[32]),
+        CipherMode.DET_CBC);
+    byte[] bytes = BinaryKeySetFormat.write(metadata,
+        Collections.<KeyVersion, KeyczarKey>singletonMap(version, key));
+    BinaryKeySetFormat.Contents contents =
+        BinaryKeySetFormat.read(ByteBuffer.wrap(bytes), "test");
+    KeyczarKey read = BinaryKeySetFormat.readKey(DefaultKeyType.AES,
+        contents.records.get(1));
+    assertEquals(key.toString(), read.toString());
+  }
+
+  @Test
+  public final void testBuildsKeysThroughWrappers() throws Exception {
+    CachingKeyczarReader reader = CachingKeyczarReader.wrap(convert("aes"));
+    Crypter crypter = new Crypter(reader);
+    assertEquals(INPUT, crypter.decrypt(readLine(TEST_DATA + "/aes/1.out")));
+    // Only the metadata was read as a string
+    assertEquals(1, reader.getMissCount());
+
+    // Lazily built versions are read as strings when first used
+    crypter = new Crypter(convert("aes"), KeyLoadingMode.LAZY);
+    assertEquals(INPUT, crypter.decrypt(readLine(TEST_DATA + "/aes/1.out")));
+    assertEquals(INPUT, crypter.decrypt(readLine(TEST_DATA + "/aes/2.out")));
+  }
+
+  @Test
+  public final void testRejectsOtherFiles() throws Exception {
+    Files.write(file.toPath(), "{\"not\": \"binary\"}".getBytes("UTF-8"));
+    try {
+      new BinaryKeyczarReader(file.getPath()).getMetadata();
+      fail("Not a binary key set");
+    } catch (KeyczarException expected) {
+      // Expected
+    }
+
+    // A truncated file is rejected too
+    BinaryKeyczarReader reader = convert("aes");
+    byte[] contents = Files.readAllBytes(file.toPath());
+    Files.write(file.toPath(),
+        java.util.Arrays.copyOf(contents, contents.length - 10));
+    try {
+      new Crypter(new BinaryKeyczarReader(file.getPath()));
+      fail("Truncated binary key set");
+    } catch (KeyczarException expected) {
+      // Expected
+    }
+    assertNotNull(reader);
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keyczar;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.keyczar.exceptions.KeyczarException;
+import org.keyczar.interfaces.EncryptedReader;
+import org.keyczar.interfaces.KeyczarReader;
+import org.keyczar.util.Clock;
+
+/**
+ * Tests the expiry, eviction, negative caching and statistics of
+ * CachingKeyczarReader.
+ */
+public class CachingKeyczarReaderTest extends TestCase {
+  private static final String TEST_DATA = "./testdata";
+
+  /**
+   * Counts the reads which reach the file system.
+   */
+  private static class CountingReader implements KeyczarReader {
+    private final KeyczarReader reader;
+    int reads = 0;
+
+    CountingReader(KeyczarReader reader) {
+      this.reader = reader;
+    }
+
+    @Override
+    public String getKey(int version) throws KeyczarException {
+      reads++;
+      return reader.getKey(version);
+    }
+
+    @Override
+    public String getKey() throws KeyczarException {
+      reads++;
+      return reader.getKey();
+    }
+
+    @Override
+    public String getMetadata() throws KeyczarException {
+      reads++;
+      return reader.getMetadata();
+    }
+  }
+
+  private static class FakeClock implements Clock {
+    long now = 0;
+
+    @Override
+    public long now() {
+      return now;
+    }
+  }
+
+  @Test
+  public final void testCachesMetadataAndKeys() throws Exception {
+    CountingReader counter =
+        new CountingReader(new KeyczarFileReader(TEST_DATA + "/aes"));
+    CachingKeyczarReader reader = CachingKeyczarReader.wrap(counter);
+    String primary = new KeyczarFileReader(TEST_DATA + "/aes").getKey();
+    for (int i = 0; i < 3; i++) {
+      assertEquals(primary, reader.getKey());
+      new Crypter(reader);
+    }
+    // The metadata and both versions are each read once
+    assertEquals(3, counter.reads);
+    assertEquals(3, reader.getMissCount());
+    assertTrue(reader.getHitRate() > 0.5);
+
+    reader.invalidateAll();
+    reader.getMetadata();
+    assertEquals(4, counter.reads);
+  }
+
+  @Test
+  public final void testExpiryAndEviction() throws Exception {
+    CountingReader counter =
+        new CountingReader(new KeyczarFileReader(TEST_DATA + "/aes"));
+    CachingKeyczarReader reader =
+        CachingKeyczarReader.wrap(counter, 1000, 1, 0);
+    FakeClock clock = new FakeClock();
+    reader.setClock(clock);
+
+    reader.getKey(1);
+    reader.getKey(1);
+    assertEquals(1, counter.reads);
+    clock.now += 1000;
+    reader.getKey(1);
+    assertEquals(2, counter.reads);
+
+    // Only one key fits, so reading another evicts the first
+    reader.getKey(2);
+    reader.getKey(1);
+    assertEquals(4, counter.reads);
+    assertEquals(2, reader.getEvictionCount());
+  }
+
+  @Test
+  public final void testNegativeCaching() throws Exception {
+    CountingReader counter =
+        new CountingReader(new KeyczarFileReader(TEST_DATA + "/aes"));
+    CachingKeyczarReader reader =
+        CachingKeyczarReader.wrap(counter, 0, 10, 1000);
+    FakeClock clock = new FakeClock();
+    reader.setClock(clock);
+    KeyczarException[] errors = new KeyczarException[3];
+    for (int i = 0; i < errors.length; i++) {
+      try {
+        reader.getKey(99);
+        fail("Version 99 doesn't exist");
+      } catch (KeyczarException expected) {
+        errors[i] = expected;
+      }
+    }
+    assertEquals(1, counter.reads);
+    assertEquals(2, reader.getNegativeHitCount());
+    // Each caller gets an exception of its own
+    assertNotSame(errors[0], errors[1]);
+    assertNotSame(errors[1], errors[2]);
+    assertEquals(errors[0].getMessage(), errors[2].getMessage());
+
+    clock.now += 1000;
+    try {
+      reader.getKey(99);
+      fail("Version 99 doesn't exist");
+    } catch (KeyczarException expected) {
+      // Expected
+    }
+    assertEquals(2, counter.reads);
+  }
+
+  @Test
+  public final void testEncryptedReader() throws Exception {
+    KeyczarEncryptedReader encryptedReader = new KeyczarEncryptedReader(
+        new KeyczarFileReader(TEST_DATA + "/aes-crypted"),
+        new Crypter(TEST_DATA + "/aes"));
+    CachingKeyczarReader reader = CachingKeyczarReader.wrap(encryptedReader);
+    assertTrue(reader instanceof EncryptedReader);
+    Crypter crypter = new Crypter(reader);
+    assertEquals(encryptedReader.getKey(), reader.getKey());
+    String input = "This is some test data";
+    assertEquals(input, crypter.decrypt(crypter.encrypt(input)));
+  }
+}
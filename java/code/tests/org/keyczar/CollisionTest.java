@@ -1,5 +1,8 @@
 package org.keyczar;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
 
 import org.junit.Test;
@@ -37,6 +40,21 @@ public class CollisionTest extends TestCase {
     assertEquals(input, activeDecrypted);
     String primaryDecrypted = crypter.decrypt(primaryCiphertext);
     assertEquals(input, primaryDecrypted);
+    assertEquals(input, streamDecrypt(crypter, activeCiphertext));
+    assertEquals(input, streamDecrypt(crypter, primaryCiphertext));
+  }
+
+  private String streamDecrypt(Crypter crypter, String ciphertext)
+      throws Exception {
+    InputStream decryptingStream = crypter.newDecryptingInputStream(
+        new ByteArrayInputStream(Base64Coder.decodeWebSafe(ciphertext)));
+    ByteArrayOutputStream plaintext = new ByteArrayOutputStream();
+    int read;
+    while ((read = decryptingStream.read()) >= 0) {
+      plaintext.write(read);
+    }
+    decryptingStream.close();
+    return new String(plaintext.toByteArray(), Keyczar.DEFAULT_ENCODING);
   }
   
   private final void testVerify(String subDir) throws Exception {
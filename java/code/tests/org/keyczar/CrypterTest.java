@@ -17,15 +17,44 @@
 package org.keyczar;
 
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import junit.framework.TestCase;
 
 import org.junit.Test;
+import org.keyczar.enums.KeyLoadingMode;
+import org.keyczar.enums.KeyPurpose;
+import org.keyczar.enums.KeyStatus;
+import org.keyczar.enums.StreamCacheStrategy;
+import org.keyczar.exceptions.InvalidSignatureException;
 import org.keyczar.exceptions.KeyNotFoundException;
 import org.keyczar.exceptions.KeyczarException;
+import org.keyczar.exceptions.ShortBufferException;
 import org.keyczar.exceptions.ShortCiphertextException;
+import org.keyczar.exceptions.UnsupportedTypeException;
 import org.keyczar.interfaces.KeyczarReader;
 
 /**
@@ -81,6 +110,21 @@ public class CrypterTest extends TestCase {
     testDecrypt("/rsa");
   }
 
+  @Test
+  public final void testDecryptAsync() throws Exception {
+    Crypter crypter = new Crypter(TEST_DATA + "/rsa");
+    byte[] ciphertext = crypter.encrypt(input.getBytes());
+    assertEquals(input, new String(crypter.decryptAsync(ciphertext).get()));
+
+    ciphertext[ciphertext.length - 1] ^= 1;
+    try {
+      crypter.decryptAsync(ciphertext).get();
+      fail("The ciphertext is corrupt");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof KeyczarException);
+    }
+  }
+
   @Test
   public final void testAesEncryptAndDecrypt() throws KeyczarException {
     Crypter crypter = new Crypter(TEST_DATA + "/aes");
@@ -136,4 +180,813 @@ public class CrypterTest extends TestCase {
       // Expected exception
     }
   }
+
+  private byte[] streamEncrypt(Encrypter encrypter, byte[] plaintext)
+      throws Exception {
+    ByteArrayOutputStream ciphertext = new ByteArrayOutputStream();
+    OutputStream encryptingStream =
+        encrypter.newEncryptingOutputStream(ciphertext);
+    // Write in uneven pieces to exercise chunk boundaries
+    int offset = 0;
+    int piece = 1;
+    while (offset < plaintext.length) {
+      int len = Math.min(piece, plaintext.length - offset);
+      encryptingStream.write(plaintext, offset, len);
+      offset += len;
+      piece = piece * 3 + 1;
+    }
+    encryptingStream.close();
+    return ciphertext.toByteArray();
+  }
+
+  private byte[] streamDecrypt(Crypter crypter, byte[] ciphertext)
+      throws Exception {
+    InputStream decryptingStream =
+        crypter.newDecryptingInputStream(new ByteArrayInputStream(ciphertext));
+    ByteArrayOutputStream plaintext = new ByteArrayOutputStream();
+    byte[] buffer = new byte[777];
+    int read;
+    while ((read = decryptingStream.read(buffer)) >= 0) {
+      plaintext.write(buffer, 0, read);
+    }
+    decryptingStream.close();
+    return plaintext.toByteArray();
+  }
+
+  @Test
+  public final void testAesStreamEncryptAndDecrypt() throws Exception {
+    Crypter crypter = new Crypter(TEST_DATA + "/aes");
+    int[] sizes = {0, 1, 15, 16, 1023, 1024, 1025, 4096, 200000};
+    Random random = new Random(0);
+    for (int size : sizes) {
+      byte[] plaintext = new byte[size];
+      random.nextBytes(plaintext);
+      byte[] ciphertext = streamEncrypt(crypter, plaintext);
+      assertEquals(crypter.ciphertextSize(size), ciphertext.length);
+      assertTrue(Arrays.equals(plaintext, crypter.decrypt(ciphertext)));
+      assertTrue(Arrays.equals(plaintext, streamDecrypt(crypter, ciphertext)));
+      assertTrue(Arrays.equals(plaintext,
+          streamDecrypt(crypter, crypter.encrypt(plaintext))));
+    }
+  }
+
+  @Test
+  public final void testRsaStreamEncryptAndDecrypt() throws Exception {
+    Encrypter encrypter = new Encrypter(TEST_DATA + "/rsa.public");
+    Crypter crypter = new Crypter(TEST_DATA + "/rsa");
+    byte[] ciphertext = streamEncrypt(encrypter, input.getBytes());
+    assertEquals(input, new String(crypter.decrypt(ciphertext)));
+    assertEquals(input, new String(streamDecrypt(crypter, ciphertext)));
+  }
+
+  @Test
+  public final void testBadAesStreamCiphertexts() throws Exception {
+    Crypter crypter = new Crypter(TEST_DATA + "/aes");
+    byte[] plaintext = new byte[100000];
+    byte[] ciphertext = streamEncrypt(crypter, plaintext);
+    // Munge the first block of ciphertext. No plaintext may be released.
+    ciphertext[Keyczar.HEADER_SIZE + 20] ^= 1;
+    InputStream decryptingStream =
+        crypter.newDecryptingInputStream(new ByteArrayInputStream(ciphertext));
+    try {
+      decryptingStream.read();
+      fail("Read plaintext from a bad ciphertext");
+    } catch (IOException e) {
+      assertTrue(e.getCause() instanceof InvalidSignatureException);
+    }
+    // Later reads fail the same way
+    try {
+      decryptingStream.read(new byte[16]);
+      fail("Read plaintext from a bad ciphertext");
+    } catch (IOException e) {
+      assertTrue(e.getCause() instanceof InvalidSignatureException);
+    }
+    decryptingStream.close();
+
+    // Truncated ciphertexts must also fail
+    byte[] truncated = Arrays.copyOf(ciphertext, 10);
+    try {
+      streamDecrypt(crypter, truncated);
+      fail("Decrypted a truncated ciphertext");
+    } catch (IOException e) {
+      // Expected exception
+    }
+  }
+
+  private byte[] segmentedEncrypt(Encrypter encrypter, byte[] plaintext,
+      int segmentSize) throws Exception {
+    ByteArrayOutputStream ciphertext = new ByteArrayOutputStream();
+    OutputStream encryptingStream =
+        encrypter.newSegmentedEncryptingOutputStream(ciphertext, segmentSize);
+    encryptingStream.write(plaintext);
+    encryptingStream.close();
+    return ciphertext.toByteArray();
+  }
+
+  private byte[] segmentedDecrypt(Crypter crypter, byte[] ciphertext)
+      throws Exception {
+    InputStream decryptingStream = crypter.newSegmentedDecryptingInputStream(
+        new ByteArrayInputStream(ciphertext));
+    ByteArrayOutputStream plaintext = new ByteArrayOutputStream();
+    byte[] buffer = new byte[333];
+    int read;
+    while ((read = decryptingStream.read(buffer)) >= 0) {
+      plaintext.write(buffer, 0, read);
+    }
+    decryptingStream.close();
+    return plaintext.toByteArray();
+  }
+
+  @Test
+  public final void testAesSegmentedEncryptAndDecrypt() throws Exception {
+    Crypter crypter = new Crypter(TEST_DATA + "/aes");
+    int segmentSize = 100;
+    int[] sizes = {0, 1, 99, 100, 101, 1000, 12345};
+    Random random = new Random(0);
+    for (int size : sizes) {
+      byte[] plaintext = new byte[size];
+      random.nextBytes(plaintext);
+      byte[] ciphertext = segmentedEncrypt(crypter, plaintext, segmentSize);
+      assertTrue(Arrays.equals(plaintext, segmentedDecrypt(crypter, ciphertext)));
+    }
+    byte[] plaintext = new byte[200000];
+    random.nextBytes(plaintext);
+    ByteArrayOutputStream ciphertext = new ByteArrayOutputStream();
+    OutputStream encryptingStream =
+        crypter.newSegmentedEncryptingOutputStream(ciphertext);
+    encryptingStream.write(plaintext);
+    encryptingStream.close();
+    assertTrue(Arrays.equals(plaintext,
+        segmentedDecrypt(crypter, ciphertext.toByteArray())));
+  }
+
+  @Test
+  public final void testSegmentedDecryptReleasesEarlySegments()
+      throws Exception {
+    Crypter crypter = new Crypter(TEST_DATA + "/aes");
+    byte[] plaintext = new byte[10000];
+    final byte[] ciphertext = segmentedEncrypt(crypter, plaintext, 1000);
+    final int[] bytesRead = {0};
+    InputStream countingStream = new ByteArrayInputStream(ciphertext) {
+      @Override
+      public synchronized int read(byte[] b, int off, int len) {
+        int read = super.read(b, off, len);
+        bytesRead[0] += Math.max(read, 0);
+        return read;
+      }
+
+      @Override
+      public synchronized int read() {
+        int read = super.read();
+        bytesRead[0] += read < 0 ? 0 : 1;
+        return read;
+      }
+    };
+    InputStream decryptingStream =
+        crypter.newSegmentedDecryptingInputStream(countingStream);
+    assertEquals(0, decryptingStream.read());
+    assertTrue(bytesRead[0] < ciphertext.length / 5);
+    decryptingStream.close();
+  }
+
+  @Test
+  public final void testBadSegmentedCiphertexts() throws Exception {
+    Crypter crypter = new Crypter(TEST_DATA + "/aes");
+    byte[] plaintext = new byte[1000];
+    byte[] ciphertext = segmentedEncrypt(crypter, plaintext, 100);
+    int headerSize = SegmentedCiphertext.HEADER_SIZE;
+    int segmentLength = (ciphertext.length - headerSize) / 10;
+
+    // Truncate at a segment boundary
+    byte[] truncated = Arrays.copyOf(ciphertext, headerSize + 9 * segmentLength);
+    assertSegmentedDecryptFails(crypter, truncated);
+
+    // Swap the first two segments
+    byte[] reordered = ciphertext.clone();
+    System.arraycopy(ciphertext, headerSize, reordered,
+        headerSize + segmentLength, segmentLength);
+    System.arraycopy(ciphertext, headerSize + segmentLength, reordered,
+        headerSize, segmentLength);
+    assertSegmentedDecryptFails(crypter, reordered);
+
+    // Splice in a segment from another ciphertext
+    byte[] other = segmentedEncrypt(crypter, plaintext, 100);
+    byte[] spliced = ciphertext.clone();
+    System.arraycopy(other, headerSize + segmentLength, spliced,
+        headerSize + segmentLength, segmentLength);
+    assertSegmentedDecryptFails(crypter, spliced);
+
+    // Modify the header
+    byte[] badHeader = ciphertext.clone();
+    badHeader[headerSize - 1] ^= 1;
+    assertSegmentedDecryptFails(crypter, badHeader);
+  }
+
+  private void assertSegmentedDecryptFails(Crypter crypter, byte[] ciphertext)
+      throws Exception {
+    try {
+      segmentedDecrypt(crypter, ciphertext);
+      fail("Decrypted a bad segmented ciphertext");
+    } catch (IOException e) {
+      assertTrue(e.getCause() instanceof InvalidSignatureException);
+    }
+  }
+
+  @Test
+  public final void testRsaSegmentedEncryptFails() throws Exception {
+    Encrypter encrypter = new Encrypter(TEST_DATA + "/rsa.public");
+    try {
+      encrypter.newSegmentedEncryptingOutputStream(new ByteArrayOutputStream());
+      fail("Created a segmented ciphertext with an RSA key");
+    } catch (UnsupportedTypeException e) {
+      // Expected exception
+    }
+  }
+
+  @Test
+  public final void testSegmentedDecryptRange() throws Exception {
+    Crypter crypter = new Crypter(TEST_DATA + "/aes");
+    byte[] plaintext = new byte[10000];
+    new Random(0).nextBytes(plaintext);
+    byte[] ciphertext = segmentedEncrypt(crypter, plaintext, 1000);
+    File file = File.createTempFile("keyczar", ".segmented");
+    file.deleteOnExit();
+    FileOutputStream fileOutput = new FileOutputStream(file);
+    fileOutput.write(ciphertext);
+    fileOutput.close();
+
+    SeekableByteChannel channel =
+        Files.newByteChannel(file.toPath(), StandardOpenOption.READ);
+    try {
+      int[][] ranges = {{0, 10}, {995, 10}, {1000, 1000}, {4321, 3000},
+          {9990, 10}, {9990, 100}, {0, 10000}, {10000, 5}, {500, 0},
+          // Ranges past the end are clipped without allocating their length
+          {9500, Integer.MAX_VALUE}, {0, Integer.MAX_VALUE}};
+      for (int[] range : ranges) {
+        int end = (int) Math.min(plaintext.length,
+            (long) range[0] + range[1]);
+        byte[] expected = Arrays.copyOfRange(plaintext,
+            Math.min(range[0], end), end);
+        assertTrue(Arrays.equals(expected,
+            crypter.decryptRange(channel, range[0], range[1])));
+      }
+    } finally {
+      channel.close();
+    }
+
+    // Modify the second segment. Only ranges covering it should fail.
+    int segmentLength =
+        (ciphertext.length - SegmentedCiphertext.HEADER_SIZE) / 10;
+    ciphertext[SegmentedCiphertext.HEADER_SIZE + segmentLength + 20] ^= 1;
+    fileOutput = new FileOutputStream(file);
+    fileOutput.write(ciphertext);
+    fileOutput.close();
+    channel = Files.newByteChannel(file.toPath(), StandardOpenOption.READ);
+    try {
+      assertTrue(Arrays.equals(Arrays.copyOfRange(plaintext, 3000, 4000),
+          crypter.decryptRange(channel, 3000, 1000)));
+      crypter.decryptRange(channel, 1500, 10);
+      fail("Decrypted a modified segment");
+    } catch (InvalidSignatureException e) {
+      // Expected exception
+    } finally {
+      channel.close();
+      file.delete();
+    }
+  }
+
+  @Test
+  public final void testParallelSegmentedEncryptAndDecrypt() throws Exception {
+    Crypter crypter = new Crypter(TEST_DATA + "/aes");
+    Random random = new Random(0);
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      int[] sizes = {0, 1, 999, 1000, 1001, 54321};
+      for (int size : sizes) {
+        byte[] plaintext = new byte[size];
+        random.nextBytes(plaintext);
+        for (Executor e : new Executor[] {null, executor}) {
+          ByteBuffer ciphertext =
+              ByteBuffer.allocate(crypter.segmentedCiphertextSize(size, 1000));
+          crypter.encryptSegmented(ByteBuffer.wrap(plaintext), ciphertext,
+              1000, e);
+          assertFalse(ciphertext.hasRemaining());
+          // The parallel and streaming formats are the same
+          assertTrue(Arrays.equals(plaintext,
+              segmentedDecrypt(crypter, ciphertext.array())));
+          ciphertext.flip();
+          ByteBuffer decrypted = ByteBuffer.allocate(size);
+          crypter.decryptSegmented(ciphertext, decrypted, e);
+          assertTrue(Arrays.equals(plaintext, decrypted.array()));
+        }
+        byte[] streamed = segmentedEncrypt(crypter, plaintext, 1000);
+        assertTrue(Arrays.equals(plaintext, crypter.decryptSegmented(streamed)));
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    byte[] plaintext = new byte[3000000];
+    random.nextBytes(plaintext);
+    byte[] ciphertext = crypter.encryptSegmented(plaintext);
+    assertTrue(Arrays.equals(plaintext, crypter.decryptSegmented(ciphertext)));
+
+    // Any modified segment must cause decryption to fail
+    ciphertext[ciphertext.length / 2] ^= 1;
+    try {
+      crypter.decryptSegmented(ciphertext);
+      fail("Decrypted a modified segmented ciphertext");
+    } catch (InvalidSignatureException e) {
+      // Expected exception
+    }
+  }
+
+  @Test
+  public final void testSegmentedFailuresReturnStreams() throws Exception {
+    Crypter crypter = new Crypter(TEST_DATA + "/aes");
+    crypter.setStreamCacheStrategy(StreamCacheStrategy.VIRTUAL_THREADS);
+    CarrierBoundedStreamCache<?> cache =
+        (CarrierBoundedStreamCache<?>) crypter.getPrimaryKey().cachedStreams;
+    byte[] plaintext = new byte[1000];
+    new Random(0).nextBytes(plaintext);
+    ByteBuffer ciphertext = ByteBuffer.allocate(
+        crypter.segmentedCiphertextSize(plaintext.length, 100));
+    crypter.encryptSegmented(ByteBuffer.wrap(plaintext), ciphertext, 100,
+        null);
+    assertEquals(1, cache.size());
+
+    // Break a segment after the first, so the key is found first
+    ciphertext.put(ciphertext.limit() - 1,
+        (byte) (ciphertext.get(ciphertext.limit() - 1) ^ 1));
+    ciphertext.flip();
+    try {
+      crypter.decryptSegmented(ciphertext,
+          ByteBuffer.allocate(plaintext.length), null);
+      fail("Decrypted a modified segmented ciphertext");
+    } catch (InvalidSignatureException e) {
+      // Expected exception
+    }
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public final void testBatchEncryptAndDecrypt() throws Exception {
+    Random random = new Random(0);
+    byte[][] inputs = new byte[100][];
+    for (int i = 0; i < inputs.length; i++) {
+      inputs[i] = new byte[random.nextInt(3000)];
+      random.nextBytes(inputs[i]);
+    }
+    for (String keySet : new String[] {"/aes", "/rsa"}) {
+      Crypter crypter = new Crypter(TEST_DATA + keySet);
+      byte[][] batchInputs = inputs;
+      if (keySet.equals("/rsa")) {
+        batchInputs = new byte[][] {input.getBytes(), new byte[0]};
+      }
+      BatchResult ciphertexts = crypter.encryptBatch(batchInputs);
+      assertEquals(batchInputs.length, ciphertexts.size());
+      for (int i = 0; i < batchInputs.length; i++) {
+        assertTrue(Arrays.equals(batchInputs[i],
+            crypter.decrypt(ciphertexts.toByteArray(i))));
+      }
+      List<ByteBuffer> ciphertextBuffers = new ArrayList<ByteBuffer>();
+      for (int i = 0; i < ciphertexts.size(); i++) {
+        ciphertextBuffers.add(ciphertexts.get(i));
+      }
+      BatchResult plaintexts = crypter.decryptBatch(ciphertextBuffers);
+      assertEquals(batchInputs.length, plaintexts.size());
+      for (int i = 0; i < batchInputs.length; i++) {
+        assertTrue(Arrays.equals(batchInputs[i], plaintexts.toByteArray(i)));
+      }
+      assertEquals(0, plaintexts.offset(0));
+      assertEquals(plaintexts.offset(plaintexts.size()),
+          plaintexts.buffer().remaining());
+    }
+
+    Crypter crypter = new Crypter(TEST_DATA + "/aes");
+    assertEquals(0, crypter.encryptBatch(new byte[0][]).size());
+    byte[][] ciphertexts = crypter.encryptBatch(inputs).toByteArrays();
+    ciphertexts[50][ciphertexts[50].length - 1] ^= 1;
+    try {
+      crypter.decryptBatch(ciphertexts);
+      fail("Decrypted a batch containing a bad ciphertext");
+    } catch (InvalidSignatureException e) {
+      // Expected exception
+    }
+  }
+
+  @Test
+  public final void testArrayEncryptAndDecrypt() throws Exception {
+    Random random = new Random(0);
+    for (String keySet : new String[] {"/aes", "/rsa"}) {
+      Crypter crypter = new Crypter(TEST_DATA + keySet);
+      int maxLength = keySet.equals("/rsa") ? 100 : 3000;
+      for (int length = 0; length < maxLength; length += 1 + length / 4) {
+        byte[] plaintext = new byte[length + 3];
+        random.nextBytes(plaintext);
+        byte[] ciphertext = new byte[crypter.ciphertextSize(length) + 7];
+        int ciphertextLength =
+            crypter.encrypt(plaintext, 3, length, ciphertext, 7);
+        assertEquals(crypter.ciphertextSize(length), ciphertextLength);
+        byte[] expected = Arrays.copyOfRange(plaintext, 3, length + 3);
+        assertTrue(Arrays.equals(expected, crypter.decrypt(
+            Arrays.copyOfRange(ciphertext, 7, ciphertextLength + 7))));
+
+        byte[] decrypted = new byte[length + 5];
+        assertEquals(length, crypter.decrypt(ciphertext, 7, ciphertextLength,
+            decrypted, 5));
+        assertTrue(Arrays.equals(expected,
+            Arrays.copyOfRange(decrypted, 5, length + 5)));
+
+        byte[] otherCiphertext = crypter.encrypt(expected);
+        assertEquals(length, crypter.decrypt(otherCiphertext, 0,
+            otherCiphertext.length, decrypted, 0));
+        assertTrue(Arrays.equals(expected,
+            Arrays.copyOfRange(decrypted, 0, length)));
+      }
+    }
+
+    Crypter crypter = new Crypter(TEST_DATA + "/aes");
+    byte[] plaintext = input.getBytes();
+    byte[] ciphertext = new byte[crypter.ciphertextSize(plaintext.length)];
+    try {
+      crypter.encrypt(plaintext, 0, plaintext.length, ciphertext, 1);
+      fail("Encrypted into a short output array");
+    } catch (ShortBufferException e) {
+      // Expected exception
+    }
+    crypter.encrypt(plaintext, 0, plaintext.length, ciphertext, 0);
+    byte[] decrypted = new byte[plaintext.length];
+    try {
+      crypter.decrypt(ciphertext, 0, ciphertext.length, decrypted, 1);
+      fail("Decrypted into a short output array");
+    } catch (ShortBufferException e) {
+      // Expected exception
+    }
+    ciphertext[ciphertext.length - 1] ^= 1;
+    Arrays.fill(decrypted, (byte) 0);
+    try {
+      crypter.decrypt(ciphertext, 0, ciphertext.length, decrypted, 0);
+      fail("Decrypted a bad ciphertext");
+    } catch (InvalidSignatureException e) {
+      // Expected exception
+    }
+    byte[] unchanged = new byte[plaintext.length];
+    assertTrue(Arrays.equals(unchanged, decrypted));
+  }
+
+  @Test
+  public final void testDirectBufferEncryptAndDecrypt() throws Exception {
+    Random random = new Random(0);
+    for (String keySet : new String[] {"/aes", "/rsa"}) {
+      Crypter crypter = new Crypter(TEST_DATA + keySet);
+      int maxLength = keySet.equals("/rsa") ? 100 : 3000;
+      for (int length = 0; length < maxLength; length += 1 + length / 4) {
+        byte[] plaintext = new byte[length];
+        random.nextBytes(plaintext);
+        ByteBuffer input = ByteBuffer.allocateDirect(length + 3);
+        input.position(3);
+        input.put(plaintext);
+        input.position(3);
+        input = input.slice();
+
+        ByteBuffer ciphertext =
+            ByteBuffer.allocateDirect(crypter.ciphertextSize(length) + 5);
+        ciphertext.position(5);
+        crypter.encrypt(input, ciphertext);
+        ciphertext.flip();
+        ciphertext.position(5);
+        assertEquals(crypter.ciphertextSize(length), ciphertext.remaining());
+        byte[] ciphertextBytes = new byte[ciphertext.remaining()];
+        ciphertext.duplicate().get(ciphertextBytes);
+        assertTrue(Arrays.equals(plaintext, crypter.decrypt(ciphertextBytes)));
+
+        ByteBuffer output = ByteBuffer.allocateDirect(ciphertextBytes.length);
+        crypter.decrypt(ciphertext, output);
+        output.flip();
+        assertEquals(length, output.remaining());
+        byte[] decrypted = new byte[length];
+        output.get(decrypted);
+        assertTrue(Arrays.equals(plaintext, decrypted));
+
+        ByteBuffer readOnlyCiphertext = ByteBuffer.allocateDirect(
+            ciphertextBytes.length).put(ciphertextBytes);
+        readOnlyCiphertext.flip();
+        output.clear();
+        crypter.decrypt(readOnlyCiphertext.asReadOnlyBuffer(), output);
+        assertEquals(length, output.position());
+      }
+    }
+
+    Crypter crypter = new Crypter(TEST_DATA + "/aes");
+    byte[] ciphertextBytes = crypter.encrypt(input.getBytes());
+    ciphertextBytes[ciphertextBytes.length - 1] ^= 1;
+    ByteBuffer ciphertext = ByteBuffer.allocateDirect(ciphertextBytes.length);
+    ciphertext.put(ciphertextBytes);
+    ciphertext.flip();
+    try {
+      crypter.decrypt(ciphertext,
+          ByteBuffer.allocateDirect(ciphertextBytes.length));
+      fail("Decrypted a bad ciphertext");
+    } catch (InvalidSignatureException e) {
+      // Expected exception
+    }
+  }
+
+  @Test
+  public final void testReload() throws Exception {
+    MockKeyczarReader reader = new MockKeyczarReader("Test",
+        KeyPurpose.DECRYPT_AND_ENCRYPT, DefaultKeyType.AES);
+    reader.addKey(1, KeyStatus.PRIMARY);
+    Crypter crypter = new Crypter(reader);
+    KeyczarKey firstKey = crypter.getPrimaryKey();
+    String oldCiphertext = crypter.encrypt(input);
+
+    // Rotate in a new primary, keeping the old key to decrypt with
+    KeyMetadata metadata = KeyMetadata.read(reader.getMetadata());
+    metadata.getVersion(1).setStatus(KeyStatus.ACTIVE);
+    reader.setMetadata(metadata);
+    reader.addKey(2, KeyStatus.PRIMARY);
+    crypter.reload(reader);
+
+    assertNotSame(firstKey, crypter.getPrimaryKey());
+    assertSame(firstKey, crypter.getKey(firstKey.hash()).get(0));
+    assertEquals(input, crypter.decrypt(oldCiphertext));
+    assertEquals(input, crypter.decrypt(crypter.encrypt(input)));
+
+    // A key set of another type is rejected, leaving the keys in use alone
+    KeySetSnapshot snapshot = crypter.snapshot();
+    try {
+      crypter.reload(new KeyczarFileReader(TEST_DATA + "/rsa"));
+      fail("Key type changed");
+    } catch (KeyczarException expected) {
+      // Expected
+    }
+    assertSame(snapshot, crypter.snapshot());
+  }
+
+  @Test
+  public final void testParallelLoad() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      for (String keySet : new String[] { "aes", "rsa" }) {
+        Crypter serial = new Crypter(TEST_DATA + "/" + keySet);
+        Crypter parallel = new Crypter(
+            new KeyczarFileReader(TEST_DATA + "/" + keySet), executor);
+        assertEquals(
+            new ArrayList<KeyVersion>(serial.snapshot().versionMap().keySet()),
+            new ArrayList<KeyVersion>(
+                parallel.snapshot().versionMap().keySet()));
+        assertEquals(serial.getPrimaryKey(), parallel.getPrimaryKey());
+        assertEquals(input, parallel.decrypt(serial.encrypt(input)));
+      }
+
+      // When several versions fail, the first version's error is thrown
+      KeyczarReader failing = new KeyczarFileReader(TEST_DATA + "/aes") {
+        @Override
+        public String getKey(int version) throws KeyczarException {
+          throw new KeyczarException("Version " + version);
+        }
+      };
+      try {
+        new Crypter(failing, executor);
+        fail("Versions can't be read");
+      } catch (KeyczarException expected) {
+        assertEquals("Version 1", expected.getMessage());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public final void testLazyLoading() throws Exception {
+    KeyczarReader reader = new KeyczarFileReader(TEST_DATA + "/aes");
+    Crypter crypter = new Crypter(reader, KeyLoadingMode.LAZY);
+    assertEquals(1, crypter.snapshot().versionMap().size());
+    assertEquals(input, crypter.decrypt(crypter.encrypt(input)));
+
+    // Reloading an unchanged key set leaves the old version unbuilt
+    crypter.reload(reader);
+    assertEquals(1, crypter.snapshot().versionMap().size());
+
+    RandomAccessFile activeInput =
+        new RandomAccessFile(TEST_DATA + "/aes/1.out", "r");
+    String activeCiphertext = activeInput.readLine();
+    activeInput.close();
+    assertEquals(input, crypter.decrypt(activeCiphertext));
+    assertEquals(2, crypter.snapshot().versionMap().size());
+    assertEquals(new Crypter(reader).snapshot().versionMap().keySet(),
+        crypter.snapshot().versionMap().keySet());
+  }
+
+  @Test
+  public final void testLazyLoadingMalformedKey() throws Exception {
+    final KeyczarReader reader = new KeyczarFileReader(TEST_DATA + "/rsa");
+    KeyczarReader corrupt = new KeyczarReader() {
+      @Override
+      public String getKey(int version) throws KeyczarException {
+        // Version 1 isn't primary, so only its hashes are read at first
+        return version == 1 ? "{\"publicKey\": " : reader.getKey(version);
+      }
+
+      @Override
+      public String getKey() throws KeyczarException {
+        return reader.getKey();
+      }
+
+      @Override
+      public String getMetadata() throws KeyczarException {
+        return reader.getMetadata();
+      }
+    };
+    try {
+      new Crypter(corrupt, KeyLoadingMode.LAZY);
+      fail("Loaded a malformed key");
+    } catch (KeyczarException expected) {
+      // Expected
+    }
+  }
+
+  @Test
+  public final void testRemovedVersionsAreNotUsed() throws Exception {
+    MockKeyczarReader reader = new MockKeyczarReader("Test",
+        KeyPurpose.DECRYPT_AND_ENCRYPT, DefaultKeyType.AES);
+    reader.addKey(1, KeyStatus.INACTIVE);
+    reader.addKey(2, KeyStatus.PRIMARY);
+    GenericKeyczar keySet = new GenericKeyczar(reader);
+    KeyczarKey revoked = keySet.getKey(keySet.getVersion(1));
+    Crypter crypter = new Crypter(reader);
+    crypter.removeKey(crypter.kmd.getVersion(1));
+    try {
+      crypter.decrypt(encryptWith(revoked));
+      fail("Decrypted with a removed version");
+    } catch (KeyNotFoundException expected) {
+      // Expected
+    }
+    assertEquals(input, crypter.decrypt(crypter.encrypt(input)));
+
+    MockKeyczarReader signingReader = new MockKeyczarReader("Test",
+        KeyPurpose.SIGN_AND_VERIFY, DefaultKeyType.HMAC_SHA1);
+    signingReader.addKey(1, KeyStatus.PRIMARY);
+    Signer signer = new Signer(signingReader);
+    String signature = signer.sign(input);
+    signer.removeKey(signer.kmd.getVersion(1));
+    try {
+      assertFalse(signer.verify(input, signature));
+    } catch (KeyNotFoundException expected) {
+      // Expected
+    }
+
+    // Revoking publishes a key set without the version
+    keySet.revoke(1);
+    assertNull(keySet.getKey(revoked.hash()));
+    assertFalse(keySet.snapshot().versionMap().containsValue(revoked));
+    assertNull(keySet.getMetadata().getVersion(1));
+  }
+
+  private String encryptWith(KeyczarKey key) throws Exception {
+    MockKeyczarReader reader = new MockKeyczarReader("Test",
+        KeyPurpose.DECRYPT_AND_ENCRYPT, DefaultKeyType.AES);
+    reader.addKey(1, KeyStatus.PRIMARY);
+    reader.setKey(1, key);
+    return new Encrypter(reader).encrypt(input);
+  }
+
+  @Test
+  public final void testWarmUp() throws Exception {
+    Crypter crypter = new Crypter(TEST_DATA + "/aes");
+    crypter.warmUp(3);
+    for (KeyczarKey key : crypter.snapshot().versionMap().values()) {
+      assertEquals(3, ((StreamQueue<?>) key.cachedStreams).size());
+    }
+    assertEquals(input, crypter.decrypt(crypter.encrypt(input)));
+    assertEquals(3, ((StreamQueue<?>) crypter.getPrimaryKey().cachedStreams)
+        .size());
+  }
+
+  @Test
+  public final void testSegmentedStreamsReturnStreamsBetweenSegments()
+      throws Exception {
+    Crypter crypter = new Crypter(TEST_DATA + "/aes");
+    crypter.setStreamCacheStrategy(StreamCacheStrategy.VIRTUAL_THREADS);
+    CarrierBoundedStreamCache<?> cache =
+        (CarrierBoundedStreamCache<?>) crypter.getPrimaryKey().cachedStreams;
+    byte[] plaintext = new byte[1000];
+    new Random(0).nextBytes(plaintext);
+
+    ByteArrayOutputStream ciphertext = new ByteArrayOutputStream();
+    OutputStream encrypting =
+        crypter.newSegmentedEncryptingOutputStream(ciphertext, 100);
+    encrypting.write(plaintext, 0, 500);
+    // Segments have been written, but the stream holds no cipher between them
+    assertEquals(1, cache.size());
+    encrypting.write(plaintext, 500, 500);
+    encrypting.close();
+
+    InputStream decrypting = crypter.newSegmentedDecryptingInputStream(
+        new ByteArrayInputStream(ciphertext.toByteArray()));
+    byte[] decrypted = new byte[plaintext.length];
+    // Reads release one segment at a time
+    assertEquals(100, decrypting.read(decrypted, 0, 150));
+    assertEquals(1, cache.size());
+    int read = 100;
+    while (read < decrypted.length) {
+      read += decrypting.read(decrypted, read, decrypted.length - read);
+    }
+    assertEquals(-1, decrypting.read());
+    decrypting.close();
+    assertTrue(Arrays.equals(plaintext, decrypted));
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public final void testStreamCacheStrategies() throws Exception {
+    final Crypter crypter = new Crypter(TEST_DATA + "/aes");
+    assertEquals(StreamCacheStrategy.SHARED,
+        crypter.getStreamCacheStrategy());
+    for (StreamCacheStrategy strategy : StreamCacheStrategy.values()) {
+      crypter.setStreamCacheStrategy(strategy);
+      assertEquals(strategy, crypter.getStreamCacheStrategy());
+      ExecutorService executor = Executors.newFixedThreadPool(4);
+      List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+      for (int t = 0; t < 8; t++) {
+        results.add(executor.submit(new Callable<Boolean>() {
+          @Override
+          public Boolean call() throws KeyczarException {
+            for (int i = 0; i < 100; i++) {
+              String plaintext = input + i;
+              if (!plaintext.equals(
+                  crypter.decrypt(crypter.encrypt(plaintext)))) {
+                return false;
+              }
+            }
+            return true;
+          }
+        }));
+      }
+      for (Future<Boolean> result : results) {
+        assertTrue(result.get());
+      }
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public final void testArrayEncryptAndDecryptAllocateLess()
+      throws Exception {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+      return;  // Allocation counting is not supported by this JVM
+    }
+    com.sun.management.ThreadMXBean allocations =
+        (com.sun.management.ThreadMXBean) threads;
+    if (!allocations.isThreadAllocatedMemorySupported()) {
+      return;
+    }
+    allocations.setThreadAllocatedMemoryEnabled(true);
+
+    Crypter crypter = new Crypter(TEST_DATA + "/aes");
+    for (int length : new int[] {16, 16 * 1024}) {
+      byte[] plaintext = new byte[length];
+      byte[] ciphertext = new byte[crypter.ciphertextSize(length)];
+      byte[] decrypted = new byte[length];
+      // Warm up the stream caches and the JIT
+      encryptAndDecrypt(crypter, plaintext, ciphertext, decrypted, 20000);
+      copyEncryptAndDecrypt(crypter, plaintext, 20000);
+
+      long threadId = Thread.currentThread().getId();
+      long before = allocations.getThreadAllocatedBytes(threadId);
+      encryptAndDecrypt(crypter, plaintext, ciphertext, decrypted, 1000);
+      long arrayAllocated =
+          allocations.getThreadAllocatedBytes(threadId) - before;
+      before = allocations.getThreadAllocatedBytes(threadId);
+      copyEncryptAndDecrypt(crypter, plaintext, 1000);
+      long copyAllocated =
+          allocations.getThreadAllocatedBytes(threadId) - before;
+      // The JCE still makes small allocations for each message, such as the
+      // MAC tag, but nothing in proportion to the message's length
+      assertTrue("Allocated " + arrayAllocated + " bytes",
+          arrayAllocated < 1000 * 1024);
+      assertTrue("Allocated " + arrayAllocated + " bytes, against "
+          + copyAllocated, arrayAllocated < copyAllocated);
+    }
+  }
+
+  private static void encryptAndDecrypt(Crypter crypter, byte[] plaintext,
+      byte[] ciphertext, byte[] decrypted, int iterations)
+      throws KeyczarException {
+    for (int i = 0; i < iterations; i++) {
+      int ciphertextLength = crypter.encrypt(plaintext, 0, plaintext.length,
+          ciphertext, 0);
+      crypter.decrypt(ciphertext, 0, ciphertextLength, decrypted, 0);
+    }
+  }
+
+  private static void copyEncryptAndDecrypt(Crypter crypter,
+      byte[] plaintext, int iterations) throws KeyczarException {
+    for (int i = 0; i < iterations; i++) {
+      crypter.decrypt(crypter.encrypt(plaintext));
+    }
+  }
 }
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keyczar;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.keyczar.exceptions.KeyczarException;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Tests the backpressure and statistics of CryptoExecutor.
+ */
+public class CryptoExecutorTest extends TestCase {
+
+  @Test
+  public final void testRejectsWhenQueueIsFull() throws Exception {
+    CryptoExecutor executor = new CryptoExecutor(1, 1);
+    final CountDownLatch running = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    try {
+      CompletableFuture<String> first = executor.submit(
+          new Callable<String>() {
+            @Override
+            public String call() throws InterruptedException {
+              running.countDown();
+              release.await();
+              return "first";
+            }
+          });
+      running.await();
+      CompletableFuture<String> second = executor.submit(constant("second"));
+      assertEquals(1, executor.getQueuedCount());
+
+      CompletableFuture<String> third = executor.submit(constant("third"));
+      assertTrue(third.isCompletedExceptionally());
+      try {
+        third.get();
+        fail("The queue was full");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof RejectedExecutionException);
+      }
+
+      release.countDown();
+      assertEquals("first", first.get());
+      assertEquals("second", second.get());
+      assertEquals(3, executor.getSubmittedCount());
+      assertEquals(1, executor.getRejectedCount());
+    } finally {
+      release.countDown();
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public final void testRecordsFailuresAndTimes() throws Exception {
+    CryptoExecutor executor = new CryptoExecutor(1, 10);
+    try {
+      CompletableFuture<String> failure = executor.submit(
+          new Callable<String>() {
+            @Override
+            public String call() throws KeyczarException {
+              throw new KeyczarException("Failed");
+            }
+          });
+      try {
+        failure.get();
+        fail("The operation threw");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof KeyczarException);
+      }
+      assertEquals("done", executor.submit(constant("done")).get());
+      assertEquals(2, executor.getCompletedCount());
+      assertEquals(1, executor.getFailedCount());
+      assertTrue(executor.getTotalRunNanos() > 0);
+      assertTrue(executor.getAverageRunNanos() > 0);
+      assertTrue(executor.getAverageQueueNanos() >= 0);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private static Callable<String> constant(final String value) {
+    return new Callable<String>() {
+      @Override
+      public String call() {
+        return value;
+      }
+    };
+  }
+}
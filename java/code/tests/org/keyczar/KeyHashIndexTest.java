@@ -0,0 +1,69 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keyczar;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+/**
+ * Tests lookups of keys by hash identifier.
+ */
+public class KeyHashIndexTest extends TestCase {
+  private static final String TEST_DATA = "./testdata";
+
+  @Test
+  public final void testManyHashes() throws Exception {
+    KeyczarKey key = new Crypter(TEST_DATA + "/aes").getPrimaryKey();
+    KeyczarKey other = new Signer(TEST_DATA + "/hmac").getPrimaryKey();
+    KeyHashIndex index = new KeyHashIndex();
+    // Sequential hashes, including zero, and spread out hashes
+    for (int i = 0; i < 500; i++) {
+      index.add(i, key);
+      index.add(i * 0x01000193 + 1000, key);
+    }
+    index.add(0, other);
+    assertEquals(1000, index.size());
+    for (int i = 0; i < 500; i++) {
+      assertSame(key, index.get(i).get(0));
+      assertSame(key, index.get(i * 0x01000193 + 1000).get(0));
+    }
+    List<KeyczarKey> zero = index.get(0);
+    assertEquals(2, zero.size());
+    assertSame(other, zero.get(1));
+    assertNull(index.get(-1));
+  }
+
+  @Test
+  public final void testBufferLookup() throws Exception {
+    KeyczarKey key = new Crypter(TEST_DATA + "/aes").getPrimaryKey();
+    KeyHashIndex index = new KeyHashIndex();
+    index.add(0x01020304, key);
+
+    ByteBuffer header = ByteBuffer.wrap(new byte[] { 0, 1, 2, 3, 4 });
+    // The byte order and position of the buffer don't matter
+    header.order(ByteOrder.LITTLE_ENDIAN);
+    header.position(5);
+    assertSame(key, index.get(header, 1).get(0));
+    assertEquals(5, header.position());
+    assertNull(index.get(header, 0));
+  }
+}
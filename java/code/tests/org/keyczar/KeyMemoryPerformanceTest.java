@@ -0,0 +1,77 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keyczar;
+
+import org.keyczar.exceptions.KeyczarException;
+import org.keyczar.interfaces.KeyType;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the heap retained by keys of each type, as a service holding many
+ * key sets would see it. Each key is read many times over from its JSON form
+ * and kept, and the growth of the used heap is divided among them. The size
+ * of the key's JSON form is shown alongside, since that is what keeping the
+ * Base64 strings used to add.
+ */
+public class KeyMemoryPerformanceTest {
+  private static final String TEST_DATA = "./testdata";
+  static final int NUM_KEYS = 2000;
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    long used = Long.MAX_VALUE;
+    // Collect until the figure settles
+    for (int i = 0; i < 5; i++) {
+      System.gc();
+      used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+    }
+    return used;
+  }
+
+  private static void testKeyMemory(String keySet) throws KeyczarException {
+    KeyczarFileReader reader = new KeyczarFileReader(TEST_DATA + "/" + keySet);
+    KeyType type = KeyMetadata.read(reader.getMetadata()).getType();
+    String keyString = reader.getKey();
+    // Warm up, so class loading isn't counted
+    type.getBuilder().read(keyString);
+
+    List<KeyczarKey> keys = new ArrayList<KeyczarKey>(NUM_KEYS);
+    long start = usedHeap();
+    for (int i = 0; i < NUM_KEYS; i++) {
+      keys.add(type.getBuilder().read(keyString));
+    }
+    long end = usedHeap();
+    System.out.print(keySet);
+    System.out.print("\t\t");
+    System.out.print(keys.size());
+    System.out.print("\t");
+    System.out.print((end - start) / keys.size());
+    System.out.print("\t\t");
+    System.out.print(keys.get(0).toString().length());
+    System.out.println();
+  }
+
+  public static void main(String[] args) throws KeyczarException {
+    System.out.println("Key set\t\tKeys\tBytes per key\tJSON chars");
+    for (String keySet : new String[] { "aes", "hmac", "rsa", "rsa.public",
+        "dsa", "dsa.public" }) {
+      testKeyMemory(keySet);
+    }
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keyczar;
+
+import junit.framework.TestCase;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.keyczar.interfaces.KeyType;
+import org.keyczar.util.Util;
+
+import java.util.Iterator;
+
+/**
+ * Tests that keys, which only keep their JCE form, write the same JSON they
+ * were read from. Integers may be written in a shorter form than they were
+ * read, as some implementations add leading zeros.
+ */
+public class KeySerializationTest extends TestCase {
+  private static final String TEST_DATA = "./testdata";
+
+  private static void assertSameJson(String message, JSONObject expected,
+      JSONObject actual, boolean integers) throws Exception {
+    assertEquals(message, expected.length(), actual.length());
+    Iterator<?> names = expected.keys();
+    while (names.hasNext()) {
+      String name = (String) names.next();
+      Object value = expected.get(name);
+      if (value instanceof JSONObject) {
+        assertSameJson(message + "." + name, (JSONObject) value,
+            actual.getJSONObject(name), integers);
+      } else if (integers && !name.equals("size")
+          && !name.equals("padding")) {
+        assertEquals(message + "." + name,
+            Util.decodeBigInteger((String) value),
+            Util.decodeBigInteger(actual.getString(name)));
+      } else {
+        assertEquals(message + "." + name, String.valueOf(value),
+            String.valueOf(actual.get(name)));
+      }
+    }
+  }
+
+  @Test
+  public final void testWritesKeysAsRead() throws Exception {
+    for (String keySet : new String[] { "aes", "hmac", "rsa", "rsa-sign",
+        "dsa", "rsa.public", "rsa-sign.public", "dsa.public", "crosscomp/aes",
+        "crosscomp/dsa", "crosscomp/hmac", "crosscomp/rsa" }) {
+      KeyczarFileReader reader =
+          new KeyczarFileReader(TEST_DATA + "/" + keySet);
+      KeyMetadata metadata = KeyMetadata.read(reader.getMetadata());
+      KeyType type = metadata.getType();
+      for (KeyVersion version : metadata.getVersions()) {
+        String keyString = reader.getKey(version.getVersionNumber());
+        KeyczarKey key = type.getBuilder().read(keyString);
+        boolean integers = type != DefaultKeyType.AES
+            && type != DefaultKeyType.HMAC_SHA1;
+        assertSameJson(keySet + "/" + version.getVersionNumber(),
+            new JSONObject(keyString), key.toJson(), integers);
+        // Reading the written form gives the same key
+        assertEquals(key, type.getBuilder().read(key.toString()));
+      }
+    }
+  }
+}
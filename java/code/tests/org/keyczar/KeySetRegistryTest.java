@@ -0,0 +1,215 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keyczar;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.keyczar.exceptions.KeyczarException;
+import org.keyczar.interfaces.KeyczarReader;
+import org.keyczar.interfaces.KeyczarReaderFactory;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests the loading, eviction, load coalescing and statistics of
+ * KeySetRegistry.
+ */
+public class KeySetRegistryTest extends TestCase {
+  private static final String TEST_DATA = "./testdata";
+  private static final String INPUT = "This is some test data";
+
+  /**
+   * Reads key sets from the test data, counting the readers created.
+   */
+  private static class TestDataFactory implements KeyczarReaderFactory {
+    final AtomicInteger readers = new AtomicInteger();
+
+    @Override
+    public KeyczarReader getReader(String name) throws KeyczarException {
+      readers.incrementAndGet();
+      return new KeyczarFileReader(TEST_DATA + "/" + name);
+    }
+  }
+
+  @Test
+  public final void testLoadsOnce() throws Exception {
+    TestDataFactory factory = new TestDataFactory();
+    KeySetRegistry registry = new KeySetRegistry(factory, 0, 0);
+    Crypter crypter = registry.getCrypter("aes");
+    assertSame(crypter, registry.getCrypter("aes"));
+    assertEquals(INPUT, crypter.decrypt(crypter.encrypt(INPUT)));
+    // A key set loaded as another kind is loaded again
+    Signer signer = registry.getSigner("hmac");
+    assertTrue(registry.getVerifier("hmac").verify(INPUT, signer.sign(INPUT)));
+
+    assertEquals(3, factory.readers.get());
+    assertEquals(3, registry.getMissCount());
+    assertEquals(1, registry.getHitCount());
+    assertEquals(3, registry.size());
+    assertEquals(6, registry.getVersionCount());
+
+    registry.invalidate("hmac");
+    assertEquals(1, registry.size());
+    assertEquals(2, registry.getVersionCount());
+    assertNotSame(signer, registry.getSigner("hmac"));
+  }
+
+  @Test
+  public final void testEvictsLeastRecentlyUsed() throws Exception {
+    KeySetRegistry registry = new KeySetRegistry(new TestDataFactory(), 2, 0);
+    Crypter aes = registry.getCrypter("aes");
+    registry.getSigner("hmac");
+    // Using aes makes hmac the least recently used
+    registry.getCrypter("aes");
+    registry.getVerifier("dsa.public");
+    assertEquals(2, registry.size());
+    assertEquals(1, registry.getEvictionCount());
+    assertSame(aes, registry.getCrypter("aes"));
+    assertEquals(3, registry.getMissCount());
+    registry.getSigner("hmac");
+    assertEquals(4, registry.getMissCount());
+  }
+
+  @Test
+  public final void testVersionLimit() throws Exception {
+    KeySetRegistry registry = new KeySetRegistry(new TestDataFactory(), 0, 3);
+    registry.getCrypter("aes");
+    registry.getSigner("hmac");
+    // aes and hmac have two versions each, so aes is evicted
+    assertEquals(1, registry.size());
+    assertEquals(2, registry.getVersionCount());
+    assertEquals(1, registry.getEvictionCount());
+  }
+
+  @Test
+  public final void testFailedLoadsAreRetried() throws Exception {
+    TestDataFactory factory = new TestDataFactory();
+    KeySetRegistry registry = new KeySetRegistry(factory, 0, 0);
+    for (int i = 0; i < 2; i++) {
+      try {
+        registry.getCrypter("no-such-key-set");
+        fail("The key set doesn't exist");
+      } catch (KeyczarException expected) {
+        // Expected
+      }
+    }
+    assertEquals(2, factory.readers.get());
+    assertEquals(2, registry.getLoadFailureCount());
+    assertEquals(0, registry.size());
+  }
+
+  @Test
+  public final void testCoalescesConcurrentLoads() throws Exception {
+    final CountDownLatch loading = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final TestDataFactory testData = new TestDataFactory();
+    final KeySetRegistry registry =
+        new KeySetRegistry(new KeyczarReaderFactory() {
+          @Override
+          public KeyczarReader getReader(String name)
+              throws KeyczarException {
+            loading.countDown();
+            try {
+              release.await();
+            } catch (InterruptedException e) {
+              throw new KeyczarException(e);
+            }
+            return testData.getReader(name);
+          }
+        }, 0, 0);
+    final Crypter[] loaded = new Crypter[1];
+    Thread first = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          loaded[0] = registry.getCrypter("aes");
+        } catch (KeyczarException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+    first.start();
+    loading.await();
+    // The first load is under way. Release it from another thread, since this
+    // one is about to wait for it.
+    Thread second = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        release.countDown();
+      }
+    });
+    second.start();
+    Crypter crypter = registry.getCrypter("aes");
+    first.join();
+    second.join();
+    assertSame(loaded[0], crypter);
+    assertEquals(1, testData.readers.get());
+    assertEquals(1, registry.getMissCount());
+    assertEquals(1, registry.getHitCount());
+  }
+
+  @Test
+  public final void testFailedSharedLoadsAreNotHits() throws Exception {
+    final CountDownLatch loading = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final KeySetRegistry registry =
+        new KeySetRegistry(new KeyczarReaderFactory() {
+          @Override
+          public KeyczarReader getReader(String name)
+              throws KeyczarException {
+            loading.countDown();
+            try {
+              release.await();
+            } catch (InterruptedException e) {
+              throw new KeyczarException(e);
+            }
+            throw new KeyczarException("No such key set");
+          }
+        }, 0, 0);
+    Thread first = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          registry.getCrypter("aes");
+        } catch (KeyczarException expected) {
+          // Expected
+        }
+      }
+    });
+    first.start();
+    loading.await();
+    Thread second = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        release.countDown();
+      }
+    });
+    second.start();
+    try {
+      registry.getCrypter("aes");
+      fail("The load failed");
+    } catch (KeyczarException expected) {
+      // Expected
+    }
+    first.join();
+    second.join();
+    assertEquals(0, registry.getHitCount());
+    assertEquals(0.0, registry.getHitRate());
+  }
+}
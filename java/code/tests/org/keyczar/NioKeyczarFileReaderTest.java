@@ -0,0 +1,105 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keyczar;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.keyczar.exceptions.KeyczarException;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests that NioKeyczarFileReader reads the same key sets as
+ * KeyczarFileReader, prefetching the versions listed in the metadata.
+ */
+public class NioKeyczarFileReaderTest extends TestCase {
+  private static final String TEST_DATA = "./testdata";
+
+  /**
+   * Counts the reads run on it.
+   */
+  private static class CountingExecutor implements Executor {
+    final AtomicInteger tasks = new AtomicInteger();
+
+    @Override
+    public void execute(Runnable command) {
+      tasks.incrementAndGet();
+      command.run();
+    }
+  }
+
+  @Test
+  public final void testMatchesFileReader() throws Exception {
+    for (String keySet : new String[] { "aes", "rsa", "hmac", "dsa" }) {
+      KeyczarFileReader expected =
+          new KeyczarFileReader(TEST_DATA + "/" + keySet);
+      NioKeyczarFileReader reader =
+          new NioKeyczarFileReader(TEST_DATA + "/" + keySet);
+      assertEquals(expected.getMetadata(), reader.getMetadata());
+      assertEquals(expected.getKey(1), reader.getKey(1));
+      assertEquals(expected.getKey(2), reader.getKey(2));
+      assertEquals(expected.getKey(), reader.getKey());
+    }
+  }
+
+  @Test
+  public final void testPrefetchesVersions() throws Exception {
+    CountingExecutor executor = new CountingExecutor();
+    NioKeyczarFileReader reader =
+        new NioKeyczarFileReader(TEST_DATA + "/aes", executor);
+    Crypter crypter = new Crypter(reader);
+    assertEquals(2, executor.tasks.get());
+    String input = "This is some test data";
+    assertEquals(input, crypter.decrypt(crypter.encrypt(input)));
+
+    // Prefetched reads are only used once
+    reader.getKey(1);
+    reader.getKey(1);
+    assertEquals(2, executor.tasks.get());
+  }
+
+  @Test
+  public final void testMissingVersion() throws Exception {
+    NioKeyczarFileReader reader =
+        new NioKeyczarFileReader(TEST_DATA + "/aes", null);
+    try {
+      reader.getKey(99);
+      fail("Version 99 doesn't exist");
+    } catch (KeyczarException expected) {
+      // Expected
+    }
+  }
+
+  @Test
+  public final void testDecodesUtf8() throws Exception {
+    File directory = Files.createTempDirectory("keyczar").toFile();
+    File file = new File(directory, "1");
+    try {
+      String contents = "{\"name\":\"\u00fcber \u5bc6\u94a5\"}";
+      Files.write(file.toPath(), contents.getBytes("UTF-8"));
+      assertEquals(contents,
+          new NioKeyczarFileReader(directory.getPath()).getKey(1));
+    } finally {
+      file.delete();
+      directory.delete();
+    }
+  }
+}
@@ -17,12 +17,19 @@
 package org.keyczar;
 
 
+import java.io.ByteArrayInputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import junit.framework.TestCase;
 
 import org.junit.Test;
+import org.keyczar.enums.KeyLoadingMode;
 import org.keyczar.exceptions.BadVersionException;
 import org.keyczar.exceptions.KeyNotFoundException;
 import org.keyczar.exceptions.KeyczarException;
@@ -90,6 +97,25 @@ public class SignerTest extends TestCase {
         primarySignature.substring(0, primarySignature.length() - 4) + "Junk"));
   }
 
+  @Test
+  public final void testLazyLoading() throws Exception {
+    for (String subDir : new String[] { "/hmac", "/rsa-sign", "/dsa" }) {
+      Signer signer = new Signer(new KeyczarFileReader(TEST_DATA + subDir),
+          KeyLoadingMode.LAZY);
+      // Only the primary key is built until the other version is used
+      assertEquals(1, signer.snapshot().versionMap().size());
+      assertTrue(signer.verify(input, signer.sign(input)));
+      assertEquals(1, signer.snapshot().versionMap().size());
+
+      RandomAccessFile activeInput =
+        new RandomAccessFile(TEST_DATA + subDir + "/1.out", "r");
+      String activeSignature = activeInput.readLine();
+      activeInput.close();
+      assertTrue(signer.verify(input, activeSignature));
+      assertEquals(2, signer.snapshot().versionMap().size());
+    }
+  }
+
   @Test
   public final void testHmacSignAndVerify() throws KeyczarException {
     Signer hmacSigner = new Signer(TEST_DATA + "/hmac");
@@ -178,6 +204,148 @@ public class SignerTest extends TestCase {
     testUnversionedSignAndVerify("/rsa-sign");
   }
 
+  private static ByteBuffer directCopy(byte[] data, int offset) {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(data.length + offset);
+    buffer.position(offset);
+    buffer.put(data);
+    buffer.position(offset);
+    return buffer.slice();
+  }
+
+  @Test
+  public final void testDirectBufferSignAndVerify() throws Exception {
+    for (String keySet : new String[] {"/hmac", "/dsa", "/rsa-sign"}) {
+      Signer signer = new Signer(TEST_DATA + keySet);
+      ByteBuffer data = directCopy(inputBytes, 3);
+      ByteBuffer signature =
+          ByteBuffer.allocateDirect(signer.digestSize() + 7);
+      signature.position(7);
+      signature = signature.slice();
+      signer.sign(data.duplicate(), signature);
+      signature.flip();
+
+      assertTrue(signer.verify(data.duplicate(), signature.duplicate()));
+      byte[] signatureBytes = new byte[signature.remaining()];
+      signature.duplicate().get(signatureBytes);
+      assertTrue(signer.verify(inputBytes, signatureBytes));
+      if (!keySet.equals("/hmac")) {
+        Verifier verifier = new Verifier(TEST_DATA + keySet + ".public");
+        assertTrue(verifier.verify(data.duplicate(), signature.duplicate()));
+      }
+
+      ByteBuffer otherData = directCopy("Some other string".getBytes(), 1);
+      assertFalse(signer.verify(otherData, signature.duplicate()));
+    }
+  }
+
+  @Test
+  public final void testStreamingSignAndVerify() throws Exception {
+    // Larger than a chunk, and not a multiple of one
+    byte[] data = new byte[3 * Verifier.STREAM_CHUNK_SIZE + 17];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) i;
+    }
+    for (String keySet : new String[] {"/hmac", "/dsa", "/rsa-sign"}) {
+      Signer signer = new Signer(TEST_DATA + keySet);
+      byte[] signature = signer.sign(new ByteArrayInputStream(data));
+      assertTrue(signer.verify(data, signature));
+      if (!keySet.equals("/dsa")) {
+        // DSA signatures are randomized, but the others must be identical
+        assertTrue(Arrays.equals(signer.sign(data), signature));
+      }
+      signature = signer.sign(
+          Channels.newChannel(new ByteArrayInputStream(data)));
+      assertTrue(signer.verify(data, signature));
+
+      assertTrue(signer.verify(new ByteArrayInputStream(data),
+          signer.sign(data)));
+      assertTrue(signer.verify(
+          Channels.newChannel(new ByteArrayInputStream(data)), signature));
+      byte[] otherData = Arrays.copyOf(data, data.length);
+      otherData[otherData.length - 1]++;
+      assertFalse(signer.verify(new ByteArrayInputStream(otherData),
+          signature));
+      // Empty input
+      assertTrue(signer.verify(new byte[0],
+          signer.sign(new ByteArrayInputStream(new byte[0]))));
+    }
+  }
+
+  @Test
+  public final void testVerifyBatch() throws Exception {
+    for (String keySet : new String[] {"/hmac", "/dsa", "/rsa-sign"}) {
+      Signer signer = new Signer(TEST_DATA + keySet);
+      RandomAccessFile activeInput =
+          new RandomAccessFile(TEST_DATA + keySet + "/1.out", "r");
+      String activeSignature = activeInput.readLine();
+      activeInput.close();
+      String signature = signer.sign(input);
+      String otherSignature = signer.sign("Some other string");
+      String unknownKey = new Signer(TEST_DATA + "/rsa-sign").sign(input);
+      if (keySet.equals("/rsa-sign")) {
+        unknownKey = new Signer(TEST_DATA + "/hmac").sign(input);
+      }
+
+      List<String> data = Arrays.asList(input, input, input, input, input,
+          "Some other string", input, input);
+      List<String> signatures = Arrays.asList(signature, activeSignature,
+          otherSignature, unknownKey, "AA", otherSignature, "Not Base64!",
+          signature);
+      BitSet valid = signer.verifyBatch(data, signatures);
+      for (int i = 0; i < data.size(); i++) {
+        assertEquals(keySet + " " + i, valid.get(i),
+            i == 0 || i == 1 || i == 5 || i == 7);
+      }
+    }
+  }
+
+  @Test
+  public final void testSignAsync() throws Exception {
+    Signer signer = new Signer(TEST_DATA + "/rsa-sign");
+    ByteBuffer inputBuffer = ByteBuffer.wrap(inputBytes);
+    CryptoExecutor executor = new CryptoExecutor(2, 10);
+    try {
+      byte[] signature = signer.signAsync(inputBuffer, executor).get();
+      assertTrue(signer.verify(inputBytes, signature));
+      assertEquals(0, inputBuffer.position());
+      assertTrue(signer.verify(inputBytes,
+          signer.signAsync(inputBuffer).get()));
+      assertEquals(1, executor.getSubmittedCount());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public final void testParallelVerifyBatch() throws Exception {
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      for (String keySet : new String[] {"/dsa", "/rsa-sign"}) {
+        Signer signer = new Signer(TEST_DATA + keySet);
+        Verifier verifier = new Verifier(TEST_DATA + keySet + ".public");
+        byte[][] data = new byte[100][];
+        byte[][] signatures = new byte[data.length][];
+        for (int i = 0; i < data.length; i++) {
+          data[i] = ("Manifest entry " + i).getBytes();
+          signatures[i] = signer.sign(data[i]);
+        }
+        assertEquals(data.length,
+            verifier.verifyBatch(data, signatures, pool).cardinality());
+        assertTrue(verifier.verifyAll(data, signatures, pool));
+
+        signatures[37] = signatures[38];
+        signatures[64] = new byte[] {Keyczar.FORMAT_VERSION};
+        BitSet valid = verifier.verifyBatch(data, signatures, pool);
+        assertEquals(data.length - 2, valid.cardinality());
+        assertFalse(valid.get(37));
+        assertFalse(valid.get(64));
+        assertFalse(verifier.verifyAll(data, signatures, pool));
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
   @Test
   public final void testHmacBadSigs() throws KeyczarException {
     Signer hmacSigner = new Signer(TEST_DATA + "/hmac");
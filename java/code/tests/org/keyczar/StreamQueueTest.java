@@ -0,0 +1,100 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keyczar;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.keyczar.exceptions.ShortBufferException;
+import org.keyczar.interfaces.Stream;
+import org.keyczar.util.Clock;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Tests the bounds and idle eviction of the stream pool, and that streams are
+ * returned to it when operations fail.
+ */
+public class StreamQueueTest extends TestCase {
+  private static final String TEST_DATA = "./testdata";
+
+  private static class FakeClock implements Clock {
+    long now = 1000;
+
+    @Override
+    public long now() {
+      return now;
+    }
+  }
+
+  private static class FakeStream implements Stream {
+  }
+
+  @Test
+  public final void testMaxIdle() {
+    StreamQueue<Stream> queue =
+        new StreamQueue<Stream>(3, 0, new FakeClock());
+    for (int i = 0; i < 10; i++) {
+      queue.add(new FakeStream());
+    }
+    assertEquals(3, queue.size());
+    for (int i = 0; i < 3; i++) {
+      assertNotNull(queue.poll());
+    }
+    assertNull(queue.poll());
+  }
+
+  @Test
+  public final void testIdleEviction() {
+    FakeClock clock = new FakeClock();
+    StreamQueue<Stream> queue = new StreamQueue<Stream>(10, 100, clock);
+    Stream oldest = new FakeStream();
+    Stream older = new FakeStream();
+    Stream newest = new FakeStream();
+    queue.add(oldest);
+    clock.now += 50;
+    queue.add(older);
+    clock.now += 50;
+    queue.add(newest);
+    assertEquals(3, queue.size());
+
+    clock.now += 1;
+    assertSame(newest, queue.poll());
+    assertEquals(1, queue.size());
+    queue.add(newest);
+
+    clock.now += 1000;
+    assertNull(queue.poll());
+    assertEquals(0, queue.size());
+  }
+
+  @Test
+  public final void testStreamReturnedAfterFailure() throws Exception {
+    Signer signer = new Signer(TEST_DATA + "/hmac");
+    signer.sign(new byte[16]);
+    StreamQueue<?> streams =
+        (StreamQueue<?>) signer.getPrimaryKey().cachedStreams;
+    assertEquals(1, streams.size());
+    try {
+      signer.sign(ByteBuffer.allocate(16), ByteBuffer.allocate(1));
+      fail("Signature should not fit");
+    } catch (ShortBufferException expected) {
+      // Expected
+    }
+    assertEquals(1, streams.size());
+  }
+}
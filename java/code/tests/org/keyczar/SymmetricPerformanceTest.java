@@ -18,7 +18,10 @@ package org.keyczar;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 
+import org.keyczar.enums.StreamCacheStrategy;
 import org.keyczar.exceptions.KeyczarException;
 
 public class SymmetricPerformanceTest {
@@ -27,6 +30,9 @@ public class SymmetricPerformanceTest {
   private static final String TEST_DATA = "./testdata";
   static final int NUM_THREADS = 3;
   static final int NUM_ITERATIONS = 30000;
+  static final int LARGE_ITERATIONS = 5;
+  static final int CACHE_THREADS =
+      4 * Runtime.getRuntime().availableProcessors();
   static volatile boolean caughtException;
   
   private static void displayPerformance(long start, long end, int size,
@@ -82,6 +88,37 @@ public class SymmetricPerformanceTest {
     }
 }
   
+  /**
+   * Encrypts small messages into reused arrays from many threads at once, so
+   * the time is dominated by borrowing and returning streams.
+   */
+  private static void testStreamCachePerformance(final Crypter crypter,
+      final int size, final int trials, int numThreads)
+      throws InterruptedException {
+    ArrayList<Thread> threads = new ArrayList<Thread>(numThreads);
+    for (int i = 0; i < numThreads; i++) {
+      Thread t = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            byte[] input = new byte[size];
+            byte[] output = new byte[crypter.ciphertextSize(size)];
+            for (int i = 0; i < trials; i++) {
+              crypter.encrypt(input, 0, size, output, 0);
+            }
+          } catch (KeyczarException e) {
+            e.printStackTrace();
+          }
+        }
+      });
+      t.start();
+      threads.add(t);
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+  }
+
   public static void main(String[] args) throws KeyczarException,
       InterruptedException {
     int[] sizes = {10, 128, 1024, 2048, 4096};
@@ -92,6 +129,31 @@ public class SymmetricPerformanceTest {
       long end = System.currentTimeMillis();
       displayPerformance(start, end, s, NUM_ITERATIONS * NUM_THREADS);
     }
+    System.out.println("Segmented Aes Test (serial, then parallel)");
+    Crypter crypter = new Crypter(TEST_DATA + "/aes");
+    int largeSize = 128 * 1024 * 1024;
+    ByteBuffer largeInput = ByteBuffer.allocate(largeSize);
+    ByteBuffer largeOutput = ByteBuffer.allocate(
+        crypter.segmentedCiphertextSize(largeSize, 64 * 1024));
+    for (Executor executor : new Executor[] {null, new ForkJoinPool()}) {
+      long start = System.currentTimeMillis();
+      for (int i = 0; i < LARGE_ITERATIONS; i++) {
+        largeOutput.clear();
+        crypter.encryptSegmented(largeInput, largeOutput, 64 * 1024, executor);
+      }
+      long end = System.currentTimeMillis();
+      displayPerformance(start, end, largeSize, LARGE_ITERATIONS);
+    }
+    System.out.println("Stream Cache Strategy Test (16 byte Aes messages, "
+        + CACHE_THREADS + " threads)");
+    for (StreamCacheStrategy strategy : StreamCacheStrategy.values()) {
+      System.out.println(strategy);
+      crypter.setStreamCacheStrategy(strategy);
+      long start = System.currentTimeMillis();
+      testStreamCachePerformance(crypter, 16, NUM_ITERATIONS, CACHE_THREADS);
+      long end = System.currentTimeMillis();
+      displayPerformance(start, end, 16, NUM_ITERATIONS * CACHE_THREADS);
+    }
     System.out.println("Hmac Test");
     for (int s : sizes) {
       long start = System.currentTimeMillis();
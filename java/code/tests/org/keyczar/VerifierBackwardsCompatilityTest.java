@@ -23,6 +23,14 @@ public class VerifierBackwardsCompatilityTest extends TestCase {
     publicKeyVerifier = new Verifier(TEST_DATA + "/dsa.public");
   }
 
+  @Override
+  protected void tearDown() throws Exception {
+    // Other tests expect the default, lenient verification
+    DsaPublicKey.setStrictVerificationForTest(Boolean.valueOf(
+        System.getProperty("keyczar.strict_dsa_verification", "false")));
+    super.tearDown();
+  }
+
   @Test
   public final void testVariableLengthSignaturesWithExtraBytes() throws KeyczarException {
     // This is (I'm so sorry) a random test - because the signing process includes a random element.
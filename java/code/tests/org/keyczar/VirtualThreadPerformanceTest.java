@@ -0,0 +1,132 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keyczar;
+
+import org.keyczar.enums.StreamCacheStrategy;
+import org.keyczar.exceptions.KeyczarException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Encrypts concurrently on 100,000 virtual threads with each stream cache
+ * strategy. Each thread encrypts a message, then writes a segmented
+ * ciphertext to an output which blocks briefly on every write, as a socket
+ * would.
+ *
+ * Virtual threads need Java 21, so they are created reflectively; on older
+ * JVMs a thread pool of 1000 platform threads stands in for them.
+ */
+public class VirtualThreadPerformanceTest {
+  private static final String TEST_DATA = "./testdata";
+  static final int NUM_THREADS = 100000;
+  static final int SEGMENT_SIZE = 1024;
+  static final int NUM_SEGMENTS = 4;
+  // How long each write to the output blocks for
+  static final long WRITE_NANOS = 100000;
+  static final int NUM_ROUNDS = 3;
+
+  /**
+   * An output which discards what is written, after blocking as if it were
+   * sent over the network.
+   */
+  private static final class SlowOutputStream extends OutputStream {
+    @Override
+    public void write(int b) {
+      LockSupport.parkNanos(WRITE_NANOS);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      LockSupport.parkNanos(WRITE_NANOS);
+    }
+  }
+
+  private static void displayPerformance(String name, long start, long end,
+      int trials) {
+    long duration = Math.max(end - start, 1);
+    System.out.print(name);
+    System.out.print("\t");
+    System.out.print(trials);
+    System.out.print("\t");
+    System.out.print(duration);
+    System.out.print("\t\t");
+    System.out.print(trials * 1000L / duration);
+    System.out.println();
+  }
+
+  private static ExecutorService newExecutor() {
+    try {
+      return (ExecutorService) Executors.class
+          .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newFixedThreadPool(1000);
+    }
+  }
+
+  private static void testStrategy(StreamCacheStrategy strategy)
+      throws Exception {
+    final Crypter crypter = new Crypter(TEST_DATA + "/aes");
+    crypter.setStreamCacheStrategy(strategy);
+    final byte[] message = new byte[SEGMENT_SIZE];
+    final AtomicInteger failures = new AtomicInteger();
+
+    for (int round = 0; round < NUM_ROUNDS; round++) {
+      ExecutorService executor = newExecutor();
+      long start = System.currentTimeMillis();
+      for (int i = 0; i < NUM_THREADS; i++) {
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              crypter.encrypt(message);
+              OutputStream output = crypter.newSegmentedEncryptingOutputStream(
+                  new SlowOutputStream(), SEGMENT_SIZE);
+              for (int j = 0; j < NUM_SEGMENTS; j++) {
+                output.write(message);
+              }
+              output.close();
+            } catch (KeyczarException e) {
+              failures.incrementAndGet();
+            } catch (IOException e) {
+              failures.incrementAndGet();
+            }
+          }
+        });
+      }
+      executor.shutdown();
+      executor.awaitTermination(1, TimeUnit.HOURS);
+      long end = System.currentTimeMillis();
+      if (failures.get() > 0) {
+        throw new AssertionError(failures.get() + " threads failed");
+      }
+      displayPerformance(strategy.toString(), start, end, NUM_THREADS);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    System.out.println("Strategy\tThreads\tDuration (ms)\tThreads/s");
+    for (StreamCacheStrategy strategy : StreamCacheStrategy.values()) {
+      testStrategy(strategy);
+    }
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keyczar;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.keyczar.enums.KeyStatus;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Tests that watched key sets are reloaded when their files change.
+ */
+public class WatchingKeyczarReaderTest extends TestCase {
+  private static final String TEST_DATA = "./testdata";
+  private static final String INPUT = "This is some test data";
+
+  private File directory;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    directory = Files.createTempDirectory("keyczar").toFile();
+    for (String name : new String[] { "meta", "1", "2" }) {
+      Files.copy(new File(TEST_DATA + "/aes", name).toPath(),
+          new File(directory, name).toPath());
+    }
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    for (File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+    super.tearDown();
+  }
+
+  @Test
+  public final void testRefreshWithoutChanges() throws Exception {
+    WatchingKeyczarReader reader =
+        new WatchingKeyczarReader(directory.getPath());
+    try {
+      Crypter crypter = new Crypter(reader);
+      reader.watch(crypter);
+      assertFalse(reader.refresh());
+      assertEquals(INPUT, crypter.decrypt(crypter.encrypt(INPUT)));
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public final void testReloadsRotatedKeys() throws Exception {
+    WatchingKeyczarReader reader =
+        new WatchingKeyczarReader(directory.getPath(), 50);
+    try {
+      Crypter crypter = new Crypter(reader);
+      String ciphertext = crypter.encrypt(INPUT);
+      KeyczarKey oldPrimary = crypter.getPrimaryKey();
+      reader.watch(crypter);
+
+      rotate();
+      long deadline = System.currentTimeMillis() + 10000;
+      while (crypter.getPrimaryKey() == oldPrimary
+          && System.currentTimeMillis() < deadline) {
+        Thread.sleep(20);
+      }
+
+      assertNotSame(oldPrimary, crypter.getPrimaryKey());
+      assertEquals(3, crypter.snapshot().versionMap().size());
+      // Unchanged versions keep their keys
+      assertSame(oldPrimary, crypter.getKey(oldPrimary.hash()).get(0));
+      assertEquals(INPUT, crypter.decrypt(ciphertext));
+      assertEquals(INPUT, crypter.decrypt(crypter.encrypt(INPUT)));
+      assertNull(reader.getLastError());
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public final void testSurvivesHalfWrittenFiles() throws Exception {
+    WatchingKeyczarReader reader =
+        new WatchingKeyczarReader(directory.getPath(), 50);
+    try {
+      Crypter crypter = new Crypter(reader);
+      KeyczarKey oldPrimary = crypter.getPrimaryKey();
+      reader.watch(crypter);
+      File meta = new File(directory, "meta");
+      byte[] metaBytes = Files.readAllBytes(meta.toPath());
+      Files.write(meta.toPath(),
+          Arrays.copyOf(metaBytes, metaBytes.length / 2));
+
+      long deadline = System.currentTimeMillis() + 10000;
+      while (reader.getLastError() == null
+          && System.currentTimeMillis() < deadline) {
+        Thread.sleep(20);
+      }
+      assertNotNull(reader.getLastError());
+      assertSame(oldPrimary, crypter.getPrimaryKey());
+
+      // The rotation completes, and the watcher is still there to see it
+      Files.write(meta.toPath(), metaBytes);
+      rotate();
+      while (crypter.getPrimaryKey() == oldPrimary
+          && System.currentTimeMillis() < deadline) {
+        Thread.sleep(20);
+      }
+      assertNotSame(oldPrimary, crypter.getPrimaryKey());
+      assertNull(reader.getLastError());
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public final void testUnwatch() throws Exception {
+    WatchingKeyczarReader reader =
+        new WatchingKeyczarReader(directory.getPath());
+    try {
+      Crypter crypter = new Crypter(reader);
+      KeyczarKey oldPrimary = crypter.getPrimaryKey();
+      reader.watch(crypter);
+      assertTrue(reader.unwatch(crypter));
+      assertFalse(reader.unwatch(crypter));
+      rotate();
+      reader.refresh();
+      assertSame(oldPrimary, crypter.getPrimaryKey());
+    } finally {
+      reader.close();
+    }
+  }
+
+  private void rotate() throws Exception {
+    GenericKeyczar keySet = new GenericKeyczar(directory.getPath());
+    keySet.addVersion(KeyStatus.PRIMARY);
+    keySet.write(directory.getPath() + File.separator);
+  }
+}